@@ -0,0 +1,53 @@
+package persistent;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event committed for every operation on an instrumented map. The class is only built on JDKs
+ * providing the jdk.jfr module, and only looked up reflectively by {@link Instrumentation}.
+ */
+@Name("persistent.MapOperation")
+@Label("Persistent Map Operation")
+@Category("Persistent Map")
+@Description("An operation on an instrumented PersistentMap and the trie nodes it copied")
+@StackTrace(false)
+final class MapOperationEvent extends Event {
+    @Label("Map")
+    String map;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Depth")
+    int depth;
+
+    @Label("Nodes Copied")
+    int nodesCopied;
+
+    @Label("Slots Copied")
+    int slotsCopied;
+
+    @Label("Estimated Bytes Allocated")
+    @DataAmount
+    long estimatedBytesAllocated;
+
+    static void commit(String map, String operation, int depth, int nodesCopied, int slotsCopied,
+                       long estimatedBytesAllocated) {
+        MapOperationEvent event = new MapOperationEvent();
+        if (event.shouldCommit()) {
+            event.map = map;
+            event.operation = operation;
+            event.depth = depth;
+            event.nodesCopied = nodesCopied;
+            event.slotsCopied = slotsCopied;
+            event.estimatedBytesAllocated = estimatedBytesAllocated;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package persistent;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.core.Is.is;
+
+public class MapOperationEventTest {
+
+    @BeforeClass
+    public void requireInstrumentation() {
+        if (!Instrumentation.ENABLED) {
+            throw new SkipException("Run with -Dpersistent.instrumentation=true");
+        }
+    }
+
+    @Test
+    public void emitsFlightRecorderEvents() throws IOException {
+        Path file = Files.createTempFile("persistent", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("persistent.MapOperation");
+            recording.start();
+
+            PersistentMap.<String, String>create().instrumented(new MapStats("recorded"))
+                    .put("foo", "bar")
+                    .get("foo");
+
+            recording.stop();
+            recording.dump(file);
+
+            List<String> operations = RecordingFile.readAllEvents(file).stream()
+                    .filter(event -> event.getString("map").equals("recorded"))
+                    .map(event -> event.getString("operation"))
+                    .collect(Collectors.toList());
+            assertThat(operations, hasItem("PUT"));
+            assertThat(operations, hasItem("GET"));
+
+            RecordedEvent put = RecordingFile.readAllEvents(file).stream()
+                    .filter(event -> event.getString("operation").equals("PUT"))
+                    .findFirst().get();
+            assertThat(put.getInt("nodesCopied"), is(2));
+        } finally {
+            new File(file.toString()).delete();
+        }
+    }
+}
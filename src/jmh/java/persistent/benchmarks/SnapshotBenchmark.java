@@ -0,0 +1,140 @@
+package persistent.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import persistent.PersistentMap;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Models a map shared by many reader threads and updated by a few writer threads, which publish every new
+ * version with a compare-and-set on an atomic reference, and retry on conflicting updates.
+ *
+ * Each group runs 16 readers against 2 writers by default; override the thread counts with {@code -tg 32,4}, or
+ * measure an uncontended writer, whose CAS never fails, with {@code -tg 16,1}. The throughput mode reports the
+ * writer throughput and the CAS failure counters, the sample time mode the reader latency percentiles. Add {@code -prof gc} for the allocation rate of both.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class SnapshotBenchmark {
+    private static final int READERS = 16;
+    /**
+     * At least two writers, so that their publications conflict and the CAS failure counters measure something.
+     */
+    private static final int WRITERS = 2;
+
+    /**
+     * The published map. Its key space is [0, 2 * size), of which the writers keep about half present.
+     */
+    @State(Scope.Group)
+    public static class SharedMap {
+        @Param({"10000", "100000", "1000000", "10000000"})
+        int size;
+
+        final AtomicReference<PersistentMap<Integer, Integer>> current = new AtomicReference<>();
+        Integer[] keys;
+
+        @Setup(Level.Trial)
+        public void populate() {
+            keys = new Integer[2 * size];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = i;
+            }
+
+            PersistentMap<Integer, Integer> map = PersistentMap.create();
+            for (int i = 0; i < keys.length; i += 2) {
+                map = map.put(keys[i], keys[i]);
+            }
+            current.set(map);
+        }
+
+        Integer randomKey() {
+            return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        }
+    }
+
+    /**
+     * Counts the publications of every writer thread, reported next to the writer throughput.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Publications {
+        public long casAttempts;
+        public long casFailures;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            casAttempts = 0;
+            casFailures = 0;
+        }
+    }
+
+    @Benchmark
+    @Group("get")
+    @GroupThreads(READERS)
+    public Integer getReader(SharedMap shared) {
+        return shared.current.get().get(shared.randomKey());
+    }
+
+    @Benchmark
+    @Group("get")
+    @GroupThreads(WRITERS)
+    public PersistentMap<Integer, Integer> getWriter(SharedMap shared, Publications publications) {
+        return publish(shared, publications);
+    }
+
+    @Benchmark
+    @Group("scan")
+    @GroupThreads(READERS)
+    public void scanReader(SharedMap shared, Blackhole blackhole) {
+        List<Integer> values = shared.current.get().values();
+        for (Integer value : values) {
+            blackhole.consume(value);
+        }
+    }
+
+    @Benchmark
+    @Group("scan")
+    @GroupThreads(WRITERS)
+    public PersistentMap<Integer, Integer> scanWriter(SharedMap shared, Publications publications) {
+        return publish(shared, publications);
+    }
+
+    /**
+     * Toggles a random key, inserting it if absent and removing it otherwise, and publishes the new version.
+     */
+    private static PersistentMap<Integer, Integer> publish(SharedMap shared, Publications publications) {
+        Integer key = shared.randomKey();
+        while (true) {
+            PersistentMap<Integer, Integer> snapshot = shared.current.get();
+            PersistentMap<Integer, Integer> updated = snapshot.get(key) == null
+                    ? snapshot.put(key, key)
+                    : snapshot.remove(key);
+            publications.casAttempts++;
+            if (shared.current.compareAndSet(snapshot, updated)) {
+                return updated;
+            }
+            publications.casFailures++;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package persistent;
+
+import java.util.function.Function;
+
+import static persistent.Bits.bitClear;
+import static persistent.Bits.clearBit;
+import static persistent.Bits.setBit;
+import static persistent.PersistentMap.populationCountAt;
+
+/**
+ * A trie node of the maps without compressed paths, {@link PagedMap} and {@link PersistentBytesMap}. The bitmap
+ * records which buckets are occupied, and the entries of the occupied buckets are stored in bucket order. An entry
+ * is a {@link Leaf} with the entries of one hash code, or a child node in a form chosen by the map, which resolves
+ * it to a BitmapNode when needed.
+ */
+final class BitmapNode {
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    final long mask;
+    final Object[] entries;
+
+    BitmapNode(long mask, Object[] entries) {
+        this.mask = mask;
+        this.entries = entries;
+    }
+
+    Object entryAt(int bucket) {
+        return entries[populationCountAt(mask, bucket)];
+    }
+
+    BitmapNode set(int bucket, Object entry) {
+        long newMask = setBit(mask, bucket);
+        int index = populationCountAt(newMask, bucket);
+        Object[] newEntries = new Object[entries.length + 1];
+        System.arraycopy(entries, 0, newEntries, 0, index);
+        newEntries[index] = entry;
+        System.arraycopy(entries, index, newEntries, index + 1, entries.length - index);
+        return new BitmapNode(newMask, newEntries);
+    }
+
+    BitmapNode replace(int bucket, Object entry) {
+        Object[] newEntries = entries.clone();
+        newEntries[populationCountAt(mask, bucket)] = entry;
+        return new BitmapNode(mask, newEntries);
+    }
+
+    BitmapNode clear(int bucket) {
+        int index = populationCountAt(mask, bucket);
+        Object[] newEntries = new Object[entries.length - 1];
+        System.arraycopy(entries, 0, newEntries, 0, index);
+        System.arraycopy(entries, index + 1, newEntries, index, entries.length - (index + 1));
+        return new BitmapNode(clearBit(mask, bucket), newEntries);
+    }
+
+    /**
+     * Returns the node below which the single entry of the leaf is added or replaced, or the node itself if the
+     * key already has the same value, and records in added[0] whether the key was absent. The node is null for an
+     * empty trie.
+     */
+    static Object insert(BranchingFactor branching, Function<Object, BitmapNode> resolver, Object node, int level,
+                         Leaf leaf, boolean[] added) {
+        BitmapNode current = node == null ? EMPTY : resolver.apply(node);
+        int bucket = branching.subhash(leaf.hashCode, level);
+        if (bitClear(current.mask, bucket)) {
+            added[0] = true;
+            return current.set(bucket, leaf);
+        }
+
+        Object entry = current.entryAt(bucket);
+        Object replacement;
+        if (entry instanceof Leaf) {
+            Leaf existing = (Leaf) entry;
+            if (existing.hashCode == leaf.hashCode) {
+                replacement = existing.merge(leaf);
+                added[0] = ((Leaf) replacement).size() > existing.size();
+            } else {
+                replacement = pushDown(branching, existing, leaf, level + 1);
+                added[0] = true;
+            }
+        } else {
+            replacement = insert(branching, resolver, entry, level + 1, leaf, added);
+        }
+        return replacement == entry ? node : current.replace(bucket, replacement);
+    }
+
+    /**
+     * Returns a node at the given level holding two leaves of different hash codes, nested as deep as needed.
+     */
+    private static BitmapNode pushDown(BranchingFactor branching, Leaf leaf1, Leaf leaf2, int level) {
+        int bucket1 = branching.subhash(leaf1.hashCode, level);
+        int bucket2 = branching.subhash(leaf2.hashCode, level);
+        if (bucket1 == bucket2) {
+            return EMPTY.set(bucket1, pushDown(branching, leaf1, leaf2, level + 1));
+        }
+        return EMPTY.set(bucket1, leaf1).set(bucket2, leaf2);
+    }
+
+    /**
+     * Returns the node at the given level after a removal below the bucket, which left the replacement there:
+     * null if nothing is left, the only leaf left below a node other than the root, or otherwise the copied node.
+     * The replacement is null if nothing is left below the bucket.
+     */
+    Object removed(int bucket, Object replacement, int level) {
+        BitmapNode updated = replacement == null ? clear(bucket) : replace(bucket, replacement);
+        if (updated.entries.length == 0) {
+            return null;
+        } else if (level > 0 && updated.entries.length == 1 && updated.entries[0] instanceof Leaf) {
+            return updated.entries[0];
+        }
+        return updated;
+    }
+
+    /**
+     * The entries of one hash code, in a form chosen by the map.
+     */
+    abstract static class Leaf {
+        final int hashCode;
+
+        Leaf(int hashCode) {
+            this.hashCode = hashCode;
+        }
+
+        abstract int size();
+
+        /**
+         * Returns a leaf with the single entry of the other leaf added or replaced, or this leaf if the key already
+         * has the same value.
+         */
+        abstract Leaf merge(Leaf other);
+    }
+}
@@ -9,16 +9,32 @@ public class Bits {
         return mask | (1 << position);
     }
 
+    public static long setBit(long mask, int position) {
+        return mask | (1L << position);
+    }
+
     public static int clearBit(int mask, int position) {
         return mask & ~(1 << position);
     }
 
+    public static long clearBit(long mask, int position) {
+        return mask & ~(1L << position);
+    }
+
     public static boolean bitSet(int mask, int position) {
         return (mask & (1 << position)) != 0;
     }
 
+    public static boolean bitSet(long mask, int position) {
+        return (mask & (1L << position)) != 0;
+    }
+
     public static boolean bitClear(int n, int bucket) {
         return !bitSet(n, bucket);
     }
 
+    public static boolean bitClear(long n, int bucket) {
+        return !bitSet(n, bucket);
+    }
+
 }
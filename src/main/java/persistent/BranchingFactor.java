@@ -0,0 +1,70 @@
+package persistent;
+
+/**
+ * Width of the trie nodes of a PersistentMap.
+ *
+ * Narrow nodes make the path copying on updates cheaper, while wide nodes make the trie shallower for lookups.
+ * Each level consumes bitsPerLevel bits of the hash code starting from the most significant bits, and the last
+ * level consumes whatever bits remain.
+ */
+public enum BranchingFactor {
+    WAYS_16(4),
+    WAYS_32(5),
+    WAYS_64(6);
+
+    private final int bitsPerLevel;
+    private final int subhashMask;
+    private final int lastLevel;
+    private final int lastLevelMask;
+
+    BranchingFactor(int bitsPerLevel) {
+        this.bitsPerLevel = bitsPerLevel;
+        this.subhashMask = (1 << bitsPerLevel) - 1;
+        this.lastLevel = (Integer.SIZE - 1) / bitsPerLevel;
+        this.lastLevelMask = (1 << (Integer.SIZE - bitsPerLevel * lastLevel)) - 1;
+    }
+
+    /**
+     * Returns the number of buckets in a trie node.
+     */
+    public int width() {
+        return 1 << bitsPerLevel;
+    }
+
+    int bitsPerLevel() {
+        return bitsPerLevel;
+    }
+
+    /**
+     * Returns the deepest trie level. Keys with equal hash codes collide at this level.
+     */
+    int lastLevel() {
+        return lastLevel;
+    }
+
+    /**
+     * Returns the mask of the hash code bits consumed by the levels from fromLevel up to, but not including,
+     * toLevel. Neither level may be deeper than the last level.
+     */
+    int levelMask(int fromLevel, int toLevel) {
+        int bits = bitsPerLevel * (toLevel - fromLevel);
+        return bits == 0 ? 0 : ((1 << bits) - 1) << (Integer.SIZE - bitsPerLevel * toLevel);
+    }
+
+    /**
+     * Returns the first level where the subhashes of two different hash codes differ.
+     */
+    int divergenceLevel(int hash1, int hash2) {
+        assert (hash1 != hash2);
+        return Math.min(Integer.numberOfLeadingZeros(hash1 ^ hash2) / bitsPerLevel, lastLevel);
+    }
+
+    int subhash(int hash, int level) {
+        if (level < lastLevel) {
+            int rshift = Integer.SIZE - bitsPerLevel * (level + 1);
+            return (hash >>> rshift) & subhashMask;
+        } else {
+            return hash & lastLevelMask;
+        }
+    }
+}
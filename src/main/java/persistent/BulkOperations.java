@@ -0,0 +1,390 @@
+package persistent;
+
+import persistent.PersistentMap.CollisionNode;
+import persistent.PersistentMap.CompressedNode;
+import persistent.PersistentMap.KeyEntry;
+import persistent.PersistentMap.SubMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+import static persistent.Bits.setBit;
+import static persistent.PersistentMap.canonical;
+import static persistent.PersistentMap.isCollision;
+import static persistent.PersistentMap.isCompressed;
+import static persistent.PersistentMap.isKeyValue;
+
+/**
+ * Bulk operations over whole maps. Each root bucket is processed as a separate ForkJoin task on the common pool,
+ * and the subtree below it sequentially. Maps smaller than PARALLELISM_THRESHOLD are processed in the calling
+ * thread.
+ */
+final class BulkOperations {
+    static final int PARALLELISM_THRESHOLD = 1 << 12;
+
+    private BulkOperations() {
+    }
+
+    static <K, V> void forEach(PersistentMap<K, V> map, BiConsumer<? super K, ? super V> action) {
+        forEachRootBucket(map, (bucket, entry) -> new BucketTask() {
+            @Override
+            protected void compute() {
+                forEachEntry(entry, action);
+            }
+        });
+    }
+
+    static <K, V, U> U reduce(PersistentMap<K, V> map,
+                              BiFunction<? super K, ? super V, ? extends U> transformer,
+                              BinaryOperator<U> reducer) {
+        List<ReduceTask<K, V, U>> tasks = forEachRootBucket(map,
+                (bucket, entry) -> new ReduceTask<>(entry, transformer, reducer));
+
+        U result = null;
+        for (ReduceTask<K, V, U> task : tasks) {
+            result = combine(result, task.result, reducer);
+        }
+        return result;
+    }
+
+    static <K, V, R> PersistentMap<K, R> mapValues(PersistentMap<K, V> map,
+                                                  BiFunction<? super K, ? super V, ? extends R> mapper) {
+        if (map.isEmpty()) {
+            return map.withRoot(null, 0);
+        }
+
+        SubMap root = map.root();
+        Object[] entries = new Object[root.capacity()];
+        forEachRootBucket(map, (index, entry) -> new BucketTask() {
+            @Override
+            protected void compute() {
+                entries[index] = mapNode(entry, mapper);
+            }
+        });
+        return map.withRoot(SubMap.of(root.mask(), entries), map.size());
+    }
+
+    static <K, V> PersistentMap<K, V> filter(PersistentMap<K, V> map, BiPredicate<? super K, ? super V> predicate) {
+        SubMap root = map.root();
+        List<FilterTask<K, V>> tasks = forEachRootBucket(map, (index, entry) -> new FilterTask<>(entry, predicate));
+
+        long newMask = root.mask();
+        long mask = root.mask();
+        int removed = 0;
+        List<Object> entries = new ArrayList<>();
+        for (FilterTask<K, V> task : tasks) {
+            int bucket = Long.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            removed += task.removed;
+            if (task.result == null) {
+                newMask = Bits.clearBit(newMask, bucket);
+            } else {
+                entries.add(task.result);
+            }
+        }
+
+        if (removed == 0) {
+            return map;
+        }
+        return map.withRoot(SubMap.of(newMask, entries.toArray()), map.size() - removed);
+    }
+
+    static <T, K, V> Collector<T, ?, PersistentMap<K, V>> toPersistentMap(BranchingFactor branching,
+                                                                         Function<? super T, ? extends K> keyMapper,
+                                                                         Function<? super T, ? extends V> valueMapper) {
+        return Collector.of(
+                () -> new Partitions<K, V>(branching),
+                (partitions, element) -> partitions.add(keyMapper.apply(element), valueMapper.apply(element)),
+                Partitions::merge,
+                BulkOperations::load);
+    }
+
+    /**
+     * Builds the subtree of every root bucket from its partition, and stitches them into the root.
+     */
+    static <K, V> PersistentMap<K, V> load(Partitions<K, V> partitions) {
+        PersistentMap<K, V> empty = PersistentMap.create(partitions.branching);
+        long mask = 0;
+        List<LoadTask<K, V>> tasks = new ArrayList<>();
+        for (int bucket = 0; bucket < partitions.buckets.size(); bucket++) {
+            List<Object> partition = partitions.buckets.get(bucket);
+            if (partition != null) {
+                mask = setBit(mask, bucket);
+                tasks.add(new LoadTask<>(empty, partition));
+            }
+        }
+        if (tasks.isEmpty()) {
+            return empty;
+        }
+
+        invokeAll(tasks, partitions.size);
+        Object[] entries = new Object[tasks.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = tasks.get(i).result;
+        }
+        SubMap root = SubMap.of(mask, entries);
+        return empty.withRoot(root, root.size());
+    }
+
+    /**
+     * Collects entries into one partition per root bucket, each holding its keys and values in alternation and in
+     * encounter order, so that the last value of a duplicate key wins.
+     */
+    static final class Partitions<K, V> {
+        private final BranchingFactor branching;
+        private final List<List<Object>> buckets;
+        private int size;
+
+        Partitions(BranchingFactor branching) {
+            this.branching = branching;
+            this.buckets = new ArrayList<>(branching.width());
+            for (int i = 0; i < branching.width(); i++) {
+                buckets.add(null);
+            }
+        }
+
+        void add(K key, V value) {
+            int bucket = branching.subhash(key.hashCode(), 0);
+            List<Object> partition = buckets.get(bucket);
+            if (partition == null) {
+                partition = new ArrayList<>();
+                buckets.set(bucket, partition);
+            }
+            partition.add(key);
+            partition.add(value);
+            size++;
+        }
+
+        /**
+         * Appends the entries of partitions collected later in encounter order.
+         */
+        Partitions<K, V> merge(Partitions<K, V> later) {
+            for (int i = 0; i < buckets.size(); i++) {
+                List<Object> partition = buckets.get(i);
+                List<Object> laterPartition = later.buckets.get(i);
+                if (partition == null) {
+                    buckets.set(i, laterPartition);
+                } else if (laterPartition != null) {
+                    partition.addAll(laterPartition);
+                }
+            }
+            size += later.size;
+            return this;
+        }
+    }
+
+    /**
+     * Builds the node of a root bucket by inserting the entries of its partition into an empty map.
+     */
+    private static final class LoadTask<K, V> extends RecursiveAction {
+        private final PersistentMap<K, V> empty;
+        private final List<Object> partition;
+        private Object result;
+
+        LoadTask(PersistentMap<K, V> empty, List<Object> partition) {
+            this.empty = empty;
+            this.partition = partition;
+        }
+
+        @Override
+        protected void compute() {
+            PersistentMap<K, V> subtree = empty;
+            for (int i = 0; i < partition.size(); i += 2) {
+                subtree = subtree.put((K) partition.get(i), (V) partition.get(i + 1));
+            }
+            result = subtree.root().entryAt(0);
+        }
+    }
+
+    private interface TaskFactory<T extends ForkJoinTask<?>> {
+        T create(int index, Object entry);
+    }
+
+    private abstract static class BucketTask extends RecursiveAction {
+    }
+
+    /**
+     * Creates a task for every root bucket, in bucket order, and runs them to completion.
+     */
+    private static <T extends ForkJoinTask<?>> List<T> forEachRootBucket(PersistentMap<?, ?> map,
+                                                                         TaskFactory<T> factory) {
+        SubMap root = map.root();
+        List<T> tasks = new ArrayList<>(root.capacity());
+        for (int i = 0; i < root.capacity(); i++) {
+            tasks.add(factory.create(i, root.entryAt(i)));
+        }
+
+        invokeAll(tasks, map.size());
+        return tasks;
+    }
+
+    /**
+     * Runs the tasks to completion, in parallel unless they process fewer than PARALLELISM_THRESHOLD entries.
+     */
+    private static void invokeAll(List<? extends ForkJoinTask<?>> tasks, int entries) {
+        if (entries < PARALLELISM_THRESHOLD) {
+            for (ForkJoinTask<?> task : tasks) {
+                task.invoke();
+            }
+        } else {
+            ForkJoinTask.invokeAll(tasks);
+        }
+    }
+
+    static <K, V> void forEachEntry(Object node, BiConsumer<? super K, ? super V> action) {
+        if (isKeyValue(node)) {
+            KeyEntry<K, V> keyEntry = (KeyEntry<K, V>) node;
+            action.accept(keyEntry.key(), keyEntry.value());
+        } else if (isCollision(node)) {
+            CollisionNode<K, V> collisionNode = (CollisionNode<K, V>) node;
+            for (int i = 0; i < collisionNode.size(); i++) {
+                action.accept(collisionNode.keyAt(i), collisionNode.valueAt(i));
+            }
+        } else if (isCompressed(node)) {
+            forEachEntry(((CompressedNode) node).child(), action);
+        } else {
+            SubMap subMap = (SubMap) node;
+            for (int i = 0; i < subMap.capacity(); i++) {
+                forEachEntry(subMap.entryAt(i), action);
+            }
+        }
+    }
+
+    private static <U> U combine(U left, U right, BinaryOperator<U> reducer) {
+        if (left == null) {
+            return right;
+        } else if (right == null) {
+            return left;
+        }
+        return reducer.apply(left, right);
+    }
+
+    private static final class ReduceTask<K, V, U> extends RecursiveAction {
+        private final Object node;
+        private final BiFunction<? super K, ? super V, ? extends U> transformer;
+        private final BinaryOperator<U> reducer;
+        private U result;
+
+        ReduceTask(Object node, BiFunction<? super K, ? super V, ? extends U> transformer, BinaryOperator<U> reducer) {
+            this.node = node;
+            this.transformer = transformer;
+            this.reducer = reducer;
+        }
+
+        @Override
+        protected void compute() {
+            BulkOperations.<K, V>forEachEntry(node, (key, value) ->
+                    result = combine(result, transformer.apply(key, value), reducer));
+        }
+    }
+
+    private static <K, V, R> Object mapNode(Object node, BiFunction<? super K, ? super V, ? extends R> mapper) {
+        if (isKeyValue(node)) {
+            KeyEntry<K, V> keyEntry = (KeyEntry<K, V>) node;
+            return new KeyEntry<>(keyEntry.key(), mapper.apply(keyEntry.key(), keyEntry.value()));
+        } else if (isCollision(node)) {
+            return ((CollisionNode<K, V>) node).mapValues(mapper);
+        } else if (isCompressed(node)) {
+            CompressedNode compressed = (CompressedNode) node;
+            return new CompressedNode(compressed.prefix(), compressed.level(),
+                    (SubMap) mapNode(compressed.child(), mapper));
+        } else {
+            return ((SubMap) node).mapEntries(entry -> mapNode(entry, mapper));
+        }
+    }
+
+    private static final class FilterTask<K, V> extends RecursiveAction {
+        private final Object node;
+        private final BiPredicate<? super K, ? super V> predicate;
+        private Object result;
+        private int removed;
+
+        FilterTask(Object node, BiPredicate<? super K, ? super V> predicate) {
+            this.node = node;
+            this.predicate = predicate;
+        }
+
+        @Override
+        protected void compute() {
+            result = filterNode(node, 0);
+        }
+
+        /**
+         * Returns the filtered node to store in a bucket at the given level: the node itself if nothing was
+         * removed, or null if everything was.
+         */
+        private Object filterNode(Object node, int bucketLevel) {
+            if (isKeyValue(node)) {
+                KeyEntry<K, V> keyEntry = (KeyEntry<K, V>) node;
+                if (predicate.test(keyEntry.key(), keyEntry.value())) {
+                    return node;
+                }
+                removed++;
+                return null;
+            } else if (isCollision(node)) {
+                CollisionNode<K, V> collisionNode = (CollisionNode<K, V>) node;
+                Object filtered = collisionNode.filter(predicate);
+                removed += collisionNode.size() - sizeOf(filtered);
+                return filtered;
+            } else if (isCompressed(node)) {
+                CompressedNode compressed = (CompressedNode) node;
+                SubMap child = filterSubMap(compressed.child(), compressed.level());
+                if (child == compressed.child()) {
+                    return node;
+                }
+                return child.isEmpty() ? null : canonical(bucketLevel, compressed.level(), compressed.prefix(), child);
+            } else {
+                SubMap subMap = filterSubMap((SubMap) node, bucketLevel + 1);
+                if (subMap == node) {
+                    return node;
+                }
+                return subMap.isEmpty() ? null : canonical(bucketLevel, bucketLevel + 1, 0, subMap);
+            }
+        }
+
+        private SubMap filterSubMap(SubMap subMap, int level) {
+            Object[] entries = null;
+            int count = 0;
+            long newMask = subMap.mask();
+            long mask = subMap.mask();
+            for (int i = 0; i < subMap.capacity(); i++, mask &= mask - 1) {
+                Object entry = subMap.entryAt(i);
+                Object filtered = filterNode(entry, level);
+                if (filtered != entry && entries == null) {
+                    entries = new Object[subMap.capacity()];
+                    subMap.copyEntries(0, entries, 0, i);
+                    count = i;
+                }
+                if (filtered == null) {
+                    newMask = Bits.clearBit(newMask, Long.numberOfTrailingZeros(mask));
+                } else if (entries != null) {
+                    entries[count++] = filtered;
+                }
+            }
+
+            if (entries == null) {
+                return subMap;
+            }
+            Object[] remaining = new Object[count];
+            System.arraycopy(entries, 0, remaining, 0, count);
+            return SubMap.of(newMask, remaining);
+        }
+
+        private static int sizeOf(Object filtered) {
+            if (filtered == null) {
+                return 0;
+            } else if (isCollision(filtered)) {
+                return ((CollisionNode) filtered).size();
+            }
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package persistent;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+import static java.lang.String.format;
+
+/**
+ * Publishes the versions of an atomically updated PersistentMap, and delivers their changes to subscribers.
+ *
+ * Each subscriber remembers the last version delivered to it. Whenever it has outstanding demand and a newer
+ * version is published, it receives one batch holding the {@link PersistentMap#diff(PersistentMap) diff} from the
+ * delivered version to the latest one. The versions published while a subscriber has no demand, or while it is
+ * busy, are thus coalesced into a single batch, and the work per batch is bounded by the amount of change rather
+ * than by the size of the map. A lagging subscriber keeps its last delivered version reachable.
+ *
+ * Batches are delivered on the executor, one at a time per subscriber.
+ */
+public final class ChangeFeed<K, V> {
+    private final AtomicReference<PersistentMap<K, V>> current;
+    private final Executor executor;
+    private final List<FeedSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    public ChangeFeed(PersistentMap<K, V> initial) {
+        this(initial, ForkJoinPool.commonPool());
+    }
+
+    public ChangeFeed(PersistentMap<K, V> initial, Executor executor) {
+        this.current = new AtomicReference<>(initial);
+        this.executor = executor;
+    }
+
+    public PersistentMap<K, V> current() {
+        return current.get();
+    }
+
+    public void publish(PersistentMap<K, V> map) {
+        current.set(map);
+        signalAll();
+    }
+
+    /**
+     * Atomically replaces the current version with the updated one, and returns it. The update may be applied
+     * several times under contention, so it should be a pure function.
+     */
+    public PersistentMap<K, V> update(UnaryOperator<PersistentMap<K, V>> update) {
+        PersistentMap<K, V> updated = current.updateAndGet(update);
+        signalAll();
+        return updated;
+    }
+
+    /**
+     * Subscribes to the changes published after the current version.
+     */
+    public Subscription subscribe(Subscriber<K, V> subscriber) {
+        return subscribe(subscriber, current());
+    }
+
+    /**
+     * Subscribes to the changes since the given version. Subscribing since an empty map delivers the current
+     * contents as added entries in the first batch.
+     */
+    public Subscription subscribe(Subscriber<K, V> subscriber, PersistentMap<K, V> since) {
+        FeedSubscription subscription = new FeedSubscription(subscriber, since);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    private void signalAll() {
+        for (FeedSubscription subscription : subscriptions) {
+            subscription.signal();
+        }
+    }
+
+    public interface Subscriber<K, V> {
+        /**
+         * Receives a non-empty batch of changes, in trie order. A batch is delivered for each requested one.
+         */
+        void onChanges(List<MapChange<K, V>> changes);
+    }
+
+    public interface Subscription {
+        /**
+         * Requests up to the given number of additional batches.
+         */
+        void request(long batches);
+
+        /**
+         * Stops the delivery of batches. A batch being delivered is completed.
+         */
+        void cancel();
+    }
+
+    private final class FeedSubscription implements Subscription {
+        private final Subscriber<K, V> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        /**
+         * The number of signals not yet handled by the delivery loop, which runs while it is positive.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+        private PersistentMap<K, V> delivered;
+
+        FeedSubscription(Subscriber<K, V> subscriber, PersistentMap<K, V> since) {
+            this.subscriber = subscriber;
+            this.delivered = since;
+        }
+
+        @Override
+        public void request(long batches) {
+            if (batches <= 0) {
+                throw new IllegalArgumentException(format("Invalid number of batches: %d", batches));
+            }
+            requested.accumulateAndGet(batches, (current, added) ->
+                    current + added < 0 ? Long.MAX_VALUE : current + added);
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void signal() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this::deliver);
+            }
+        }
+
+        /**
+         * Delivers batches while there is demand and a newer version, until no signal is left unhandled. A
+         * subscriber throwing an exception is cancelled.
+         */
+        private void deliver() {
+            int signals = pending.get();
+            do {
+                while (!cancelled && requested.get() > 0) {
+                    PersistentMap<K, V> latest = current.get();
+                    if (latest == delivered) {
+                        break;
+                    }
+                    List<MapChange<K, V>> changes = delivered.diff(latest);
+                    delivered = latest;
+                    if (changes.isEmpty()) {
+                        continue;
+                    }
+                    if (requested.get() != Long.MAX_VALUE) {
+                        requested.decrementAndGet();
+                    }
+                    try {
+                        subscriber.onChanges(changes);
+                    } catch (RuntimeException e) {
+                        cancel();
+                        throw e;
+                    }
+                }
+                signals = pending.addAndGet(-signals);
+            } while (signals != 0);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package persistent;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads keys or values of a PersistentMap to and from a byte stream.
+ */
+public interface Codec<T> {
+
+    void write(T value, DataOutput out) throws IOException;
+
+    T read(DataInput in) throws IOException;
+
+    static Codec<String> strings() {
+        return new Codec<String>() {
+            @Override
+            public void write(String value, DataOutput out) throws IOException {
+                out.writeUTF(value);
+            }
+
+            @Override
+            public String read(DataInput in) throws IOException {
+                return in.readUTF();
+            }
+        };
+    }
+
+    static Codec<Integer> integers() {
+        return new Codec<Integer>() {
+            @Override
+            public void write(Integer value, DataOutput out) throws IOException {
+                out.writeInt(value);
+            }
+
+            @Override
+            public Integer read(DataInput in) throws IOException {
+                return in.readInt();
+            }
+        };
+    }
+
+    static Codec<Long> longs() {
+        return new Codec<Long>() {
+            @Override
+            public void write(Long value, DataOutput out) throws IOException {
+                out.writeLong(value);
+            }
+
+            @Override
+            public Long read(DataInput in) throws IOException {
+                return in.readLong();
+            }
+        };
+    }
+}
@@ -0,0 +1,108 @@
+package persistent;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import persistent.PersistentMap.CollisionNode;
+import persistent.PersistentMap.CompressedNode;
+import persistent.PersistentMap.KeyEntry;
+import persistent.PersistentMap.SubMap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static com.google.common.hash.Funnels.asOutputStream;
+import static persistent.PersistentMap.isCollision;
+import static persistent.PersistentMap.isCompressed;
+import static persistent.PersistentMap.isKeyValue;
+import static persistent.PersistentMap.isSubmap;
+
+/**
+ * Computes content fingerprints of PersistentMaps, see {@link MerkleSync}.
+ *
+ * The fingerprint of an entry is a 64-bit MurmurHash3 of the key and the value as written by the codecs, so it
+ * changes whenever the encoded content changes, even if the hash codes do not. The fingerprint of a node is the
+ * sum of the fingerprints of the entries below it, which does not depend on the order of the entries, so nodes
+ * holding the same entries have the same fingerprint regardless of their shape.
+ *
+ * The fingerprints of SubMaps are cached by node identity, weakly, so that subtrees shared between the versions
+ * fingerprinted by the same instance are only hashed once. Nothing is kept in the nodes themselves.
+ */
+public final class Fingerprints<K, V> {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final Map<SubMap, Long> cache = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public Fingerprints(Codec<K> keyCodec, Codec<V> valueCodec) {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+    }
+
+    Codec<K> keyCodec() {
+        return keyCodec;
+    }
+
+    Codec<V> valueCodec() {
+        return valueCodec;
+    }
+
+    /**
+     * Returns the content fingerprint of the map, 0 for an empty map.
+     */
+    public long of(PersistentMap<K, V> map) {
+        return of(map.root());
+    }
+
+    /**
+     * Returns the content fingerprint of a node: the sum of the fingerprints of all entries below it.
+     */
+    long of(Object node) {
+        if (isKeyValue(node)) {
+            KeyEntry<K, V> keyEntry = (KeyEntry<K, V>) node;
+            return entry(keyEntry.key(), keyEntry.value());
+        } else if (isCollision(node)) {
+            CollisionNode<K, V> collisionNode = (CollisionNode<K, V>) node;
+            long result = 0;
+            for (int i = 0; i < collisionNode.size(); i++) {
+                result += entry(collisionNode.keyAt(i), collisionNode.valueAt(i));
+            }
+            return result;
+        } else if (isCompressed(node)) {
+            return of(((CompressedNode) node).child());
+        } else if (isSubmap(node)) {
+            return subMap((SubMap) node);
+        }
+        return 0;
+    }
+
+    private long subMap(SubMap subMap) {
+        Long cached = cache.get(subMap);
+        if (cached != null) {
+            return cached;
+        }
+        long result = 0;
+        for (int i = 0; i < subMap.capacity(); i++) {
+            result += of(subMap.entryAt(i));
+        }
+        cache.put(subMap, result);
+        return result;
+    }
+
+    long entry(K key, V value) {
+        Hasher hasher = HASH.newHasher();
+        try {
+            DataOutputStream out = new DataOutputStream(asOutputStream(hasher));
+            keyCodec.write(key, out);
+            valueCodec.write(value, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return hasher.hash().asLong();
+    }
+}
@@ -0,0 +1,243 @@
+package persistent;
+
+import persistent.PersistentMap.CollisionNode;
+import persistent.PersistentMap.CompressedNode;
+import persistent.PersistentMap.KeyEntry;
+import persistent.PersistentMap.SubMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static persistent.Bits.bitClear;
+import static persistent.PersistentMap.isCollision;
+import static persistent.PersistentMap.isCompressed;
+import static persistent.PersistentMap.isKeyValue;
+import static persistent.PersistentMap.isSubmap;
+import static persistent.PersistentMap.populationCountAt;
+
+/**
+ * An immutable, read-only copy of a PersistentMap, laid out in a few flat arrays for snapshots which are read
+ * far more often than they are updated.
+ *
+ * The nodes of the trie are numbered breadth-first, so that the upper levels visited by every lookup are adjacent
+ * in memory. Node n has its bitmap in masks[n] and its level in levels[n], and the slots of its occupied buckets
+ * start at firstSlots[n]. A slot holds the index of a child node, of an entry in the parallel keys, values and
+ * hashCodes arrays, or of a collision node, tagged in its lowest bits. A child reached through a compressed path
+ * records the hash code bits of the skipped levels in prefixes[n] and prefixMasks[n].
+ *
+ * A lookup thus reads a few primitive arrays and the key it compares, instead of following a chain of SubMap
+ * objects and their entry arrays. {@link #thaw()} rebuilds the original trie for further updates.
+ */
+public final class FrozenMap<K, V> {
+    private static final int TAG_BITS = 2;
+    private static final int TAG_MASK = (1 << TAG_BITS) - 1;
+    private static final int NODE = 0;
+    private static final int ENTRY = 1;
+    private static final int COLLISION = 2;
+
+    private final BranchingFactor branching;
+    private final int size;
+
+    private final long[] masks;
+    private final byte[] levels;
+    private final int[] prefixes;
+    private final int[] prefixMasks;
+    private final int[] firstSlots;
+    private final int[] slots;
+
+    private final Object[] keys;
+    private final Object[] values;
+    private final int[] hashCodes;
+    private final CollisionNode<K, V>[] collisions;
+
+    private FrozenMap(BranchingFactor branching, int size, long[] masks, byte[] levels, int[] prefixes,
+                      int[] prefixMasks, int[] firstSlots, int[] slots, Object[] keys, Object[] values,
+                      int[] hashCodes, CollisionNode<K, V>[] collisions) {
+        this.branching = branching;
+        this.size = size;
+        this.masks = masks;
+        this.levels = levels;
+        this.prefixes = prefixes;
+        this.prefixMasks = prefixMasks;
+        this.firstSlots = firstSlots;
+        this.slots = slots;
+        this.keys = keys;
+        this.values = values;
+        this.hashCodes = hashCodes;
+        this.collisions = collisions;
+    }
+
+    static <K, V> FrozenMap<K, V> freeze(PersistentMap<K, V> map) {
+        return new Builder<K, V>(map.branchingFactor()).build(map);
+    }
+
+    public V get(K key) {
+        if (size == 0) {
+            return null;
+        }
+
+        int hashCode = key.hashCode();
+        int node = 0;
+        while (true) {
+            if (((hashCode ^ prefixes[node]) & prefixMasks[node]) != 0) {
+                return null;
+            }
+            long mask = masks[node];
+            int bucket = branching.subhash(hashCode, levels[node]);
+            if (bitClear(mask, bucket)) {
+                return null;
+            }
+
+            int slot = slots[firstSlots[node] + populationCountAt(mask, bucket)];
+            int index = slot >>> TAG_BITS;
+            switch (slot & TAG_MASK) {
+                case NODE:
+                    node = index;
+                    break;
+                case ENTRY:
+                    return hashCode == hashCodes[index] && key.equals(keys[index]) ? (V) values[index] : null;
+                default:
+                    CollisionNode<K, V> collisionNode = collisions[index];
+                    return hashCode == collisionNode.keyHashCode() ? collisionNode.get(key) : null;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public BranchingFactor branchingFactor() {
+        return branching;
+    }
+
+    /**
+     * Returns a PersistentMap with the same entries, whose trie has the same shape as that of the frozen map.
+     */
+    public PersistentMap<K, V> thaw() {
+        PersistentMap<K, V> empty = PersistentMap.create(branching);
+        return size == 0 ? empty : empty.withRoot(thawNode(0), size);
+    }
+
+    private SubMap thawNode(int node) {
+        Object[] entries = new Object[Long.bitCount(masks[node])];
+        for (int i = 0; i < entries.length; i++) {
+            int slot = slots[firstSlots[node] + i];
+            int index = slot >>> TAG_BITS;
+            switch (slot & TAG_MASK) {
+                case NODE:
+                    SubMap child = thawNode(index);
+                    entries[i] = prefixMasks[index] == 0 ? child
+                            : new CompressedNode(prefixes[index], levels[index], child);
+                    break;
+                case ENTRY:
+                    entries[i] = new KeyEntry<>(keys[index], values[index]);
+                    break;
+                default:
+                    entries[i] = collisions[index];
+            }
+        }
+        return SubMap.of(masks[node], entries);
+    }
+
+    /**
+     * Numbers the nodes breadth-first, and then fills in the arrays. Both passes visit the children of the nodes in
+     * the same order, so the second pass numbers them by counting them.
+     */
+    private static final class Builder<K, V> {
+        private final BranchingFactor branching;
+        private final List<Node> nodes = new ArrayList<>();
+
+        Builder(BranchingFactor branching) {
+            this.branching = branching;
+        }
+
+        FrozenMap<K, V> build(PersistentMap<K, V> map) {
+            int size = map.size();
+            if (size == 0) {
+                return new FrozenMap<>(branching, 0, new long[0], new byte[0], new int[0], new int[0],
+                        new int[0], new int[0], new Object[0], new Object[0], new int[0], new CollisionNode[0]);
+            }
+
+            nodes.add(new Node(map.root(), 0, 0, 0));
+            int slotCount = 0;
+            int collisionCount = 0;
+            for (int node = 0; node < nodes.size(); node++) {
+                Node current = nodes.get(node);
+                for (int i = 0; i < current.subMap.capacity(); i++) {
+                    Object entry = current.subMap.entryAt(i);
+                    if (isCompressed(entry)) {
+                        CompressedNode compressed = (CompressedNode) entry;
+                        int prefixMask = branching.levelMask(current.level + 1, compressed.level());
+                        nodes.add(new Node(compressed.child(), compressed.level(), compressed.prefix(), prefixMask));
+                    } else if (isSubmap(entry)) {
+                        nodes.add(new Node((SubMap) entry, current.level + 1, 0, 0));
+                    } else if (isCollision(entry)) {
+                        collisionCount++;
+                    }
+                }
+                slotCount += current.subMap.capacity();
+            }
+
+            int count = nodes.size();
+            long[] masks = new long[count];
+            byte[] levels = new byte[count];
+            int[] prefixes = new int[count];
+            int[] prefixMasks = new int[count];
+            int[] firstSlots = new int[count];
+            int[] slots = new int[slotCount];
+            Object[] keys = new Object[size];
+            Object[] values = new Object[size];
+            int[] hashCodes = new int[size];
+            CollisionNode<K, V>[] collisions = new CollisionNode[collisionCount];
+
+            int slot = 0;
+            int child = 1;
+            int entries = 0;
+            int collision = 0;
+            for (int node = 0; node < count; node++) {
+                Node current = nodes.get(node);
+                masks[node] = current.subMap.mask();
+                levels[node] = (byte) current.level;
+                prefixes[node] = current.prefix;
+                prefixMasks[node] = current.prefixMask;
+                firstSlots[node] = slot;
+                for (int i = 0; i < current.subMap.capacity(); i++) {
+                    Object entry = current.subMap.entryAt(i);
+                    if (isKeyValue(entry)) {
+                        KeyEntry<K, V> keyEntry = (KeyEntry<K, V>) entry;
+                        keys[entries] = keyEntry.key();
+                        values[entries] = keyEntry.value();
+                        hashCodes[entries] = keyEntry.key().hashCode();
+                        slots[slot++] = entries++ << TAG_BITS | ENTRY;
+                    } else if (isCollision(entry)) {
+                        collisions[collision] = (CollisionNode<K, V>) entry;
+                        slots[slot++] = collision++ << TAG_BITS | COLLISION;
+                    } else {
+                        slots[slot++] = child++ << TAG_BITS | NODE;
+                    }
+                }
+            }
+            return new FrozenMap<>(branching, size, masks, levels, prefixes, prefixMasks, firstSlots, slots,
+                    keys, values, hashCodes, collisions);
+        }
+    }
+
+    private static final class Node {
+        final SubMap subMap;
+        final int level;
+        final int prefix;
+        final int prefixMask;
+
+        Node(SubMap subMap, int level, int prefix, int prefixMask) {
+            this.subMap = subMap;
+            this.level = level;
+            this.prefix = prefix;
+            this.prefixMask = prefixMask;
+        }
+    }
+}
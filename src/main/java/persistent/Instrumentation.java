@@ -0,0 +1,135 @@
+package persistent;
+
+import persistent.PersistentMap.CompressedNode;
+import persistent.PersistentMap.SubMap;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import static persistent.PersistentMap.isCompressed;
+import static persistent.PersistentMap.isSubmap;
+
+/**
+ * Measures the operations on instrumented maps.
+ *
+ * Instrumentation is enabled with the {@code persistent.instrumentation} system property. Since ENABLED is a
+ * static final constant, the JIT compiler removes the instrumentation from the hot paths when it is disabled.
+ *
+ * An instrumented operation carries a {@link Trace} through its descent, which counts the nodes visited and the
+ * nodes created on the way, so that the path of the key is walked once. The sizes of the created nodes are
+ * estimated with {@link NodeSizes} rather than measured.
+ *
+ * The operations are also committed as Flight Recorder events when the JVM provides the jdk.jfr module. The event
+ * class is built from src/jfr only on JDKs which have it, and is looked up reflectively once instrumentation is
+ * enabled, so the library neither compiles nor links against jdk.jfr otherwise.
+ */
+final class Instrumentation {
+    static final boolean ENABLED = Boolean.getBoolean("persistent.instrumentation");
+    /**
+     * The static commit method of MapOperationEvent, or null if the events are not available.
+     */
+    private static final MethodHandle FLIGHT_RECORDER = ENABLED ? flightRecorder() : null;
+
+    enum Operation {
+        PUT, REMOVE, GET
+    }
+
+    private Instrumentation() {
+    }
+
+    private static MethodHandle flightRecorder() {
+        try {
+            Class<?> events = Class.forName("persistent.MapOperationEvent");
+            return MethodHandles.lookup().findStatic(events, "commit", MethodType.methodType(void.class,
+                    String.class, String.class, int.class, int.class, int.class, long.class));
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a trace for an operation on a map with the given statistics, or null if the operation is not
+     * measured.
+     */
+    static Trace trace(MapStats stats) {
+        return ENABLED && stats != null ? new Trace() : null;
+    }
+
+    /**
+     * Records a traced operation, which produced a new version of the map if changed is true.
+     */
+    static void record(MapStats stats, Operation operation, Trace trace, boolean changed) {
+        long bytes = changed ? NodeSizes.MAP + trace.bytes : 0;
+        stats.record(operation, trace.depth, trace.nodes, trace.slots, bytes, trace.split, trace.collisionHit);
+        if (FLIGHT_RECORDER != null) {
+            try {
+                FLIGHT_RECORDER.invokeExact(stats.name(), operation.name(), trace.depth, trace.nodes, trace.slots,
+                        bytes);
+            } catch (Throwable e) {
+                throw new IllegalStateException("Cannot commit a Flight Recorder event", e);
+            }
+        }
+    }
+
+    /**
+     * The measurements of a single operation, updated along its descent.
+     */
+    static final class Trace {
+        private int depth;
+        private int nodes;
+        private int slots;
+        private long bytes;
+        private boolean split;
+        private boolean collisionHit;
+
+        /**
+         * Counts a node visited on the search path.
+         */
+        void visit() {
+            depth++;
+        }
+
+        /**
+         * Counts a node created for the new version.
+         */
+        void copied(Object node) {
+            nodes++;
+            slots += NodeSizes.slotsOf(node);
+            bytes += NodeSizes.sizeOf(node);
+        }
+
+        /**
+         * Counts the nodes of a subtree created to hold a new key next to the old entry of its bucket, which is
+         * shared with the old version together with the child of a compressed node.
+         */
+        void created(Object node, Object old) {
+            if (node == old || (isCompressed(old) && node == ((CompressedNode) old).child())) {
+                return;
+            }
+            copied(node);
+            if (isSubmap(node)) {
+                SubMap subMap = (SubMap) node;
+                for (int i = 0; i < subMap.capacity(); i++) {
+                    created(subMap.entryAt(i), old);
+                }
+            } else if (isCompressed(node)) {
+                created(((CompressedNode) node).child(), old);
+            }
+        }
+
+        /**
+         * Counts a put which split a leaf or a compressed path into a new SubMap.
+         */
+        void split() {
+            split = true;
+        }
+
+        /**
+         * Counts a search which reached a collision node of the same hash code.
+         */
+        void collisionHit() {
+            collisionHit = true;
+        }
+    }
+}
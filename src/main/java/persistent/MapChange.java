@@ -0,0 +1,82 @@
+package persistent;
+
+import java.util.Objects;
+
+import static java.lang.String.format;
+
+/**
+ * A change of one key between two versions of a PersistentMap, see {@link PersistentMap#diff(PersistentMap)}.
+ */
+public final class MapChange<K, V> {
+    public enum Type {
+        ADDED, UPDATED, REMOVED
+    }
+
+    private final Type type;
+    private final K key;
+    private final V oldValue;
+    private final V newValue;
+
+    private MapChange(Type type, K key, V oldValue, V newValue) {
+        this.type = type;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    public static <K, V> MapChange<K, V> added(K key, V value) {
+        return new MapChange<>(Type.ADDED, key, null, value);
+    }
+
+    public static <K, V> MapChange<K, V> updated(K key, V oldValue, V newValue) {
+        return new MapChange<>(Type.UPDATED, key, oldValue, newValue);
+    }
+
+    public static <K, V> MapChange<K, V> removed(K key, V value) {
+        return new MapChange<>(Type.REMOVED, key, value, null);
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    public K key() {
+        return key;
+    }
+
+    /**
+     * Returns the value in the older version, or null if the key was added.
+     */
+    public V oldValue() {
+        return oldValue;
+    }
+
+    /**
+     * Returns the value in the newer version, or null if the key was removed.
+     */
+    public V newValue() {
+        return newValue;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        } else if (!(o instanceof MapChange)) {
+            return false;
+        }
+        MapChange<?, ?> other = (MapChange<?, ?>) o;
+        return type == other.type && key.equals(other.key)
+                && Objects.equals(oldValue, other.oldValue) && Objects.equals(newValue, other.newValue);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, key, oldValue, newValue);
+    }
+
+    @Override
+    public String toString() {
+        return format("%s(%s, %s -> %s)", type, key, oldValue, newValue);
+    }
+}
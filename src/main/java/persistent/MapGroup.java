@@ -0,0 +1,228 @@
+package persistent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+import static java.lang.String.format;
+
+/**
+ * Holds several related PersistentMaps, such as primary data and its secondary indexes, and updates them together
+ * with optimistic transactions.
+ *
+ * All current versions are published as one immutable {@link Snapshot} through an atomic reference, so readers see
+ * every committed transaction either entirely or not at all, without locking. A transaction stages its updates on
+ * the snapshot it started from, and commits them with a compare-and-set of the snapshot. Commits validate the maps
+ * read by the transaction: if any of them was changed by another commit in the meantime, the commit fails. The
+ * updates of maps which were written without being read are replayed on their latest versions instead, so blind
+ * writers to the same map do not conflict.
+ */
+public final class MapGroup {
+    private final AtomicReference<Snapshot> current =
+            new AtomicReference<>(new Snapshot(this, new PersistentMap[0], 0));
+
+    /**
+     * Adds a map to the group, and returns the reference to use for accessing its versions.
+     */
+    public <K, V> Ref<K, V> add(PersistentMap<K, V> initial) {
+        while (true) {
+            Snapshot snapshot = current.get();
+            PersistentMap<?, ?>[] maps = Arrays.copyOf(snapshot.maps, snapshot.maps.length + 1);
+            maps[snapshot.maps.length] = initial;
+            if (current.compareAndSet(snapshot, new Snapshot(this, maps, snapshot.version + 1))) {
+                return new Ref<>(this, snapshot.maps.length);
+            }
+        }
+    }
+
+    /**
+     * Returns the latest committed versions of all maps.
+     */
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * Starts a transaction on the latest committed versions.
+     */
+    public Transaction begin() {
+        return new Transaction(current.get());
+    }
+
+    /**
+     * Runs the body in a transaction and commits it, running it again on the latest versions until the commit
+     * succeeds. The body may run several times, so it should have no side effects outside of the transaction.
+     */
+    public <R> R update(Function<? super Transaction, ? extends R> body) {
+        while (true) {
+            Transaction transaction = begin();
+            R result = body.apply(transaction);
+            if (transaction.commit()) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Identifies a map of the group.
+     */
+    public static final class Ref<K, V> {
+        private final MapGroup group;
+        private final int index;
+
+        private Ref(MapGroup group, int index) {
+            this.group = group;
+            this.index = index;
+        }
+
+        private int indexIn(MapGroup expected) {
+            if (group != expected) {
+                throw new IllegalArgumentException(format("Map %d belongs to another group", index));
+            }
+            return index;
+        }
+
+        @Override
+        public String toString() {
+            return format("Ref(%d)", index);
+        }
+    }
+
+    /**
+     * The versions of all maps published by one commit.
+     */
+    public static final class Snapshot {
+        private final MapGroup group;
+        private final PersistentMap<?, ?>[] maps;
+        private final long version;
+
+        private Snapshot(MapGroup group, PersistentMap<?, ?>[] maps, long version) {
+            this.group = group;
+            this.maps = maps;
+            this.version = version;
+        }
+
+        public <K, V> PersistentMap<K, V> get(Ref<K, V> ref) {
+            return (PersistentMap<K, V>) maps[ref.indexIn(group)];
+        }
+
+        /**
+         * Returns the number of commits which led to this snapshot, including the additions of maps.
+         */
+        public long version() {
+            return version;
+        }
+    }
+
+    /**
+     * Stages updates of the maps of the group, to be committed atomically. Reads see the staged updates. A
+     * transaction is used by a single thread, and commits once.
+     */
+    public final class Transaction {
+        private final Snapshot base;
+        private final PersistentMap<?, ?>[] working;
+        private final List<List<UnaryOperator<PersistentMap<?, ?>>>> writes;
+        private final BitSet read = new BitSet();
+        private boolean finished;
+
+        private Transaction(Snapshot base) {
+            this.base = base;
+            this.working = base.maps.clone();
+            this.writes = new ArrayList<>(working.length);
+            for (int i = 0; i < working.length; i++) {
+                writes.add(null);
+            }
+        }
+
+        /**
+         * Returns the version of the map seen by the transaction, and validates on commit that it is unchanged.
+         */
+        public <K, V> PersistentMap<K, V> get(Ref<K, V> ref) {
+            int index = checkedIndex(ref);
+            read.set(index);
+            return (PersistentMap<K, V>) working[index];
+        }
+
+        public <K, V> V get(Ref<K, V> ref, K key) {
+            return get(ref).get(key);
+        }
+
+        public <K, V> Transaction put(Ref<K, V> ref, K key, V value) {
+            return apply(ref, map -> map.put(key, value));
+        }
+
+        public <K, V> Transaction remove(Ref<K, V> ref, K key) {
+            return apply(ref, map -> map.remove(key));
+        }
+
+        /**
+         * Stages an arbitrary update of the map. Unless the transaction also reads the map, the update is replayed
+         * on the latest version of the map when another commit changed it, so it should be a pure function.
+         */
+        public <K, V> Transaction apply(Ref<K, V> ref, UnaryOperator<PersistentMap<K, V>> update) {
+            int index = checkedIndex(ref);
+            UnaryOperator<PersistentMap<?, ?>> write = map -> update.apply((PersistentMap<K, V>) map);
+            working[index] = write.apply(working[index]);
+            if (writes.get(index) == null) {
+                writes.set(index, new ArrayList<>());
+            }
+            writes.get(index).add(write);
+            return this;
+        }
+
+        /**
+         * Publishes the staged updates atomically. Returns false, publishing nothing, if another commit changed a
+         * map read by this transaction since it started.
+         */
+        public boolean commit() {
+            if (finished) {
+                throw new IllegalStateException("Transaction already committed");
+            }
+            finished = true;
+
+            while (true) {
+                Snapshot latest = current.get();
+                for (int i = read.nextSetBit(0); i >= 0; i = read.nextSetBit(i + 1)) {
+                    if (latest.maps[i] != base.maps[i]) {
+                        return false;
+                    }
+                }
+
+                PersistentMap<?, ?>[] maps = latest.maps.clone();
+                boolean changed = false;
+                for (int i = 0; i < working.length; i++) {
+                    List<UnaryOperator<PersistentMap<?, ?>>> mapWrites = writes.get(i);
+                    if (mapWrites == null) {
+                        continue;
+                    } else if (latest.maps[i] == base.maps[i]) {
+                        maps[i] = working[i];
+                    } else {
+                        for (UnaryOperator<PersistentMap<?, ?>> write : mapWrites) {
+                            maps[i] = write.apply(maps[i]);
+                        }
+                    }
+                    changed |= maps[i] != latest.maps[i];
+                }
+
+                if (!changed || current.compareAndSet(latest, new Snapshot(MapGroup.this, maps, latest.version + 1))) {
+                    return true;
+                }
+            }
+        }
+
+        private int checkedIndex(Ref<?, ?> ref) {
+            if (finished) {
+                throw new IllegalStateException("Transaction already committed");
+            }
+            int index = ref.indexIn(MapGroup.this);
+            if (index >= working.length) {
+                throw new IllegalArgumentException(format("Map %d was added after the transaction started", index));
+            }
+            return index;
+        }
+    }
+}
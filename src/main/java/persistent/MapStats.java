@@ -0,0 +1,134 @@
+package persistent;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+
+/**
+ * Operation counters of an instrumented PersistentMap, see {@link PersistentMap#instrumented(MapStats)}.
+ *
+ * The counters are striped LongAdders, so that a single instance can be shared by all versions of a map updated
+ * and read from many threads. They are only updated when instrumentation is enabled with the
+ * {@code persistent.instrumentation} system property.
+ */
+public final class MapStats {
+    private final String name;
+
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder removes = new LongAdder();
+    private final LongAdder gets = new LongAdder();
+    private final LongAdder nodesCopied = new LongAdder();
+    private final LongAdder slotsCopied = new LongAdder();
+    private final LongAdder depthTraversed = new LongAdder();
+    private final LongAdder estimatedBytesAllocated = new LongAdder();
+    private final LongAdder splits = new LongAdder();
+    private final LongAdder collisionHits = new LongAdder();
+
+    public MapStats(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public long puts() {
+        return puts.sum();
+    }
+
+    public long removes() {
+        return removes.sum();
+    }
+
+    public long gets() {
+        return gets.sum();
+    }
+
+    /**
+     * Returns the number of trie nodes created by path copying.
+     */
+    public long nodesCopied() {
+        return nodesCopied.sum();
+    }
+
+    /**
+     * Returns the number of array slots (SubMap entries, collision keys and values) written into the copied nodes.
+     */
+    public long slotsCopied() {
+        return slotsCopied.sum();
+    }
+
+    /**
+     * Returns the total number of nodes visited while searching for the keys.
+     */
+    public long depthTraversed() {
+        return depthTraversed.sum();
+    }
+
+    /**
+     * Returns the estimated number of bytes allocated for the copied nodes and the new map versions.
+     */
+    public long estimatedBytesAllocated() {
+        return estimatedBytesAllocated.sum();
+    }
+
+    /**
+     * Returns the number of puts which split a leaf or a compressed path into a new SubMap.
+     */
+    public long splits() {
+        return splits.sum();
+    }
+
+    /**
+     * Returns the number of operations whose key was searched for in a collision node.
+     */
+    public long collisionHits() {
+        return collisionHits.sum();
+    }
+
+    public void reset() {
+        puts.reset();
+        removes.reset();
+        gets.reset();
+        nodesCopied.reset();
+        slotsCopied.reset();
+        depthTraversed.reset();
+        estimatedBytesAllocated.reset();
+        splits.reset();
+        collisionHits.reset();
+    }
+
+    void record(Instrumentation.Operation operation, int depth, int nodes, int slots, long bytes,
+                boolean split, boolean collisionHit) {
+        switch (operation) {
+            case PUT:
+                puts.increment();
+                break;
+            case REMOVE:
+                removes.increment();
+                break;
+            default:
+                gets.increment();
+        }
+        depthTraversed.add(depth);
+        if (nodes > 0) {
+            nodesCopied.add(nodes);
+            slotsCopied.add(slots);
+            estimatedBytesAllocated.add(bytes);
+        }
+        if (split) {
+            splits.increment();
+        }
+        if (collisionHit) {
+            collisionHits.increment();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return format("%s: puts=%d, removes=%d, gets=%d, nodesCopied=%d, slotsCopied=%d, depthTraversed=%d, " +
+                        "estimatedBytesAllocated=%d, splits=%d, collisionHits=%d",
+                name, puts(), removes(), gets(), nodesCopied(), slotsCopied(), depthTraversed(),
+                estimatedBytesAllocated(), splits(), collisionHits());
+    }
+}
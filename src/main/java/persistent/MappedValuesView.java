@@ -0,0 +1,178 @@
+package persistent;
+
+import persistent.PersistentMap.CollisionNode;
+import persistent.PersistentMap.CompressedNode;
+import persistent.PersistentMap.KeyEntry;
+import persistent.PersistentMap.SubMap;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+import static persistent.PersistentMap.isCollision;
+import static persistent.PersistentMap.isCompressed;
+import static persistent.PersistentMap.isKeyValue;
+import static persistent.PersistentMap.isVacant;
+import static persistent.PersistentMap.populationCountAt;
+
+/**
+ * A read-only view of a PersistentMap with its values transformed lazily.
+ *
+ * Values are transformed when first accessed and memoized per leaf, so that each one is computed at most once
+ * even when the view is read from many threads. Reading a few keys out of a large view costs only the lookups
+ * and the transformations of those keys.
+ *
+ * The memo follows the trie: it holds one slot array per SubMap with accessed leaves, keyed by the identity of
+ * the node, rather than one entry per key. Once the view is forced, reads are served by the forced map.
+ */
+public final class MappedValuesView<K, R> {
+    private static final Object NULL_VALUE = new Object();
+
+    private final PersistentMap<K, Object> source;
+    private final Function<Object, ? extends R> mapper;
+    /**
+     * The transformed leaves of each SubMap, by position: the transformed value of a KeyEntry, or the array of the
+     * transformed values of a CollisionNode.
+     */
+    private final ConcurrentMap<SubMap, AtomicReferenceArray<Object>> memoized = new ConcurrentHashMap<>();
+    private volatile PersistentMap<K, R> forced;
+
+    static <K, V, R> MappedValuesView<K, R> create(PersistentMap<K, V> source, Function<? super V, ? extends R> mapper) {
+        return new MappedValuesView<>((PersistentMap<K, Object>) source, (Function<Object, ? extends R>) mapper);
+    }
+
+    private MappedValuesView(PersistentMap<K, Object> source, Function<Object, ? extends R> mapper) {
+        this.source = source;
+        this.mapper = mapper;
+    }
+
+    public R get(K key) {
+        PersistentMap<K, R> result = forced;
+        if (result != null) {
+            return result.get(key);
+        } else if (source.isEmpty()) {
+            return null;
+        }
+
+        BranchingFactor branching = source.branchingFactor();
+        int hashCode = key.hashCode();
+        SubMap subMap = source.root();
+        int level = 0;
+        while (true) {
+            int bucket = branching.subhash(hashCode, level);
+            Object entry = subMap.get(bucket);
+            if (isVacant(entry)) {
+                return null;
+            } else if (isKeyValue(entry)) {
+                KeyEntry<K, Object> keyEntry = (KeyEntry<K, Object>) entry;
+                if (hashCode != keyEntry.key().hashCode() || !key.equals(keyEntry.key())) {
+                    return null;
+                }
+                return unmask(mapped(subMap, populationCountAt(subMap.mask(), bucket), entry));
+            } else if (isCollision(entry)) {
+                CollisionNode<K, Object> collisionNode = (CollisionNode<K, Object>) entry;
+                int index = hashCode == collisionNode.keyHashCode() ? collisionNode.indexOf(key) : -1;
+                if (index < 0) {
+                    return null;
+                }
+                Object[] values = (Object[]) mapped(subMap, populationCountAt(subMap.mask(), bucket), entry);
+                return (R) values[index];
+            } else if (isCompressed(entry)) {
+                CompressedNode compressed = (CompressedNode) entry;
+                if (!compressed.matches(branching, level, hashCode)) {
+                    return null;
+                }
+                subMap = compressed.child();
+                level = compressed.level();
+            } else {
+                subMap = (SubMap) entry;
+                level++;
+            }
+        }
+    }
+
+    public Set<K> keySet() {
+        return source.keySet();
+    }
+
+    public boolean isEmpty() {
+        return source.isEmpty();
+    }
+
+    public int size() {
+        return source.size();
+    }
+
+    /**
+     * Materializes the view into a PersistentMap with the same trie shape as the source map, transforming the
+     * values not accessed so far and reusing the memoized ones.
+     */
+    public synchronized PersistentMap<K, R> force() {
+        PersistentMap<K, R> result = forced;
+        if (result == null) {
+            result = source.isEmpty() ? source.withRoot(null, 0)
+                    : source.withRoot(forceSubMap(source.root()), source.size());
+            forced = result;
+        }
+        return result;
+    }
+
+    private SubMap forceSubMap(SubMap subMap) {
+        Object[] entries = new Object[subMap.capacity()];
+        for (int i = 0; i < entries.length; i++) {
+            Object entry = subMap.entryAt(i);
+            if (isKeyValue(entry)) {
+                entries[i] = new KeyEntry<>(((KeyEntry<K, Object>) entry).key(), unmask(mapped(subMap, i, entry)));
+            } else if (isCollision(entry)) {
+                entries[i] = ((CollisionNode<K, Object>) entry).withValues((Object[]) mapped(subMap, i, entry));
+            } else if (isCompressed(entry)) {
+                CompressedNode compressed = (CompressedNode) entry;
+                entries[i] = new CompressedNode(compressed.prefix(), compressed.level(),
+                        forceSubMap(compressed.child()));
+            } else {
+                entries[i] = forceSubMap((SubMap) entry);
+            }
+        }
+        return SubMap.of(subMap.mask(), entries);
+    }
+
+    /**
+     * Returns the memoized transformation of the leaf at the position in the SubMap, computing it once.
+     */
+    private Object mapped(SubMap subMap, int index, Object leaf) {
+        AtomicReferenceArray<Object> slots = memoized.get(subMap);
+        if (slots == null) {
+            slots = memoized.computeIfAbsent(subMap, node -> new AtomicReferenceArray<>(node.capacity()));
+        }
+        Object mapped = slots.get(index);
+        if (mapped == null) {
+            synchronized (slots) {
+                mapped = slots.get(index);
+                if (mapped == null) {
+                    mapped = transform(leaf);
+                    slots.set(index, mapped);
+                }
+            }
+        }
+        return mapped;
+    }
+
+    private Object transform(Object leaf) {
+        if (isKeyValue(leaf)) {
+            R result = mapper.apply(((KeyEntry<K, Object>) leaf).value());
+            return result != null ? result : NULL_VALUE;
+        }
+        CollisionNode<K, Object> collisionNode = (CollisionNode<K, Object>) leaf;
+        Object[] values = new Object[collisionNode.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = mapper.apply(collisionNode.valueAt(i));
+        }
+        return values;
+    }
+
+    private static <R> R unmask(Object mapped) {
+        return mapped != NULL_VALUE ? (R) mapped : null;
+    }
+}
@@ -0,0 +1,190 @@
+package persistent;
+
+import persistent.PersistentMap.CompressedNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static java.lang.String.format;
+import static persistent.PersistentMap.isCompressed;
+import static persistent.StructuralDiff.bucketEntry;
+import static persistent.StructuralDiff.bucketMask;
+import static persistent.StructuralDiff.isInner;
+import static persistent.StructuralDiff.samePath;
+
+/**
+ * Joins several maps on their keys by walking their tries side by side, in trie order.
+ *
+ * The walk visits the buckets occupied in all of the nodes at the same position of an inner join, or in any of
+ * them for an outer join, so the subtrees missing from a map are skipped without being visited. A subtree shared
+ * by all the maps holding it, e.g. by versions derived from a common ancestor, is walked once and its values are
+ * reported for each of them. Nodes which are not aligned, such as a leaf against a SubMap, are joined by key.
+ *
+ * The keys are reported in trie order, i.e. sorted by the unsigned values of their hash codes.
+ */
+public final class MergeJoin<K, V> {
+
+    public enum Mode {
+        /**
+         * Reports the keys present in all of the maps.
+         */
+        INNER,
+        /**
+         * Reports the keys present in any of the maps, with null values for the maps without them.
+         */
+        OUTER
+    }
+
+    private final Mode mode;
+    private final BranchingFactor branching;
+    private final BiConsumer<? super K, ? super List<V>> action;
+    private final int width;
+
+    private MergeJoin(Mode mode, BranchingFactor branching, int width, BiConsumer<? super K, ? super List<V>> action) {
+        this.mode = mode;
+        this.branching = branching;
+        this.width = width;
+        this.action = action;
+    }
+
+    /**
+     * Calls the action for every joined key with the list of its values, holding the value of the key in each map
+     * in the order of the maps. All maps must have the same branching factor.
+     */
+    public static <K, V> void forEach(Mode mode, List<? extends PersistentMap<K, ? extends V>> maps,
+                                      BiConsumer<? super K, ? super List<V>> action) {
+        if (maps.isEmpty()) {
+            throw new IllegalArgumentException("No maps to join");
+        }
+        BranchingFactor branching = maps.get(0).branchingFactor();
+        Object[] roots = new Object[maps.size()];
+        for (int i = 0; i < roots.length; i++) {
+            PersistentMap<K, ? extends V> map = maps.get(i);
+            if (map.branchingFactor() != branching) {
+                throw new IllegalArgumentException(format("Branching factor mismatch: %s and %s",
+                        branching, map.branchingFactor()));
+            }
+            roots[i] = map.isEmpty() ? null : map.root();
+        }
+
+        // The roots are SubMaps at level 0, as if they were stored in a bucket at level -1:
+        new MergeJoin<K, V>(mode, branching, roots.length, action).join(roots, -1);
+    }
+
+    /**
+     * Joins the nodes stored in the same bucket at bucketLevel of each map, null for the maps without any.
+     */
+    private void join(Object[] nodes, int bucketLevel) {
+        int present = 0;
+        Object shared = null;
+        boolean allShared = true;
+        boolean allInner = true;
+        for (Object node : nodes) {
+            if (node != null) {
+                present++;
+                allShared &= shared == null || shared == node;
+                allInner &= isInner(node);
+                shared = node;
+            }
+        }
+
+        if (present == 0 || (mode == Mode.INNER && present < width)) {
+            return;
+        } else if (allShared) {
+            BulkOperations.<K, V>forEachEntry(shared, (key, value) -> report(key, nodes, value));
+        } else if (allInner) {
+            joinInner(nodes, bucketLevel);
+        } else {
+            joinEntries(nodes);
+        }
+    }
+
+    private void joinInner(Object[] nodes, int bucketLevel) {
+        CompressedNode path = alignedPath(nodes, bucketLevel);
+        if (path != null) {
+            Object[] children = new Object[width];
+            for (int i = 0; i < width; i++) {
+                children[i] = nodes[i] != null ? ((CompressedNode) nodes[i]).child() : null;
+            }
+            join(children, path.level() - 1);
+            return;
+        }
+
+        int level = bucketLevel + 1;
+        long mask = mode == Mode.INNER ? -1L : 0L;
+        for (Object node : nodes) {
+            if (node != null) {
+                long nodeMask = bucketMask(branching, node, level);
+                mask = mode == Mode.INNER ? mask & nodeMask : mask | nodeMask;
+            }
+        }
+        for (; mask != 0; mask &= mask - 1) {
+            int bucket = Long.numberOfTrailingZeros(mask);
+            Object[] entries = new Object[width];
+            for (int i = 0; i < width; i++) {
+                entries[i] = nodes[i] != null ? bucketEntry(branching, nodes[i], level, bucket) : null;
+            }
+            join(entries, level);
+        }
+    }
+
+    /**
+     * Returns the compressed path shared by all the present nodes, or null if they are not all compressed nodes
+     * along the same path.
+     */
+    private CompressedNode alignedPath(Object[] nodes, int bucketLevel) {
+        CompressedNode path = null;
+        for (Object node : nodes) {
+            if (node == null) {
+                continue;
+            } else if (!isCompressed(node)) {
+                return null;
+            } else if (path != null && !samePath(branching, path, (CompressedNode) node, bucketLevel)) {
+                return null;
+            }
+            path = (CompressedNode) node;
+        }
+        return path;
+    }
+
+    /**
+     * Joins the entries of nodes at least one of which is a leaf, by key.
+     */
+    private void joinEntries(Object[] nodes) {
+        Map<K, Object[]> tuples = new LinkedHashMap<>();
+        Map<K, Integer> counts = new LinkedHashMap<>();
+        for (int i = 0; i < width; i++) {
+            int map = i;
+            if (nodes[map] != null) {
+                BulkOperations.<K, V>forEachEntry(nodes[map], (key, value) -> {
+                    tuples.computeIfAbsent(key, k -> new Object[width])[map] = value;
+                    counts.merge(key, 1, Integer::sum);
+                });
+            }
+        }
+
+        List<K> keys = new ArrayList<>(tuples.keySet());
+        keys.sort(Comparator.comparingInt(key -> key.hashCode() ^ Integer.MIN_VALUE));
+        for (K key : keys) {
+            if (mode == Mode.OUTER || counts.get(key) == width) {
+                action.accept(key, Arrays.asList((V[]) tuples.get(key)));
+            }
+        }
+    }
+
+    /**
+     * Reports the value of a key below a subtree shared by the maps whose nodes are present.
+     */
+    private void report(K key, Object[] nodes, V value) {
+        Object[] values = new Object[width];
+        for (int i = 0; i < width; i++) {
+            values[i] = nodes[i] != null ? value : null;
+        }
+        action.accept(key, Arrays.asList((V[]) values));
+    }
+}
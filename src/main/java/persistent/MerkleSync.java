@@ -0,0 +1,341 @@
+package persistent;
+
+import persistent.PersistentMap.CollisionNode;
+import persistent.PersistentMap.CompressedNode;
+import persistent.PersistentMap.KeyEntry;
+import persistent.PersistentMap.SubMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static java.lang.String.format;
+import static persistent.PersistentMap.isCollision;
+import static persistent.PersistentMap.isCompressed;
+import static persistent.PersistentMap.isKeyValue;
+import static persistent.PersistentMap.isSubmap;
+
+/**
+ * Synchronizes a replica of a PersistentMap with its source over a pair of byte streams, transferring only the
+ * entries which differ.
+ *
+ * The key space is divided into regions: a region at level n holds the keys whose hash codes share the subhashes
+ * of the first n levels with the region prefix. The fingerprint of a region is the sum of the fingerprints of its
+ * entries, computed from their encoded content, which does not depend on the shape of the tries, see
+ * {@link Fingerprints}.
+ *
+ * The replica drives the exchange top-down, one level per round trip. It asks the source to describe a batch of
+ * regions: a region is described by the fingerprints of its non-empty child regions, or by its entries once the
+ * source trie holds them in a single leaf. The replica then descends only into the child regions whose
+ * fingerprints differ from its own, and replaces the entries of the regions it received. Both sides must use the
+ * same branching factor, and keys must have the same hash codes in both processes.
+ *
+ * The exchange is half-duplex: the replica sends a batch of at most {@link #MAX_REGIONS_PER_REQUEST} regions and
+ * reads all the replies before sending the next one, and the source reads a whole batch before replying to it. So
+ * neither side writes while the other one is writing, and the streams cannot deadlock however small their
+ * buffers are.
+ */
+public final class MerkleSync {
+    private static final int MAGIC = 0x4D534E43;
+    private static final byte VERSION = 2;
+
+    /**
+     * The maximum number of regions described per round trip.
+     */
+    static final int MAX_REGIONS_PER_REQUEST = 256;
+
+    private static final byte STATUS_OK = 0;
+    private static final byte STATUS_BRANCHING_MISMATCH = 1;
+
+    private static final byte REGION_CHILDREN = 0;
+    private static final byte REGION_ENTRIES = 1;
+
+    private MerkleSync() {
+    }
+
+    /**
+     * Answers the requests of one replica until it is synchronized.
+     */
+    public static <K, V> void serve(PersistentMap<K, V> source, Codec<K> keyCodec, Codec<V> valueCodec,
+                                    InputStream input, OutputStream output) throws IOException {
+        serve(source, new Fingerprints<>(keyCodec, valueCodec), input, output);
+    }
+
+    /**
+     * Answers the requests of one replica until it is synchronized, reusing the fingerprints already computed for
+     * earlier versions of the source.
+     */
+    public static <K, V> void serve(PersistentMap<K, V> source, Fingerprints<K, V> fingerprints,
+                                    InputStream input, OutputStream output) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        BranchingFactor branching = source.branchingFactor();
+
+        readHandshake(in);
+        int replicaBranching = in.readByte();
+        if (replicaBranching < 0 || replicaBranching >= BranchingFactor.values().length) {
+            out.writeByte(STATUS_BRANCHING_MISMATCH);
+            out.flush();
+            throw new IOException(format("Unknown branching factor: %d", replicaBranching));
+        } else if (replicaBranching != branching.ordinal()) {
+            out.writeByte(STATUS_BRANCHING_MISMATCH);
+            out.flush();
+            throw new IOException(format("Branching factor mismatch: source %s, replica %s",
+                    branching, BranchingFactor.values()[replicaBranching]));
+        }
+        out.writeByte(STATUS_OK);
+        out.writeLong(fingerprints.of(source));
+        out.flush();
+
+        int[] levels = new int[MAX_REGIONS_PER_REQUEST];
+        int[] prefixes = new int[MAX_REGIONS_PER_REQUEST];
+        for (int count = in.readInt(); count > 0; count = in.readInt()) {
+            if (count > MAX_REGIONS_PER_REQUEST) {
+                throw new IOException(format("Too many regions requested: %d", count));
+            }
+            for (int i = 0; i < count; i++) {
+                levels[i] = in.readByte();
+                prefixes[i] = in.readInt();
+            }
+            for (int i = 0; i < count; i++) {
+                describeRegion(source, levels[i], prefixes[i], fingerprints, out);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Returns the replica updated to hold the same entries as the source served on the other end of the streams.
+     */
+    public static <K, V> PersistentMap<K, V> synchronize(PersistentMap<K, V> replica, Codec<K> keyCodec,
+                                                         Codec<V> valueCodec, InputStream input,
+                                                         OutputStream output) throws IOException {
+        return synchronize(replica, new Fingerprints<>(keyCodec, valueCodec), input, output);
+    }
+
+    /**
+     * Returns the replica updated to hold the same entries as the source served on the other end of the streams,
+     * reusing the fingerprints already computed for earlier versions of the replica.
+     */
+    public static <K, V> PersistentMap<K, V> synchronize(PersistentMap<K, V> replica, Fingerprints<K, V> fingerprints,
+                                                         InputStream input, OutputStream output) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+        BranchingFactor branching = replica.branchingFactor();
+
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(branching.ordinal());
+        out.flush();
+        if (in.readByte() != STATUS_OK) {
+            throw new IOException(format("Branching factor mismatch: replica %s", branching));
+        }
+
+        List<int[]> pending = new ArrayList<>();
+        if (in.readLong() != fingerprints.of(replica)) {
+            pending.add(new int[]{0, 0});
+        }
+
+        while (!pending.isEmpty()) {
+            List<int[]> differing = new ArrayList<>();
+            for (int start = 0; start < pending.size(); start += MAX_REGIONS_PER_REQUEST) {
+                List<int[]> batch = pending.subList(start, Math.min(start + MAX_REGIONS_PER_REQUEST, pending.size()));
+                replica = requestRegions(replica, batch, fingerprints, in, out, differing);
+            }
+            pending = differing;
+        }
+
+        out.writeInt(0);
+        out.flush();
+        return replica;
+    }
+
+    /**
+     * Sends a batch of regions and reads their descriptions, replacing the regions received with their entries and
+     * adding the child regions which differ to the differing list.
+     */
+    private static <K, V> PersistentMap<K, V> requestRegions(PersistentMap<K, V> replica, List<int[]> batch,
+                                                             Fingerprints<K, V> fingerprints, DataInputStream in, DataOutputStream out,
+                                                             List<int[]> differing) throws IOException {
+        BranchingFactor branching = replica.branchingFactor();
+        out.writeInt(batch.size());
+        for (int[] region : batch) {
+            out.writeByte(region[0]);
+            out.writeInt(region[1]);
+        }
+        out.flush();
+
+        for (int[] region : batch) {
+            int level = region[0];
+            int prefix = region[1];
+            if (in.readByte() == REGION_ENTRIES) {
+                replica = replaceRegion(replica, level, prefix, readEntries(in, fingerprints));
+            } else {
+                long mask = in.readLong();
+                for (int bucket = 0; bucket < regionWidth(branching, level); bucket++) {
+                    int childPrefix = childPrefix(branching, level, prefix, bucket);
+                    long sourceFingerprint = Bits.bitSet(mask, bucket) ? in.readLong() : 0;
+                    if (sourceFingerprint != regionFingerprint(replica, level + 1, childPrefix, fingerprints)) {
+                        differing.add(new int[]{level + 1, childPrefix});
+                    }
+                }
+            }
+        }
+        return replica;
+    }
+
+    private static void readHandshake(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException(format("Not a synchronization request: %08x", magic));
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException(format("Unsupported protocol version: %d", version));
+        }
+    }
+
+    private static <K, V> void describeRegion(PersistentMap<K, V> source, int level, int prefix,
+                                              Fingerprints<K, V> fingerprints, DataOutputStream out)
+            throws IOException {
+        BranchingFactor branching = source.branchingFactor();
+        Object node = regionNode(source, level, prefix);
+        if (isSubmap(node)) {
+            SubMap subMap = (SubMap) node;
+            out.writeByte(REGION_CHILDREN);
+            out.writeLong(subMap.mask());
+            for (int i = 0; i < subMap.capacity(); i++) {
+                out.writeLong(fingerprints.of(subMap.entryAt(i)));
+            }
+        } else if (isCompressed(node)) {
+            CompressedNode compressed = (CompressedNode) node;
+            out.writeByte(REGION_CHILDREN);
+            out.writeLong(Bits.setBit(0L, branching.subhash(compressed.prefix(), level)));
+            out.writeLong(fingerprints.of(compressed.child()));
+        } else {
+            List<KeyEntry<K, V>> entries = new ArrayList<>();
+            if (inRegion(branching, level, prefix, node)) {
+                BulkOperations.<K, V>forEachEntry(node, (key, value) -> entries.add(new KeyEntry<>(key, value)));
+            }
+            out.writeByte(REGION_ENTRIES);
+            out.writeInt(entries.size());
+            for (KeyEntry<K, V> entry : entries) {
+                fingerprints.keyCodec().write(entry.key(), out);
+                fingerprints.valueCodec().write(entry.value(), out);
+            }
+        }
+    }
+
+    private static <K, V> Map<K, V> readEntries(DataInputStream in, Fingerprints<K, V> fingerprints)
+            throws IOException {
+        int count = in.readInt();
+        Map<K, V> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            K key = fingerprints.keyCodec().read(in);
+            entries.put(key, fingerprints.valueCodec().read(in));
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces all entries of the replica in the region with the entries received from the source.
+     */
+    private static <K, V> PersistentMap<K, V> replaceRegion(PersistentMap<K, V> replica, int level, int prefix,
+                                                            Map<K, V> entries) {
+        BranchingFactor branching = replica.branchingFactor();
+        Object node = regionNode(replica, level, prefix);
+        Set<K> localKeys = new HashSet<>();
+        if (node != null && inRegion(branching, level, prefix, node)) {
+            BulkOperations.<K, V>forEachEntry(node, (key, value) -> localKeys.add(key));
+        }
+
+        for (K key : localKeys) {
+            if (!entries.containsKey(key)) {
+                replica = replica.remove(key);
+            }
+        }
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            if (!localKeys.contains(entry.getKey()) || !Objects.equals(replica.get(entry.getKey()), entry.getValue())) {
+                replica = replica.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return replica;
+    }
+
+    private static <K, V> long regionFingerprint(PersistentMap<K, V> map, int level, int prefix,
+                                                 Fingerprints<K, V> fingerprints) {
+        Object node = regionNode(map, level, prefix);
+        return inRegion(map.branchingFactor(), level, prefix, node) ? fingerprints.of(node) : 0;
+    }
+
+    /**
+     * Returns the node holding the region: a SubMap at the level of the region, a compressed node whose path spans
+     * over the level, or a leaf, which may be outside of the region. Returns null if the region is empty.
+     */
+    private static Object regionNode(PersistentMap<?, ?> map, int level, int prefix) {
+        BranchingFactor branching = map.branchingFactor();
+        Object node = map.root();
+        int nodeLevel = 0;
+        while (nodeLevel < level) {
+            if (isSubmap(node)) {
+                node = ((SubMap) node).get(branching.subhash(prefix, nodeLevel));
+                nodeLevel++;
+            } else if (isCompressed(node)) {
+                CompressedNode compressed = (CompressedNode) node;
+                int sharedLevel = Math.min(compressed.level(), level);
+                if (((compressed.prefix() ^ prefix) & branching.levelMask(nodeLevel, sharedLevel)) != 0) {
+                    return null;
+                } else if (compressed.level() > level) {
+                    return compressed;
+                }
+                node = compressed.child();
+                nodeLevel = compressed.level();
+            } else {
+                break;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Tells if the node returned by regionNode belongs to the region, as opposed to a leaf outside of it.
+     */
+    private static boolean inRegion(BranchingFactor branching, int level, int prefix, Object node) {
+        if (isKeyValue(node)) {
+            return sharesRegion(branching, level, prefix, ((KeyEntry) node).key().hashCode());
+        } else if (isCollision(node)) {
+            return sharesRegion(branching, level, prefix, ((CollisionNode) node).keyHashCode());
+        }
+        return node != null;
+    }
+
+    private static boolean sharesRegion(BranchingFactor branching, int level, int prefix, int hashCode) {
+        int mask = level > branching.lastLevel() ? -1 : branching.levelMask(0, level);
+        return ((hashCode ^ prefix) & mask) == 0;
+    }
+
+    private static int regionWidth(BranchingFactor branching, int level) {
+        if (level < branching.lastLevel()) {
+            return branching.width();
+        }
+        return 1 << (Integer.SIZE - branching.bitsPerLevel() * branching.lastLevel());
+    }
+
+    private static int childPrefix(BranchingFactor branching, int level, int prefix, int bucket) {
+        if (level < branching.lastLevel()) {
+            return prefix | bucket << (Integer.SIZE - branching.bitsPerLevel() * (level + 1));
+        }
+        return prefix | bucket;
+    }
+}
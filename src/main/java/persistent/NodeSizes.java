@@ -0,0 +1,83 @@
+package persistent;
+
+import persistent.PersistentMap.ArraySubMap;
+import persistent.PersistentMap.CollisionNode;
+import persistent.PersistentMap.SubMap;
+import persistent.PersistentMap.SubMap1;
+import persistent.PersistentMap.SubMap2;
+import persistent.PersistentMap.SubMap3;
+
+import static persistent.PersistentMap.isCollision;
+import static persistent.PersistentMap.isCompressed;
+import static persistent.PersistentMap.isKeyValue;
+import static persistent.PersistentMap.isSubmap;
+
+/**
+ * Estimates the shallow sizes of the trie nodes on a 64-bit JVM with compressed oops: 12 byte object headers,
+ * 16 byte array headers, 4 byte references, and every object aligned to 8 bytes. Keys and values are not
+ * included.
+ */
+final class NodeSizes {
+    static final int MAP = 32;
+    static final int KEY_ENTRY = 24;
+    static final int COMPRESSED_NODE = 24;
+    static final int COLLISION_NODE = 32;
+    static final int SUBMAP1 = 40;
+    static final int SUBMAP2 = 40;
+    static final int SUBMAP3 = 48;
+    static final int SUBMAP4 = 48;
+    static final int ARRAY_SUBMAP = 40;
+
+    private NodeSizes() {
+    }
+
+    static long referenceArray(int length) {
+        return align(16 + 4L * length);
+    }
+
+    /**
+     * Returns the size of the node together with the arrays it owns, excluding its child nodes.
+     */
+    static long sizeOf(Object node) {
+        if (isKeyValue(node)) {
+            return KEY_ENTRY;
+        } else if (isCollision(node)) {
+            int size = ((CollisionNode) node).size();
+            return COLLISION_NODE + 2 * referenceArray(size);
+        } else if (isCompressed(node)) {
+            return COMPRESSED_NODE;
+        } else if (isSubmap(node)) {
+            return subMapSize((SubMap) node);
+        }
+        return 0;
+    }
+
+    private static long subMapSize(SubMap subMap) {
+        if (subMap instanceof ArraySubMap) {
+            return ARRAY_SUBMAP + referenceArray(subMap.capacity());
+        } else if (subMap instanceof SubMap1) {
+            return SUBMAP1;
+        } else if (subMap instanceof SubMap2) {
+            return SUBMAP2;
+        } else if (subMap instanceof SubMap3) {
+            return SUBMAP3;
+        }
+        return SUBMAP4;
+    }
+
+    /**
+     * Returns the number of array slots written when the node is created.
+     */
+    static int slotsOf(Object node) {
+        if (isCollision(node)) {
+            return 2 * ((CollisionNode) node).size();
+        } else if (isSubmap(node)) {
+            return ((SubMap) node).capacity();
+        }
+        return 0;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
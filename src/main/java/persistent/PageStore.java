@@ -0,0 +1,706 @@
+package persistent;
+
+import com.google.common.annotations.VisibleForTesting;
+import persistent.PagedMap.Leaf;
+import persistent.PagedMap.Ref;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import static java.lang.String.format;
+import static persistent.Bits.bitSet;
+
+/**
+ * Stores the trie nodes of {@link PagedMap} versions in a file, for maps larger than the heap.
+ *
+ * Every node is written once, into pages which no readable version uses, so that committed nodes are never
+ * overwritten. A commit writes the new nodes of a version bottom-up, packing the nodes smaller than a page
+ * together, forces them to disk, and then writes a meta record pointing to the new root into one of two
+ * alternating slots at the start of the file, like LMDB. The meta records are checksummed, and opening the file
+ * picks the valid record of the latest commit, so a crash during a commit leaves the previous version in place.
+ *
+ * Pages are reclaimed like in LMDB too. A commit frees the nodes of the previous version which it replaces, and a
+ * page becomes reusable once all of its nodes are freed and every committed version older than the commits which
+ * freed them is released, see {@link #release}. Until then the versions remain readable, so a store whose versions
+ * are never released grows with every commit. The free pages are not recorded in the file: opening the store
+ * counts the nodes of the latest version in each page, walking its inner nodes, and reuses the other pages.
+ *
+ * Nodes are read with one positional read each, through a bounded LRU cache. The inner nodes of the current
+ * version, i.e. those with children in the file, are also pinned in memory as skeletons holding their child
+ * references but not their leaves, so that a lookup in the current version reads at most one node from the file:
+ * the one holding the leaf it looks for. The skeletons take memory in proportion to the number of nodes rather
+ * than entries. The number of pinned levels can be limited to save memory, at the cost of one read per unpinned
+ * level on a cache miss. Updates read the nodes they copy through the cache.
+ *
+ * The pinned skeletons are kept in a PersistentMap by position. A commit pins the nodes it writes and unpins the
+ * nodes of the previous version it replaces, which are those along the updated paths, and publishes the new set at
+ * once, so readers always see a complete set.
+ */
+public final class PageStore<K, V> implements Closeable {
+    private static final int MAGIC = 0x50474D50;
+    private static final int FORMAT = 2;
+    private static final int META_SLOT_SIZE = 512;
+    private static final int HEADER_SIZE = 2 * META_SLOT_SIZE;
+    private static final long NO_ROOT = -1;
+
+    private static final byte LEAF = 0;
+    private static final byte CHILD = 1;
+
+    private final FileChannel channel;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final BranchingFactor branching;
+    private final int pageSize;
+    private final int pinnedLevels;
+
+    private volatile PersistentMap<Long, BitmapNode> pinned = PersistentMap.create();
+    private final Map<Long, BitmapNode> cache;
+    private final LongAdder pageReads = new LongAdder();
+
+    private long transaction;
+    private long nextPage;
+    /**
+     * The number of nodes in each page which were not reclaimed yet. A node larger than a page counts in all of its
+     * pages.
+     */
+    private int[] nodeCounts = new int[0];
+    /**
+     * The runs of reusable pages, by first page, mapped to the page following each run. Adjacent runs are
+     * coalesced.
+     */
+    private final TreeMap<Long, Long> free = new TreeMap<>();
+    /**
+     * The nodes freed by each commit, by transaction, until no retained version older than the commit is left.
+     */
+    private final TreeMap<Long, List<Ref>> freed = new TreeMap<>();
+    /**
+     * The committed versions which were not released, by transaction.
+     */
+    private final TreeSet<Long> retained = new TreeSet<>();
+    /**
+     * The space left in the last page taken by the commit in progress, where the next small nodes are packed.
+     */
+    private long fillPosition;
+    private long fillEnd;
+    private volatile PagedMap<K, V> current;
+
+    public static <K, V> Builder<K, V> builder(Codec<K> keyCodec, Codec<V> valueCodec) {
+        return new Builder<>(keyCodec, valueCodec);
+    }
+
+    private PageStore(Builder<K, V> builder, FileChannel channel) {
+        this.channel = channel;
+        this.keyCodec = builder.keyCodec;
+        this.valueCodec = builder.valueCodec;
+        this.branching = builder.branching;
+        this.pageSize = builder.pageSize;
+        this.pinnedLevels = builder.pinnedLevels;
+        int cacheSize = builder.cacheSize;
+        this.cache = new LinkedHashMap<Long, BitmapNode>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, BitmapNode> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    private void open() throws IOException {
+        if (channel.size() == 0) {
+            nextPage = pagesOf(HEADER_SIZE);
+            writeMeta(0, null, 0);
+            writeMeta(1, null, 0);
+            channel.force(true);
+            current = new PagedMap<>(this, null, 0, transaction);
+            retained.add(transaction);
+            return;
+        }
+
+        ByteBuffer latest = null;
+        long latestTransaction = -1;
+        for (int slot = 0; slot < 2; slot++) {
+            ByteBuffer meta = readMeta(slot);
+            if (meta != null && meta.getLong(8) > latestTransaction) {
+                latest = meta;
+                latestTransaction = meta.getLong(8);
+            }
+        }
+        if (latest == null) {
+            throw new IOException("No valid meta page");
+        }
+
+        latest.position(16);
+        long rootPosition = latest.getLong();
+        int rootLength = latest.getInt();
+        int size = latest.getInt();
+        BranchingFactor fileBranching = BranchingFactor.values()[latest.get()];
+        int filePageSize = latest.getInt();
+        if (fileBranching != branching || filePageSize != pageSize) {
+            throw new IOException(format("Store mismatch: the file has %s and %d byte pages, expected %s and %d",
+                    fileBranching, filePageSize, branching, pageSize));
+        }
+        transaction = latestTransaction;
+        nextPage = latest.getLong();
+        current = new PagedMap<>(this, rootPosition == NO_ROOT ? null : new Ref(rootPosition, rootLength), size,
+                transaction);
+        retained.add(transaction);
+        if (current.root() != null) {
+            pinned = pin(current.root(), 0, PersistentMap.create());
+            countNodes(current.root(), 0);
+        }
+        // No older version is readable after reopening, so the pages without nodes of the latest one are free:
+        nodeCounts = Arrays.copyOf(nodeCounts, (int) Math.max(nodeCounts.length, nextPage));
+        for (long page = pagesOf(HEADER_SIZE); page < nextPage; page++) {
+            if (nodeCounts[(int) page] == 0) {
+                addRun(page, page + 1);
+            }
+        }
+    }
+
+    public BranchingFactor branchingFactor() {
+        return branching;
+    }
+
+    /**
+     * Returns the latest committed version.
+     */
+    public PagedMap<K, V> current() {
+        return current;
+    }
+
+    /**
+     * Returns an empty version derived from the current one, which commits as the deletion of all entries.
+     */
+    public PagedMap<K, V> empty() {
+        return new PagedMap<>(this, null, 0, current.base());
+    }
+
+    /**
+     * Returns the number of node reads from the file.
+     */
+    public long pageReads() {
+        return pageReads.sum();
+    }
+
+    /**
+     * Returns the number of pinned skeletons.
+     */
+    @VisibleForTesting
+    int pinnedNodes() {
+        return pinned.size();
+    }
+
+    /**
+     * Writes the nodes of the version which are not in the file yet, and makes it the current version durably.
+     * Returns the committed version, whose nodes are all read from the store, and which remains readable until it
+     * is released.
+     *
+     * The version must derive from the current one: committing a version derived from an older one would undo the
+     * commits made since, so it throws IllegalStateException, and the caller should apply its updates again to the
+     * current version.
+     */
+    public synchronized PagedMap<K, V> commit(PagedMap<K, V> map) throws IOException {
+        if (map.store() != this) {
+            throw new IllegalArgumentException("The map belongs to another store");
+        } else if (map.base() != transaction) {
+            throw new IllegalStateException(format("The map derives from transaction %d, but %d is the current one",
+                    map.base(), transaction));
+        }
+
+        List<Ref> replaced = new ArrayList<>();
+        collectReplaced(current.root(), map.root(), replaced);
+        Map<Long, BitmapNode> skeletons = new HashMap<>();
+        fillPosition = 0;
+        fillEnd = 0;
+        Ref root = map.root() == null ? null : write(map.root(), 0, skeletons);
+        channel.force(false);
+        transaction++;
+        writeMeta((int) (transaction % 2), root, map.size());
+        channel.force(true);
+
+        PersistentMap<Long, BitmapNode> newPinned = pinned;
+        for (Ref ref : replaced) {
+            newPinned = newPinned.remove(ref.position);
+        }
+        for (Map.Entry<Long, BitmapNode> skeleton : skeletons.entrySet()) {
+            newPinned = newPinned.put(skeleton.getKey(), skeleton.getValue());
+        }
+        current = new PagedMap<>(this, root, map.size(), transaction);
+        pinned = newPinned;
+
+        freed.put(transaction, replaced);
+        retained.add(transaction);
+        reclaim();
+        return current;
+    }
+
+    /**
+     * Declares that the committed version the map derives from will not be read anymore, so that the pages which
+     * only it and other released versions use can be reused by the next commits. Reading a released version
+     * afterwards, or a version derived from it, may return wrong entries or fail. The current version stays
+     * readable until a commit replaces it even if it is released.
+     */
+    public synchronized void release(PagedMap<K, V> map) {
+        if (map.store() != this) {
+            throw new IllegalArgumentException("The map belongs to another store");
+        }
+        retained.remove(map.base());
+        reclaim();
+    }
+
+    /**
+     * Returns the size of the pages in use in the file, including the free pages between them.
+     */
+    public synchronized long fileSize() {
+        return nextPage * pageSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Returns the node, loading it if it is a reference to a page.
+     */
+    BitmapNode resolve(Object node) {
+        if (node instanceof BitmapNode) {
+            return (BitmapNode) node;
+        }
+        Ref ref = (Ref) node;
+        BitmapNode loaded = cached(ref.position);
+        if (loaded == null) {
+            try {
+                loaded = read(ref);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            cache(ref.position, loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Returns the pinned skeleton of the node, whose buckets holding leaves are null, or otherwise the node
+     * resolved.
+     */
+    BitmapNode resolveSkeleton(Object node) {
+        if (node instanceof Ref) {
+            BitmapNode skeleton = pinned.get(((Ref) node).position);
+            if (skeleton != null) {
+                return skeleton;
+            }
+        }
+        return resolve(node);
+    }
+
+    private BitmapNode cached(long position) {
+        synchronized (cache) {
+            return cache.get(position);
+        }
+    }
+
+    private void cache(long position, BitmapNode node) {
+        synchronized (cache) {
+            cache.put(position, node);
+        }
+    }
+
+    private void evict(long position) {
+        synchronized (cache) {
+            cache.remove(position);
+        }
+    }
+
+    /**
+     * Reclaims the nodes freed by the commits which no retained version predates, and reuses the pages left
+     * without nodes.
+     */
+    private void reclaim() {
+        long oldest = retained.isEmpty() ? transaction : Math.min(retained.first(), transaction);
+        while (!freed.isEmpty() && freed.firstKey() <= oldest) {
+            for (Ref ref : freed.pollFirstEntry().getValue()) {
+                evict(ref.position);
+                long endPage = pagesOf(ref.position + ref.length);
+                for (long page = ref.position / pageSize; page < endPage; page++) {
+                    if (--nodeCounts[(int) page] == 0) {
+                        addRun(page, page + 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the node in the pages it takes.
+     */
+    private void addNode(long position, int length) {
+        long endPage = pagesOf(position + length);
+        if (endPage > nodeCounts.length) {
+            nodeCounts = Arrays.copyOf(nodeCounts, (int) Math.max(endPage, 2L * nodeCounts.length));
+        }
+        for (long page = position / pageSize; page < endPage; page++) {
+            nodeCounts[(int) page]++;
+        }
+    }
+
+    /**
+     * Counts the nodes below the node of the version opened in the pages they take, resolving the inner nodes
+     * through their pinned skeletons.
+     */
+    private void countNodes(Object node, int level) {
+        Ref ref = (Ref) node;
+        addNode(ref.position, ref.length);
+        BitmapNode children = level < pinnedLevels ? pinned.get(ref.position) : resolve(ref);
+        if (children == null) {
+            return;
+        }
+        for (Object entry : children.entries) {
+            if (entry instanceof Ref) {
+                countNodes(entry, level + 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the pins with the skeletons of the inner nodes on the pinned levels below the node added.
+     */
+    private PersistentMap<Long, BitmapNode> pin(Object node, int level, PersistentMap<Long, BitmapNode> pins)
+            throws IOException {
+        if (level >= pinnedLevels) {
+            return pins;
+        }
+        Ref ref = (Ref) node;
+        BitmapNode loaded = cached(ref.position);
+        if (loaded == null) {
+            loaded = read(ref);
+            cache(ref.position, loaded);
+        }
+        BitmapNode skeleton = skeletonOf(loaded);
+        if (skeleton == null) {
+            return pins;
+        }
+        pins = pins.put(ref.position, skeleton);
+        for (Object entry : skeleton.entries) {
+            if (entry != null) {
+                pins = pin(entry, level + 1, pins);
+            }
+        }
+        return pins;
+    }
+
+    /**
+     * Adds the nodes of the committed version below the old node which the updated version does not share to the
+     * list: the old node itself unless it is shared, and its descendants which are not shared either. Since nodes
+     * never move to another bucket, only the nodes along the updated paths are visited.
+     */
+    private void collectReplaced(Object old, Object updated, List<Ref> replaced) {
+        if (!(old instanceof Ref) || updated instanceof Ref && ((Ref) updated).position == ((Ref) old).position) {
+            return;
+        }
+        replaced.add((Ref) old);
+        BitmapNode oldNode = resolveSkeleton(old);
+        BitmapNode newNode = updated instanceof BitmapNode ? (BitmapNode) updated : null;
+        long buckets = oldNode.mask;
+        for (int i = 0; buckets != 0; i++) {
+            int bucket = Long.numberOfTrailingZeros(buckets);
+            buckets &= buckets - 1;
+            if (oldNode.entries[i] instanceof Ref) {
+                Object newEntry = newNode != null && bitSet(newNode.mask, bucket) ? newNode.entryAt(bucket) : null;
+                collectReplaced(oldNode.entries[i], newEntry, replaced);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the node with its leaves replaced by nulls, or null if the node has no children.
+     */
+    private static BitmapNode skeletonOf(BitmapNode node) {
+        Object[] entries = new Object[node.entries.length];
+        boolean hasChildren = false;
+        for (int i = 0; i < entries.length; i++) {
+            if (node.entries[i] instanceof Ref) {
+                entries[i] = node.entries[i];
+                hasChildren = true;
+            }
+        }
+        return hasChildren ? new BitmapNode(node.mask, entries) : null;
+    }
+
+    /**
+     * Writes the node and the children kept in memory, children first, and returns the reference to the node.
+     * Adds the skeletons of the written nodes to pin to the map.
+     */
+    private Ref write(Object node, int level, Map<Long, BitmapNode> skeletons) throws IOException {
+        if (node instanceof Ref) {
+            return (Ref) node;
+        }
+
+        BitmapNode inMemory = (BitmapNode) node;
+        Object[] entries = new Object[inMemory.entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            Object entry = inMemory.entries[i];
+            entries[i] = entry instanceof Leaf ? entry : write(entry, level + 1, skeletons);
+        }
+        BitmapNode written = new BitmapNode(inMemory.mask, entries);
+
+        byte[] bytes = encode(written);
+        long position = allocate(bytes.length);
+        writeFully(ByteBuffer.wrap(bytes), position);
+        addNode(position, bytes.length);
+        cache(position, written);
+        BitmapNode skeleton = level < pinnedLevels ? skeletonOf(written) : null;
+        if (skeleton != null) {
+            skeletons.put(position, skeleton);
+        }
+        return new Ref(position, bytes.length);
+    }
+
+    /**
+     * Returns the position where the commit in progress writes a node of the given length: right after the
+     * previous node if it fits in the space left in the last page taken, or otherwise at the start of new pages.
+     */
+    private long allocate(int length) {
+        if (length > fillEnd - fillPosition) {
+            long pages = pagesOf(length);
+            fillPosition = allocatePages(pages) * pageSize;
+            fillEnd = fillPosition + pages * pageSize;
+        }
+        long position = fillPosition;
+        fillPosition += length;
+        return position;
+    }
+
+    /**
+     * Returns the first page of the first run of reusable pages of the given length, or of pages appended to the
+     * file if there is none.
+     */
+    private long allocatePages(long pages) {
+        for (Map.Entry<Long, Long> run : free.entrySet()) {
+            long start = run.getKey();
+            long end = run.getValue();
+            if (end - start >= pages) {
+                free.remove(start);
+                if (start + pages < end) {
+                    free.put(start + pages, end);
+                }
+                return start;
+            }
+        }
+        long start = nextPage;
+        nextPage += pages;
+        return start;
+    }
+
+    /**
+     * Adds the run of pages to the reusable ones, coalescing it with the adjacent runs.
+     */
+    private void addRun(long start, long end) {
+        Map.Entry<Long, Long> before = free.floorEntry(start);
+        if (before != null && before.getValue() == start) {
+            start = before.getKey();
+        }
+        Long after = free.remove(end);
+        free.put(start, after != null ? after : end);
+    }
+
+    private long pagesOf(long length) {
+        return (length + pageSize - 1) / pageSize;
+    }
+
+    private BitmapNode read(Ref ref) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ref.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, ref.position + buffer.position()) < 0) {
+                throw new EOFException(format("Position %d is past the end of the file", ref.position));
+            }
+        }
+        pageReads.increment();
+        return decode(buffer.array());
+    }
+
+    private byte[] encode(BitmapNode node) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(node.mask);
+        for (Object entry : node.entries) {
+            if (entry instanceof Leaf) {
+                Leaf<K, V> leaf = (Leaf<K, V>) entry;
+                out.writeByte(LEAF);
+                out.writeInt(leaf.hashCode);
+                out.writeInt(leaf.keys.length);
+                for (int i = 0; i < leaf.keys.length; i++) {
+                    keyCodec.write((K) leaf.keys[i], out);
+                    valueCodec.write((V) leaf.values[i], out);
+                }
+            } else {
+                Ref ref = (Ref) entry;
+                out.writeByte(CHILD);
+                out.writeLong(ref.position);
+                out.writeInt(ref.length);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private BitmapNode decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        long mask = in.readLong();
+        Object[] entries = new Object[Long.bitCount(mask)];
+        for (int i = 0; i < entries.length; i++) {
+            byte tag = in.readByte();
+            if (tag == LEAF) {
+                int hashCode = in.readInt();
+                int count = in.readInt();
+                Object[] keys = new Object[count];
+                Object[] values = new Object[count];
+                for (int j = 0; j < count; j++) {
+                    keys[j] = keyCodec.read(in);
+                    values[j] = valueCodec.read(in);
+                }
+                entries[i] = new Leaf<K, V>(hashCode, keys, values);
+            } else if (tag == CHILD) {
+                entries[i] = new Ref(in.readLong(), in.readInt());
+            } else {
+                throw new IOException(format("Corrupted node: entry tag %d", tag));
+            }
+        }
+        return new BitmapNode(mask, entries);
+    }
+
+    /**
+     * Writes the meta record of the current transaction into the slot.
+     */
+    private void writeMeta(int slot, Ref root, int size) throws IOException {
+        ByteBuffer meta = ByteBuffer.allocate(META_SLOT_SIZE);
+        meta.putInt(MAGIC);
+        meta.putInt(FORMAT);
+        meta.putLong(transaction);
+        meta.putLong(root == null ? NO_ROOT : root.position);
+        meta.putInt(root == null ? 0 : root.length);
+        meta.putInt(size);
+        meta.put((byte) branching.ordinal());
+        meta.putInt(pageSize);
+        meta.putLong(nextPage);
+        CRC32 crc = new CRC32();
+        crc.update(meta.array(), 0, meta.position());
+        meta.putLong(crc.getValue());
+        meta.clear();
+        writeFully(meta, (long) slot * META_SLOT_SIZE);
+    }
+
+    /**
+     * Returns the meta record in the slot, or null if it is not valid.
+     */
+    private ByteBuffer readMeta(int slot) throws IOException {
+        ByteBuffer meta = ByteBuffer.allocate(META_SLOT_SIZE);
+        while (meta.hasRemaining()) {
+            if (channel.read(meta, (long) slot * META_SLOT_SIZE + meta.position()) < 0) {
+                return null;
+            }
+        }
+        int length = 4 + 4 + 8 + 8 + 4 + 4 + 1 + 4 + 8;
+        CRC32 crc = new CRC32();
+        crc.update(meta.array(), 0, length);
+        if (meta.getInt(0) != MAGIC || meta.getInt(4) != FORMAT || meta.getLong(length) != crc.getValue()) {
+            return null;
+        }
+        return meta;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    public static final class Builder<K, V> {
+        private final Codec<K> keyCodec;
+        private final Codec<V> valueCodec;
+        private BranchingFactor branching = BranchingFactor.WAYS_32;
+        private int pageSize = 4096;
+        private int cacheSize = 10000;
+        private int pinnedLevels = Integer.MAX_VALUE;
+
+        private Builder(Codec<K> keyCodec, Codec<V> valueCodec) {
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+        }
+
+        public Builder<K, V> branchingFactor(BranchingFactor branching) {
+            this.branching = branching;
+            return this;
+        }
+
+        /**
+         * Sets the page size, a power of two of at least 512 bytes. Nodes larger than a page take several
+         * consecutive pages, and smaller nodes written by the same commit share pages.
+         */
+        public Builder<K, V> pageSize(int pageSize) {
+            if (pageSize < 512 || Integer.bitCount(pageSize) != 1) {
+                throw new IllegalArgumentException(format("Invalid page size: %d", pageSize));
+            }
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of nodes kept in the cache, besides the pinned skeletons.
+         */
+        public Builder<K, V> cacheSize(int cacheSize) {
+            if (cacheSize < 0) {
+                throw new IllegalArgumentException(format("Negative cache size: %d", cacheSize));
+            }
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of trie levels, starting from the root, whose inner nodes in the current version have
+         * their skeletons kept in memory. All of them do by default.
+         */
+        public Builder<K, V> pinnedLevels(int pinnedLevels) {
+            if (pinnedLevels < 0) {
+                throw new IllegalArgumentException(format("Negative pinned levels: %d", pinnedLevels));
+            }
+            this.pinnedLevels = pinnedLevels;
+            return this;
+        }
+
+        /**
+         * Opens the store in the file, creating it if it does not exist.
+         */
+        public PageStore<K, V> open(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            PageStore<K, V> store = new PageStore<>(this, channel);
+            try {
+                store.open();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            return store;
+        }
+    }
+}
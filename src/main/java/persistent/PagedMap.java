@@ -0,0 +1,225 @@
+package persistent;
+
+import java.util.Arrays;
+
+import static persistent.Bits.bitClear;
+
+/**
+ * A version of a map whose trie nodes are stored in the pages of a {@link PageStore}.
+ *
+ * Updates copy the path to the changed key like those of PersistentMap, loading the nodes along it through the page
+ * cache of the store, and keep the copied nodes in memory until the version is committed to the store. Versions are
+ * immutable, and every version of a store remains readable while the store is open, until it is released, see
+ * {@link PageStore#release}.
+ *
+ * The trie has no compressed paths: a bucket holds a child node, or a leaf with the entries of one hash code. Reads
+ * and updates throw UncheckedIOException when a page cannot be read.
+ */
+public final class PagedMap<K, V> {
+    private final PageStore<K, V> store;
+    /**
+     * The root node, a reference to the page holding it, or null if the map is empty.
+     */
+    private final Object root;
+    private final int size;
+    /**
+     * The transaction of the committed version this version derives from, its own if it is committed.
+     */
+    private final long base;
+
+    PagedMap(PageStore<K, V> store, Object root, int size, long base) {
+        this.store = store;
+        this.root = root;
+        this.size = size;
+        this.base = base;
+    }
+
+    PageStore<K, V> store() {
+        return store;
+    }
+
+    Object root() {
+        return root;
+    }
+
+    long base() {
+        return base;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns true if no update was made to this version since it was read from the store or committed.
+     */
+    public boolean isCommitted() {
+        return !(root instanceof BitmapNode);
+    }
+
+    public V get(K key) {
+        Leaf<K, V> leaf = leafOf(key.hashCode());
+        return leaf != null ? leaf.get(key) : null;
+    }
+
+    public boolean containsKey(K key) {
+        Leaf<K, V> leaf = leafOf(key.hashCode());
+        return leaf != null && leaf.indexOf(key) >= 0;
+    }
+
+    public PagedMap<K, V> put(K key, V value) {
+        Leaf<K, V> leaf = new Leaf<>(key.hashCode(), new Object[]{key}, new Object[]{value});
+        boolean[] added = new boolean[1];
+        Object newRoot = BitmapNode.insert(store.branchingFactor(), store::resolve, root, 0, leaf, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PagedMap<>(store, newRoot, added[0] ? size + 1 : size, base);
+    }
+
+    public PagedMap<K, V> remove(K key) {
+        if (root == null) {
+            return this;
+        }
+        Object newRoot = delete(root, 0, key, key.hashCode());
+        if (newRoot == root) {
+            return this;
+        }
+        return new PagedMap<>(store, newRoot, size - 1, base);
+    }
+
+    /**
+     * Returns the leaf holding the keys with the hash code, or null if there are none.
+     */
+    private Leaf<K, V> leafOf(int hashCode) {
+        BranchingFactor branching = store.branchingFactor();
+        Object node = root;
+        for (int level = 0; node != null; level++) {
+            BitmapNode current = store.resolveSkeleton(node);
+            int bucket = branching.subhash(hashCode, level);
+            if (bitClear(current.mask, bucket)) {
+                return null;
+            }
+            Object entry = current.entryAt(bucket);
+            if (entry == null) {
+                // A leaf left out of a pinned skeleton:
+                entry = store.resolve(node).entryAt(bucket);
+            }
+            if (entry instanceof Leaf) {
+                Leaf<K, V> leaf = (Leaf<K, V>) entry;
+                return leaf.hashCode == hashCode ? leaf : null;
+            }
+            node = entry;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the node itself if the key is absent, null if nothing is left, the only leaf left below a node
+     * other than the root, or otherwise the copied node.
+     */
+    private Object delete(Object node, int level, K key, int hashCode) {
+        BitmapNode current = store.resolve(node);
+        int bucket = store.branchingFactor().subhash(hashCode, level);
+        if (bitClear(current.mask, bucket)) {
+            return node;
+        }
+
+        Object entry = current.entryAt(bucket);
+        Object replacement;
+        if (entry instanceof Leaf) {
+            Leaf<K, V> leaf = (Leaf<K, V>) entry;
+            replacement = leaf.hashCode == hashCode ? leaf.remove(key) : leaf;
+        } else {
+            replacement = delete(entry, level + 1, key, hashCode);
+        }
+        return replacement == entry ? node : current.removed(bucket, replacement, level);
+    }
+
+    /**
+     * The entries of one hash code, in insertion order.
+     */
+    static final class Leaf<K, V> extends BitmapNode.Leaf {
+        final Object[] keys;
+        final Object[] values;
+
+        Leaf(int hashCode, Object[] keys, Object[] values) {
+            super(hashCode);
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        int size() {
+            return keys.length;
+        }
+
+        V get(K key) {
+            int index = indexOf(key);
+            return index >= 0 ? (V) values[index] : null;
+        }
+
+        @Override
+        Leaf<K, V> merge(BitmapNode.Leaf leaf) {
+            Leaf<K, V> other = (Leaf<K, V>) leaf;
+            int index = indexOf(other.keys[0]);
+            if (index >= 0 && values[index] == other.values[0]) {
+                return this;
+            } else if (index >= 0) {
+                Object[] newValues = values.clone();
+                newValues[index] = other.values[0];
+                return new Leaf<>(hashCode, keys, newValues);
+            }
+            Object[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+            Object[] newValues = Arrays.copyOf(values, values.length + 1);
+            newKeys[keys.length] = other.keys[0];
+            newValues[values.length] = other.values[0];
+            return new Leaf<>(hashCode, newKeys, newValues);
+        }
+
+        /**
+         * Returns this leaf if the key is absent, null if it was the only key, or otherwise a leaf without it.
+         */
+        Leaf<K, V> remove(K key) {
+            int index = indexOf(key);
+            if (index < 0) {
+                return this;
+            } else if (keys.length == 1) {
+                return null;
+            }
+            Object[] newKeys = new Object[keys.length - 1];
+            Object[] newValues = new Object[values.length - 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(keys, index + 1, newKeys, index, newKeys.length - index);
+            System.arraycopy(values, 0, newValues, 0, index);
+            System.arraycopy(values, index + 1, newValues, index, newValues.length - index);
+            return new Leaf<>(hashCode, newKeys, newValues);
+        }
+
+        int indexOf(Object key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The location of a node written to the store: its position in the file and its length in bytes.
+     */
+    static final class Ref {
+        final long position;
+        final int length;
+
+        Ref(long position, int length) {
+            this.position = position;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package persistent;
+
+import java.util.Set;
+
+import static java.lang.String.format;
+
+/**
+ * A persistent bag (multiset) counting the occurrences of each element.
+ *
+ * The occurrence count is stored inline as the value of the underlying map entry, so that the per element count
+ * and the total number of occurrences are both available in O(1).
+ */
+public final class PersistentBag<K> {
+    private static final PersistentBag EMPTY_BAG = new PersistentBag(PersistentMap.create(), 0);
+
+    private final PersistentMap<K, Integer> counts;
+    private final int elements;
+
+    /**
+     * Creates an empty persistent bag
+     */
+    public static <K> PersistentBag<K> create() {
+        return (PersistentBag<K>) EMPTY_BAG;
+    }
+
+    private PersistentBag(PersistentMap<K, Integer> counts, int elements) {
+        this.counts = counts;
+        this.elements = elements;
+    }
+
+    public PersistentBag<K> add(K key) {
+        return add(key, 1);
+    }
+
+    /**
+     * Adds the given number of occurrences of the key. Throws ArithmeticException if the count of the key or the
+     * total number of occurrences would overflow an int.
+     */
+    public PersistentBag<K> add(K key, int occurrences) {
+        if (occurrences < 0) {
+            throw new IllegalArgumentException(format("Negative number of occurrences: %d", occurrences));
+        } else if (occurrences == 0) {
+            return this;
+        }
+        int newElements = Math.addExact(elements, occurrences);
+        return new PersistentBag<>(counts.put(key, Math.addExact(count(key), occurrences)), newElements);
+    }
+
+    public PersistentBag<K> remove(K key) {
+        return remove(key, 1);
+    }
+
+    /**
+     * Removes up to the given number of occurrences of the key.
+     */
+    public PersistentBag<K> remove(K key, int occurrences) {
+        if (occurrences < 0) {
+            throw new IllegalArgumentException(format("Negative number of occurrences: %d", occurrences));
+        }
+
+        int count = count(key);
+        if (count == 0 || occurrences == 0) {
+            return this;
+        } else if (occurrences >= count) {
+            return new PersistentBag<>(counts.remove(key), elements - count);
+        } else {
+            return new PersistentBag<>(counts.put(key, count - occurrences), elements - occurrences);
+        }
+    }
+
+    public int count(K key) {
+        Integer count = counts.get(key);
+        return count != null ? count : 0;
+    }
+
+    public Set<K> elementSet() {
+        return counts.keySet();
+    }
+
+    public int distinctCount() {
+        return counts.size();
+    }
+
+    public boolean isEmpty() {
+        return elements == 0;
+    }
+
+    /**
+     * Returns the total number of occurrences of all elements.
+     */
+    public int size() {
+        return elements;
+    }
+}
@@ -0,0 +1,355 @@
+package persistent;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+import static persistent.Bits.bitClear;
+
+/**
+ * A persistent map whose keys are byte sequences, passed as byte arrays or as the remaining bytes of ByteBuffers,
+ * and compared by content.
+ *
+ * Unlike a PersistentMap keyed by wrapper objects, lookups hash and compare the bytes of the key in place, without
+ * allocating anything. The keys are hashed with the 32-bit MurmurHash3 function. An update copies the bytes of the
+ * new key once, into the leaf holding the keys with its hash code, where the keys are stored back to back in a
+ * single byte array. Lookups through direct or read-only ByteBuffers, whose bytes are not backed by an accessible
+ * array, copy the key first.
+ *
+ * The trie is made of {@link BitmapNode}s, without compressed paths, and updates copy the path to the changed key.
+ */
+public final class PersistentBytesMap<V> {
+    private static final PersistentBytesMap[] EMPTY_MAPS = emptyMaps();
+
+    /**
+     * The root node, or null if the map is empty.
+     */
+    private final BitmapNode root;
+    private final int size;
+    private final BranchingFactor branching;
+
+    public static <V> PersistentBytesMap<V> create() {
+        return create(BranchingFactor.WAYS_32);
+    }
+
+    public static <V> PersistentBytesMap<V> create(BranchingFactor branching) {
+        return (PersistentBytesMap<V>) EMPTY_MAPS[branching.ordinal()];
+    }
+
+    private static PersistentBytesMap[] emptyMaps() {
+        BranchingFactor[] factors = BranchingFactor.values();
+        PersistentBytesMap[] emptyMaps = new PersistentBytesMap[factors.length];
+        for (BranchingFactor branching : factors) {
+            emptyMaps[branching.ordinal()] = new PersistentBytesMap(null, 0, branching);
+        }
+        return emptyMaps;
+    }
+
+    private PersistentBytesMap(BitmapNode root, int size, BranchingFactor branching) {
+        this.root = root;
+        this.size = size;
+        this.branching = branching;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public BranchingFactor branchingFactor() {
+        return branching;
+    }
+
+    public V get(byte[] key) {
+        return get(key, 0, key.length);
+    }
+
+    /**
+     * Returns the value of the key made of the remaining bytes of the buffer, whose position is left unchanged.
+     */
+    public V get(ByteBuffer key) {
+        return get(arrayOf(key), offsetOf(key), key.remaining());
+    }
+
+    public boolean containsKey(byte[] key) {
+        return indexOf(key, 0, key.length) >= 0;
+    }
+
+    public boolean containsKey(ByteBuffer key) {
+        return indexOf(arrayOf(key), offsetOf(key), key.remaining()) >= 0;
+    }
+
+    /**
+     * Returns a map with the key mapped to the value. The bytes of the key are copied, so the array may be
+     * reused afterwards.
+     */
+    public PersistentBytesMap<V> put(byte[] key, V value) {
+        return put(key, 0, key.length, value);
+    }
+
+    public PersistentBytesMap<V> put(ByteBuffer key, V value) {
+        return put(arrayOf(key), offsetOf(key), key.remaining(), value);
+    }
+
+    public PersistentBytesMap<V> remove(byte[] key) {
+        return remove(key, 0, key.length);
+    }
+
+    public PersistentBytesMap<V> remove(ByteBuffer key) {
+        return remove(arrayOf(key), offsetOf(key), key.remaining());
+    }
+
+    /**
+     * Calls the action for every entry, passing each key as a read-only buffer over the bytes of the key.
+     */
+    public void forEach(BiConsumer<? super ByteBuffer, ? super V> action) {
+        if (root != null) {
+            forEach(root, action);
+        }
+    }
+
+    private void forEach(BitmapNode node, BiConsumer<? super ByteBuffer, ? super V> action) {
+        for (Object entry : node.entries) {
+            if (entry instanceof Leaf) {
+                Leaf<V> leaf = (Leaf<V>) entry;
+                for (int i = 0; i < leaf.values.length; i++) {
+                    action.accept(leaf.keyAt(i), (V) leaf.values[i]);
+                }
+            } else {
+                forEach((BitmapNode) entry, action);
+            }
+        }
+    }
+
+    private static byte[] arrayOf(ByteBuffer key) {
+        if (key.hasArray()) {
+            return key.array();
+        }
+        byte[] bytes = new byte[key.remaining()];
+        key.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static int offsetOf(ByteBuffer key) {
+        return key.hasArray() ? key.arrayOffset() + key.position() : 0;
+    }
+
+    private V get(byte[] key, int offset, int length) {
+        Leaf<V> leaf = leafOf(hash(key, offset, length));
+        if (leaf == null) {
+            return null;
+        }
+        int index = leaf.indexOf(key, offset, length);
+        return index >= 0 ? (V) leaf.values[index] : null;
+    }
+
+    private int indexOf(byte[] key, int offset, int length) {
+        Leaf<V> leaf = leafOf(hash(key, offset, length));
+        return leaf != null ? leaf.indexOf(key, offset, length) : -1;
+    }
+
+    private PersistentBytesMap<V> put(byte[] key, int offset, int length, V value) {
+        Leaf<V> leaf = new Leaf<>(hash(key, offset, length), Arrays.copyOfRange(key, offset, offset + length),
+                new int[]{length}, new Object[]{value});
+        boolean[] added = new boolean[1];
+        Object newRoot = BitmapNode.insert(branching, node -> (BitmapNode) node, root, 0, leaf, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentBytesMap<>((BitmapNode) newRoot, added[0] ? size + 1 : size, branching);
+    }
+
+    private PersistentBytesMap<V> remove(byte[] key, int offset, int length) {
+        if (root == null) {
+            return this;
+        }
+        Object newRoot = delete(root, 0, key, offset, length, hash(key, offset, length));
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentBytesMap<>((BitmapNode) newRoot, size - 1, branching);
+    }
+
+    /**
+     * Returns the leaf holding the keys with the hash code, or null if there are none.
+     */
+    private Leaf<V> leafOf(int hashCode) {
+        BitmapNode node = root;
+        for (int level = 0; node != null; level++) {
+            int bucket = branching.subhash(hashCode, level);
+            if (bitClear(node.mask, bucket)) {
+                return null;
+            }
+            Object entry = node.entryAt(bucket);
+            if (entry instanceof Leaf) {
+                Leaf<V> leaf = (Leaf<V>) entry;
+                return leaf.hashCode == hashCode ? leaf : null;
+            }
+            node = (BitmapNode) entry;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the node itself if the key is absent, null if nothing is left, the only leaf left below a node
+     * other than the root, or otherwise the copied node.
+     */
+    private Object delete(BitmapNode node, int level, byte[] key, int offset, int length, int hashCode) {
+        int bucket = branching.subhash(hashCode, level);
+        if (bitClear(node.mask, bucket)) {
+            return node;
+        }
+
+        Object entry = node.entryAt(bucket);
+        Object replacement;
+        if (entry instanceof Leaf) {
+            Leaf<V> leaf = (Leaf<V>) entry;
+            replacement = leaf.hashCode == hashCode ? leaf.remove(key, offset, length) : leaf;
+        } else {
+            replacement = delete((BitmapNode) entry, level + 1, key, offset, length, hashCode);
+        }
+        return replacement == entry ? node : node.removed(bucket, replacement, level);
+    }
+
+    /**
+     * Returns the 32-bit MurmurHash3 of the bytes, with a zero seed.
+     */
+    @VisibleForTesting
+    static int hash(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        int i = offset;
+        for (int end = offset + (length & ~3); i < end; i += 4) {
+            int block = (bytes[i] & 0xff) | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff) << 16
+                    | bytes[i + 3] << 24;
+            hash ^= mixBlock(block);
+            hash = Integer.rotateLeft(hash, 13) * 5 + 0xe6546b64;
+        }
+
+        int tail = 0;
+        switch (length & 3) {
+            case 3:
+                tail ^= (bytes[i + 2] & 0xff) << 16;
+            case 2:
+                tail ^= (bytes[i + 1] & 0xff) << 8;
+            case 1:
+                tail ^= bytes[i] & 0xff;
+                hash ^= mixBlock(tail);
+            default:
+        }
+
+        hash ^= length;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static int mixBlock(int block) {
+        return Integer.rotateLeft(block * 0xcc9e2d51, 15) * 0x1b873593;
+    }
+
+    private static boolean rangeEquals(byte[] bytes1, int offset1, byte[] bytes2, int offset2, int length) {
+        for (int i = 0; i < length; i++) {
+            if (bytes1[offset1 + i] != bytes2[offset2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The entries of one hash code, in insertion order. The keys are stored back to back, the i-th one ending
+     * at ends[i].
+     */
+    @VisibleForTesting
+    static final class Leaf<V> extends BitmapNode.Leaf {
+        final byte[] keys;
+        final int[] ends;
+        final Object[] values;
+
+        Leaf(int hashCode, byte[] keys, int[] ends, Object[] values) {
+            super(hashCode);
+            this.keys = keys;
+            this.ends = ends;
+            this.values = values;
+        }
+
+        @Override
+        int size() {
+            return values.length;
+        }
+
+        int start(int index) {
+            return index == 0 ? 0 : ends[index - 1];
+        }
+
+        ByteBuffer keyAt(int index) {
+            int start = start(index);
+            return ByteBuffer.wrap(keys, start, ends[index] - start).slice().asReadOnlyBuffer();
+        }
+
+        int indexOf(byte[] key, int offset, int length) {
+            int start = 0;
+            for (int i = 0; i < ends.length; i++) {
+                if (ends[i] - start == length && rangeEquals(keys, start, key, offset, length)) {
+                    return i;
+                }
+                start = ends[i];
+            }
+            return -1;
+        }
+
+        @Override
+        Leaf<V> merge(BitmapNode.Leaf leaf) {
+            Leaf<V> other = (Leaf<V>) leaf;
+            int index = indexOf(other.keys, 0, other.keys.length);
+            if (index >= 0 && values[index] == other.values[0]) {
+                return this;
+            } else if (index >= 0) {
+                Object[] newValues = values.clone();
+                newValues[index] = other.values[0];
+                return new Leaf<>(hashCode, keys, ends, newValues);
+            }
+            byte[] newKeys = Arrays.copyOf(keys, keys.length + other.keys.length);
+            System.arraycopy(other.keys, 0, newKeys, keys.length, other.keys.length);
+            int[] newEnds = Arrays.copyOf(ends, ends.length + 1);
+            newEnds[ends.length] = newKeys.length;
+            Object[] newValues = Arrays.copyOf(values, values.length + 1);
+            newValues[values.length] = other.values[0];
+            return new Leaf<>(hashCode, newKeys, newEnds, newValues);
+        }
+
+        /**
+         * Returns this leaf if the key is absent, null if it was the only key, or otherwise a leaf without it.
+         */
+        Leaf<V> remove(byte[] key, int offset, int length) {
+            int index = indexOf(key, offset, length);
+            if (index < 0) {
+                return this;
+            } else if (values.length == 1) {
+                return null;
+            }
+
+            int start = start(index);
+            byte[] newKeys = new byte[keys.length - length];
+            System.arraycopy(keys, 0, newKeys, 0, start);
+            System.arraycopy(keys, ends[index], newKeys, start, keys.length - ends[index]);
+            int[] newEnds = new int[ends.length - 1];
+            Object[] newValues = new Object[values.length - 1];
+            for (int i = 0, j = 0; i < ends.length; i++) {
+                if (i != index) {
+                    newEnds[j] = i < index ? ends[i] : ends[i] - length;
+                    newValues[j++] = values[i];
+                }
+            }
+            return new Leaf<>(hashCode, newKeys, newEnds, newValues);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package persistent;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheStats;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static java.lang.String.format;
+
+/**
+ * A bounded cache whose entries are kept in a PersistentMap.
+ *
+ * Readers look up the latest published version of the map, so that every read sees a consistent snapshot, and
+ * never block. Writers are serialized by a lock and publish each new version through a volatile field. The cached
+ * entries are immutable.
+ *
+ * Recency is kept aside from the map, in access times owned by the writers. A read hit appends its key to a small
+ * buffer, striped by thread so that readers rarely write to the same memory. The buffers are drained into the
+ * access times in batches by the next writer. A reader which cannot append its key, because its buffer is full or
+ * another reader of the stripe claimed the slot first, tries the lock without waiting. If it gets the lock, it
+ * drains all the buffers itself and makes one more attempt, and otherwise the read is not recorded. So reads may
+ * take the lock, although they never wait for it, and some of them are not recorded under contention. An access
+ * time is the time of the drain following the read.
+ *
+ * Once the cache grows past its maximum size, the least recently used of a few randomly sampled entries is chosen
+ * as a victim, preferring expired entries, until the cache is back under a low-water mark. The victims are removed
+ * in one pass over the trie, so that the eviction cost is amortized over many writes and no full scan is needed.
+ */
+public final class PersistentCache<K, V> {
+    static final int SAMPLE_SIZE = 8;
+    /**
+     * Evictions bring the size down to maximumSize - maximumSize / EVICTION_BATCH_DIVISOR.
+     */
+    static final int EVICTION_BATCH_DIVISOR = 16;
+    /**
+     * The number of keys buffered per stripe before the reads are drained; a power of two.
+     */
+    static final int READ_BUFFER_SIZE = 128;
+
+    private final int maximumSize;
+    private final long expireAfterWriteNanos;
+    private final Ticker ticker;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReadBuffer<K>[] readBuffers;
+    /**
+     * The time of the last drained read of each entry which was read since it was written, guarded by the lock.
+     */
+    private final Map<K, Long> accessTimes = new HashMap<>();
+    private final Consumer<K> recordAccess = this::recordAccess;
+    private long drainTime;
+
+    private volatile PersistentMap<K, CacheEntry<V>> map = PersistentMap.create();
+
+    public static <K, V> Builder<K, V> builder() {
+        return new Builder<>();
+    }
+
+    private PersistentCache(Builder<K, V> builder) {
+        this.maximumSize = builder.maximumSize;
+        this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+        this.ticker = builder.ticker;
+        int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+        this.readBuffers = new ReadBuffer[stripes];
+        for (int i = 0; i < stripes; i++) {
+            readBuffers[i] = new ReadBuffer<>();
+        }
+    }
+
+    /**
+     * Returns the value of the key, or null if it is absent or expired.
+     */
+    public V get(K key) {
+        CacheEntry<V> entry = map.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+
+        long now = ticker.read();
+        if (isExpired(entry, now)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        ReadBuffer<K> buffer = readBuffers[(int) Thread.currentThread().getId() & (readBuffers.length - 1)];
+        if (!buffer.offer(key) && lock.tryLock()) {
+            try {
+                drainReads(now);
+                buffer.offer(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return entry.value;
+    }
+
+    public void put(K key, V value) {
+        lock.lock();
+        try {
+            long now = ticker.read();
+            drainReads(now);
+            accessTimes.remove(key);
+            map = evict(map.put(key, new CacheEntry<>(value, now)), key, now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate(K key) {
+        lock.lock();
+        try {
+            map = map.remove(key);
+            accessTimes.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+        try {
+            map = PersistentMap.create();
+            accessTimes.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all expired entries in one pass over the map.
+     */
+    public void cleanUp() {
+        lock.lock();
+        try {
+            long now = ticker.read();
+            PersistentMap<K, CacheEntry<V>> cleaned = map.removeIf((key, entry) -> isExpired(entry, now));
+            evictions.add(map.size() - cleaned.size());
+            map = cleaned;
+            accessTimes.keySet().removeIf(key -> cleaned.get(key) == null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a read-only view of the cache contents at this point in time, including the entries which expired
+     * but have not been evicted yet.
+     */
+    public MappedValuesView<K, V> snapshot() {
+        return map.viewMapValues(entry -> entry.value);
+    }
+
+    /**
+     * Returns the number of entries, including the expired entries which have not been evicted yet.
+     */
+    public int size() {
+        return map.size();
+    }
+
+    public CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), 0, 0, 0, evictions.sum());
+    }
+
+    private boolean isExpired(CacheEntry<V> entry, long now) {
+        return now - entry.writeTime >= expireAfterWriteNanos;
+    }
+
+    /**
+     * Moves the buffered reads into the access times, with the lock held.
+     */
+    private void drainReads(long now) {
+        drainTime = now;
+        for (ReadBuffer<K> buffer : readBuffers) {
+            buffer.drain(recordAccess);
+        }
+    }
+
+    private void recordAccess(K key) {
+        // The key may have been invalidated or evicted since it was read:
+        if (map.get(key) != null) {
+            accessTimes.put(key, drainTime);
+        }
+    }
+
+    private long recency(K key, CacheEntry<V> entry) {
+        Long accessTime = accessTimes.get(key);
+        return accessTime != null ? Math.max(accessTime, entry.writeTime) : entry.writeTime;
+    }
+
+    /**
+     * Brings the size back under the low-water mark, never evicting the key which was just put.
+     */
+    private PersistentMap<K, CacheEntry<V>> evict(PersistentMap<K, CacheEntry<V>> current, K added, long now) {
+        if (current.size() <= maximumSize) {
+            return current;
+        }
+
+        int target = maximumSize - maximumSize / EVICTION_BATCH_DIVISOR;
+        if (target == 0) {
+            evictions.add(current.size());
+            accessTimes.clear();
+            return PersistentMap.create();
+        }
+
+        Set<K> victims = new HashSet<>();
+        while (victims.size() < current.size() - target) {
+            Map.Entry<K, CacheEntry<V>> victim = sampleVictim(current, victims, added, now);
+            if (victim != null) {
+                victims.add(victim.getKey());
+            }
+        }
+
+        evictions.add(victims.size());
+        accessTimes.keySet().removeAll(victims);
+        return current.removeAll(victims);
+    }
+
+    /**
+     * Returns an expired entry or the least recently used entry out of a random sample, skipping the entries
+     * already chosen and the added key. Returns null if the sample contained no other entries.
+     */
+    private Map.Entry<K, CacheEntry<V>> sampleVictim(PersistentMap<K, CacheEntry<V>> current, Set<K> victims,
+                                                     K added, long now) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Map.Entry<K, CacheEntry<V>> victim = null;
+        long victimRecency = 0;
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            Map.Entry<K, CacheEntry<V>> candidate = current.randomEntry(random);
+            if (victims.contains(candidate.getKey()) || candidate.getKey().equals(added)) {
+                continue;
+            } else if (isExpired(candidate.getValue(), now)) {
+                return candidate;
+            }
+            long recency = recency(candidate.getKey(), candidate.getValue());
+            if (victim == null || recency < victimRecency) {
+                victim = candidate;
+                victimRecency = recency;
+            }
+        }
+        return victim;
+    }
+
+    private static final class CacheEntry<V> {
+        private final V value;
+        private final long writeTime;
+
+        CacheEntry(V value, long writeTime) {
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+
+    /**
+     * A bounded buffer of the keys read by the threads of one stripe. Readers claim slots with a CAS on the tail,
+     * and the single drainer, holding the lock, advances the head.
+     */
+    private static final class ReadBuffer<K> {
+        private final AtomicReferenceArray<K> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicInteger tail = new AtomicInteger();
+        private volatile int head;
+
+        /**
+         * Appends the key, or returns false if the buffer is full or another reader claimed the slot first.
+         */
+        boolean offer(K key) {
+            int position = tail.get();
+            if (position - head >= READ_BUFFER_SIZE) {
+                return false;
+            } else if (!tail.compareAndSet(position, position + 1)) {
+                return false;
+            }
+            slots.lazySet(position & (READ_BUFFER_SIZE - 1), key);
+            return true;
+        }
+
+        /**
+         * Passes the buffered keys to the consumer, stopping at a slot claimed but not written yet.
+         */
+        void drain(Consumer<K> consumer) {
+            int position = head;
+            int end = tail.get();
+            for (; position != end; position++) {
+                int index = position & (READ_BUFFER_SIZE - 1);
+                K key = slots.get(index);
+                if (key == null) {
+                    break;
+                }
+                slots.lazySet(index, null);
+                consumer.accept(key);
+            }
+            head = position;
+        }
+    }
+
+    public static final class Builder<K, V> {
+        private int maximumSize = Integer.MAX_VALUE;
+        private long expireAfterWriteNanos = Long.MAX_VALUE;
+        private Ticker ticker = Ticker.systemTicker();
+
+        private Builder() {
+        }
+
+        public Builder<K, V> maximumSize(int maximumSize) {
+            if (maximumSize < 0) {
+                throw new IllegalArgumentException(format("Negative maximum size: %d", maximumSize));
+            }
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        public Builder<K, V> expireAfterWrite(long duration, TimeUnit unit) {
+            if (duration < 0) {
+                throw new IllegalArgumentException(format("Negative expiration: %d %s", duration, unit));
+            }
+            this.expireAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Sets the time source of the expiration and recency, which is System.nanoTime() by default.
+         */
+        public Builder<K, V> ticker(Ticker ticker) {
+            this.ticker = ticker;
+            return this;
+        }
+
+        public PersistentCache<K, V> build() {
+            return new PersistentCache<>(this);
+        }
+    }
+}
@@ -4,11 +4,20 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.stream.Collector;
 
 import static java.lang.String.format;
 import static persistent.Bits.bitClear;
@@ -18,113 +27,319 @@ import static persistent.Bits.setBit;
 
 
 public final class PersistentMap<K, V> {
-    private static final int SUBHASH_MASK = 31;
-    private static final PersistentMap EMPTY_MAP = new PersistentMap();
+    private static final PersistentMap[] EMPTY_MAPS = emptyMaps();
 
     private final SubMap root;
     private final int elements;
+    private final BranchingFactor branching;
+    private final MapStats stats;
 
 
     /**
      * Creates an empty persistent map
      */
     public static <K, V> PersistentMap<K, V> create() {
-        return (PersistentMap<K, V>) EMPTY_MAP;
+        return create(BranchingFactor.WAYS_32);
     }
 
-    private PersistentMap() {
-        this(null, 0);
+    /**
+     * Creates an empty persistent map whose trie nodes have the given width.
+     * All versions derived from the map keep the same branching factor.
+     */
+    public static <K, V> PersistentMap<K, V> create(BranchingFactor branching) {
+        return (PersistentMap<K, V>) EMPTY_MAPS[branching.ordinal()];
+    }
+
+    private static PersistentMap[] emptyMaps() {
+        BranchingFactor[] factors = BranchingFactor.values();
+        PersistentMap[] emptyMaps = new PersistentMap[factors.length];
+        for (BranchingFactor branching : factors) {
+            emptyMaps[branching.ordinal()] = new PersistentMap(null, 0, branching, null);
+        }
+        return emptyMaps;
     }
 
-    private PersistentMap(SubMap root, int elements) {
+    PersistentMap(SubMap root, int elements, BranchingFactor branching, MapStats stats) {
         this.root = root;
         this.elements = elements;
+        this.branching = branching;
+        this.stats = stats;
+    }
+
+    /**
+     * Returns a new version of the map with the given root, keeping the branching factor and the statistics.
+     */
+    <R> PersistentMap<K, R> withRoot(SubMap newRoot, int newElements) {
+        return new PersistentMap<>(newRoot, newElements, branching, stats);
+    }
+
+    /**
+     * Returns the same map, reporting its operations and those of all versions derived from it to the given
+     * statistics. The statistics are only updated when instrumentation is enabled with the
+     * {@code persistent.instrumentation} system property, and the operations are also reported as
+     * {@code persistent.MapOperation} Flight Recorder events when JFR is available.
+     */
+    public PersistentMap<K, V> instrumented(MapStats stats) {
+        return new PersistentMap<>(root, elements, branching, stats);
     }
 
     @VisibleForTesting
-    static <K, V> SubMap insertCollidingKeys(int levelFrom, KeyEntry<K, V> oldKeyEntry, K key, V value) {
+    static <K, V> Object insertCollidingKeys(int levelFrom, KeyEntry<K, V> oldKeyEntry, K key, V value) {
+        return insertCollidingKeys(BranchingFactor.WAYS_32, levelFrom, oldKeyEntry, key, value);
+    }
+
+    /**
+     * Returns the node to store in the bucket at levelFrom, which currently holds oldKeyEntry, so that it holds
+     * both the old and the new key.
+     */
+    static <K, V> Object insertCollidingKeys(BranchingFactor branching, int levelFrom, KeyEntry<K, V> oldKeyEntry,
+                                             K key, V value) {
         int oldHashCode = oldKeyEntry.key().hashCode();
         int newHashCode = key.hashCode();
-        int levelTo;
-        for (levelTo = levelFrom + 1; levelTo <= 6; levelTo++) {
-            int oldBucket = subhashForLevel(oldHashCode, levelTo);
-            int newBucket = subhashForLevel(newHashCode, levelTo);
-            if (oldBucket != newBucket) {
-                break;
-            }
-        }
-
-        SubMap subMap = null;
-        if (levelTo == 7) {
+        if (oldHashCode == newHashCode) {
             // Key collision occurred:
-            levelTo--;
-            KeyEntry<K, V> newKv = new KeyEntry<>(key, value, oldKeyEntry);
-            subMap = new SubMap(subhashForLevel(oldHashCode, levelTo--), newKv);
-        } else {
-            KeyEntry<K, V> newKv = new KeyEntry<>(key, value);
-            subMap = new SubMap(subhashForLevel(newHashCode, levelTo), newKv, subhashForLevel(oldHashCode, levelTo--), oldKeyEntry);
+            return CollisionNode.create(oldKeyEntry, key, value);
         }
+        return mergeLeaves(branching, levelFrom, oldKeyEntry, oldHashCode, new KeyEntry<>(key, value), newHashCode);
+    }
+
+    /**
+     * Merges two leaves with different hash codes, which share the same bucket at levelFrom, into a SubMap at
+     * the level where their hash codes diverge. The single-child levels in between are compressed.
+     */
+    private static Object mergeLeaves(BranchingFactor branching, int levelFrom,
+                                      Object leaf1, int hashCode1, Object leaf2, int hashCode2) {
+        int levelTo = branching.divergenceLevel(hashCode1, hashCode2);
+        assert (levelTo > levelFrom);
+
+        SubMap subMap = SubMap.create()
+                .set(branching.subhash(hashCode1, levelTo), leaf1)
+                .set(branching.subhash(hashCode2, levelTo), leaf2);
+        return compress(levelFrom, levelTo, hashCode1, subMap);
+    }
+
+    /**
+     * Returns the node to store in a bucket at levelFrom for a SubMap at levelTo, whose keys share the hash
+     * code bits of the levels in between with the given hash code.
+     */
+    private static Object compress(int levelFrom, int levelTo, int hashCode, SubMap subMap) {
+        return levelTo == levelFrom + 1 ? subMap : new CompressedNode(hashCode, levelTo, subMap);
+    }
 
-        while (levelTo > levelFrom) {
-            subMap = SubMap.create().set(subhashForLevel(newHashCode, levelTo--), subMap);
+    /**
+     * Returns the node to store in a bucket at bucketLevel for a SubMap at subMapLevel, keeping the trie in its
+     * canonical form: a SubMap left with a single leaf is replaced by the leaf itself, and a SubMap left with a
+     * single child node is folded into a compressed path. The prefix must agree with the keys of the SubMap on
+     * the levels above it.
+     */
+    static Object canonical(int bucketLevel, int subMapLevel, int prefix, SubMap subMap) {
+        if (subMap.capacity() == 1) {
+            Object only = subMap.entryAt(0);
+            if (isSubmap(only)) {
+                return compress(bucketLevel, subMapLevel + 1, representativeHash(only), (SubMap) only);
+            } else if (isCompressed(only)) {
+                CompressedNode compressed = (CompressedNode) only;
+                return compress(bucketLevel, compressed.level(), compressed.prefix(), compressed.child());
+            }
+            return only;
         }
+        return compress(bucketLevel, subMapLevel, prefix, subMap);
+    }
 
-        return subMap;
+    /**
+     * Returns a hash code that agrees with all keys below the node on the levels above the node.
+     */
+    private static int representativeHash(Object node) {
+        while (isSubmap(node)) {
+            node = ((SubMap) node).entryAt(0);
+        }
+        if (isCompressed(node)) {
+            return ((CompressedNode) node).prefix();
+        } else if (isCollision(node)) {
+            return ((CollisionNode) node).keyHashCode();
+        }
+        return ((KeyEntry) node).key().hashCode();
     }
 
-    private SubMap insert(SubMap root, int level, K key, V value, int hashCode) {
-        int bucket = subhashForLevel(hashCode, level);
+    private SubMap insert(SubMap root, int level, K key, V value, int hashCode, Instrumentation.Trace trace) {
+        int bucket = branching.subhash(hashCode, level);
 
         Object entry = root.get(bucket);
+        if (Instrumentation.ENABLED && trace != null) {
+            visit(trace, entry);
+        }
+        Object newEntry;
         if (isVacant(entry)) {
-            return root.set(bucket, new KeyEntry<>(key, value));
+            newEntry = new KeyEntry<>(key, value);
+            return copied(root.set(bucket, newEntry), newEntry, null, trace);
         } else if (isKeyValue(entry)) {
             KeyEntry<K, V> oldKeyEntry = (KeyEntry<K, V>) entry;
-            SubMap newSubMap = insertCollidingKeys(level, oldKeyEntry, key, value);
-            return root.replace(bucket, newSubMap);
+            if (hashCode == oldKeyEntry.key().hashCode() && key.equals(oldKeyEntry.key())) {
+                newEntry = new KeyEntry<>(key, value);
+            } else {
+                newEntry = insertCollidingKeys(branching, level, oldKeyEntry, key, value);
+                if (Instrumentation.ENABLED && trace != null && hashCode != oldKeyEntry.key().hashCode()) {
+                    trace.split();
+                }
+            }
+        } else if (isCollision(entry)) {
+            CollisionNode<K, V> collisionNode = (CollisionNode<K, V>) entry;
+            if (hashCode == collisionNode.keyHashCode()) {
+                newEntry = collisionNode.put(key, value);
+                if (Instrumentation.ENABLED && trace != null) {
+                    trace.collisionHit();
+                }
+            } else {
+                newEntry = mergeLeaves(branching, level,
+                        collisionNode, collisionNode.keyHashCode(), new KeyEntry<>(key, value), hashCode);
+                if (Instrumentation.ENABLED && trace != null) {
+                    trace.split();
+                }
+            }
+        } else if (isCompressed(entry)) {
+            newEntry = insertIntoCompressed((CompressedNode) entry, level, key, value, hashCode, trace);
+            return copied(root.replace(bucket, newEntry), newEntry, newEntry, trace);
         } else {
-            SubMap newSubmap = insert((SubMap) entry, level + 1, key, value, hashCode);
-            return root.replace(bucket, newSubmap);
+            SubMap newSubmap = insert((SubMap) entry, level + 1, key, value, hashCode, trace);
+            return copied(root.replace(bucket, newSubmap), newSubmap, newSubmap, trace);
+        }
+        return copied(root.replace(bucket, newEntry), newEntry, entry, trace);
+    }
+
+    /**
+     * Counts a SubMap visited on the search path, and the entry of its bucket if it is not another SubMap.
+     */
+    private static void visit(Instrumentation.Trace trace, Object entry) {
+        trace.visit();
+        if (!isVacant(entry) && !isSubmap(entry)) {
+            trace.visit();
+        }
+    }
+
+    /**
+     * Counts the SubMap copied at one level of an insertion, and the nodes created for its bucket which are
+     * neither shared with the old version nor counted below.
+     */
+    private static SubMap copied(SubMap newRoot, Object newEntry, Object shared, Instrumentation.Trace trace) {
+        if (Instrumentation.ENABLED && trace != null) {
+            trace.created(newEntry, shared);
+            trace.copied(newRoot);
+        }
+        return newRoot;
+    }
+
+    private Object insertIntoCompressed(CompressedNode compressed, int level, K key, V value, int hashCode,
+                                        Instrumentation.Trace trace) {
+        int prefix = compressed.prefix();
+        int childLevel = compressed.level();
+        if (compressed.matches(branching, level, hashCode)) {
+            SubMap newChild = insert(compressed.child(), childLevel, key, value, hashCode, trace);
+            CompressedNode newCompressed = new CompressedNode(prefix, childLevel, newChild);
+            if (Instrumentation.ENABLED && trace != null) {
+                trace.copied(newCompressed);
+            }
+            return newCompressed;
+        }
+
+        // The new key leaves the compressed path: split it at the level where the hash codes diverge.
+        int splitLevel = branching.divergenceLevel(prefix, hashCode);
+        SubMap split = SubMap.create()
+                .set(branching.subhash(prefix, splitLevel), compress(splitLevel, childLevel, prefix, compressed.child()))
+                .set(branching.subhash(hashCode, splitLevel), new KeyEntry<>(key, value));
+        Object newEntry = compress(level, splitLevel, hashCode, split);
+        if (Instrumentation.ENABLED && trace != null) {
+            trace.split();
+            trace.created(newEntry, compressed);
         }
+        return newEntry;
     }
 
     public PersistentMap<K, V> put(K key, V value) {
         SubMap mapRoot = root != null ? root : SubMap.create();
-        SubMap newRoot = insert(mapRoot, 0, key, value, key.hashCode());
-        return new PersistentMap<>(newRoot, elements + 1);
+        int hashCode = key.hashCode();
+        Instrumentation.Trace trace = Instrumentation.trace(stats);
+        SubMap newRoot = insert(mapRoot, 0, key, value, hashCode, trace);
+        if (Instrumentation.ENABLED && trace != null) {
+            Instrumentation.record(stats, Instrumentation.Operation.PUT, trace, true);
+        }
+        return withRoot(newRoot, newRoot.size());
     }
 
-    private SubMap removeKey(SubMap root, int level, K key) {
-        int hashCode = key.hashCode();
-        int bucket = subhashForLevel(hashCode, level);
+    /**
+     * Returns the SubMap without the key, or null if the key is absent. The returned SubMap is counted as copied
+     * by the caller, once it is known to be part of the new version.
+     */
+    private SubMap removeKey(SubMap root, int level, K key, int hashCode, Instrumentation.Trace trace) {
+        int bucket = branching.subhash(hashCode, level);
 
         Object entry = root.get(bucket);
+        if (Instrumentation.ENABLED && trace != null) {
+            visit(trace, entry);
+        }
         if (isKeyValue(entry)) {
-            KeyEntry kvEntry = (KeyEntry) root.get(bucket);
-            if (kvEntry.next() == null) {
+            KeyEntry kvEntry = (KeyEntry) entry;
+            if (!key.equals(kvEntry.key())) {
+                return null;
+            }
+            return root.removeEntry(bucket);
+        } else if (isCollision(entry)) {
+            CollisionNode<K, V> collisionNode = (CollisionNode<K, V>) entry;
+            if (Instrumentation.ENABLED && trace != null && hashCode == collisionNode.keyHashCode()) {
+                trace.collisionHit();
+            }
+            Object remaining = collisionNode.remove(key);
+            if (remaining == collisionNode) {
+                return null;
+            }
+            if (Instrumentation.ENABLED && trace != null) {
+                trace.copied(remaining);
+            }
+            return root.replace(bucket, remaining);
+        } else if (isCompressed(entry)) {
+            CompressedNode compressed = (CompressedNode) entry;
+            if (!compressed.matches(branching, level, hashCode)) {
+                return null;
+            }
+            SubMap copy = removeKey(compressed.child(), compressed.level(), key, hashCode, trace);
+            if (copy == null) {
+                return null;
+            } else if (copy.isEmpty()) {
                 return root.removeEntry(bucket);
             } else {
-                return root.replace(bucket, removeEntryFromChain(key, kvEntry));
+                Object newEntry = canonical(level, compressed.level(), compressed.prefix(), copy);
+                return root.replace(bucket, placed(newEntry, copy, trace));
             }
         } else if (isSubmap(entry)) {
             SubMap subMap = (SubMap) entry;
-            SubMap copy = removeKey(subMap, level + 1, key);
-            if (copy != null && copy.isEmpty()) {
+            SubMap copy = removeKey(subMap, level + 1, key, hashCode, trace);
+            if (copy == null) {
+                return null;
+            } else if (copy.isEmpty()) {
                 return root.removeEntry(bucket);
             } else {
-                return root.replace(bucket, copy);
+                return root.replace(bucket, placed(canonical(level, level + 1, hashCode, copy), copy, trace));
             }
         }
 
         return null;
     }
 
-    private KeyEntry<K, V> removeEntryFromChain(K key, KeyEntry<K, V> root) {
-        if (!key.equals(root.key())) {
-            return new KeyEntry<>(root.key(), root.value(), removeEntryFromChain(key, root.next()));
-        } else {
-            return root.next();
+    /**
+     * Counts the node stored in a bucket in place of a SubMap the key was removed from: a compressed node made by
+     * canonical(), and the copied SubMap unless it was replaced by one of its entries.
+     */
+    private static Object placed(Object newEntry, SubMap copy, Instrumentation.Trace trace) {
+        if (Instrumentation.ENABLED && trace != null) {
+            Object node = newEntry;
+            if (isCompressed(node)) {
+                trace.copied(node);
+                node = ((CompressedNode) node).child();
+            }
+            if (node == copy) {
+                trace.copied(copy);
+            }
         }
+        return newEntry;
     }
 
     public PersistentMap<K, V> remove(K key) {
@@ -132,37 +347,192 @@ public final class PersistentMap<K, V> {
             return this;
         }
 
-        SubMap newRoot = removeKey(root, 0, key);
+        int hashCode = key.hashCode();
+        Instrumentation.Trace trace = Instrumentation.trace(stats);
+        SubMap newRoot = removeKey(root, 0, key, hashCode, trace);
+        if (Instrumentation.ENABLED && trace != null) {
+            if (newRoot != null && !newRoot.isEmpty()) {
+                trace.copied(newRoot);
+            }
+            Instrumentation.record(stats, Instrumentation.Operation.REMOVE, trace, newRoot != null);
+        }
         if (newRoot != null) {
-            return new PersistentMap<>(newRoot, elements - 1);
+            return withRoot(newRoot, elements - 1);
         } else {
             return this;
         }
     }
 
-    private V valueFromChain(KeyEntry<K, V> keyEntry, K key) {
-        while (keyEntry != null && !keyEntry.key().equals(key)) {
-            keyEntry = keyEntry.next();
+    /**
+     * Returns a map without any of the given keys, or this map if none of them is present. The keys are sorted by
+     * hash code, so that the trie is walked once and each affected node is rebuilt once, while the subtrees
+     * without any of the keys are shared with this map.
+     */
+    public PersistentMap<K, V> removeAll(Collection<? extends K> keys) {
+        if (elements == 0 || keys.isEmpty()) {
+            return this;
         }
-        return keyEntry != null ? keyEntry.value() : null;
+
+        Object[] sortedKeys = keys.toArray();
+        Arrays.sort(sortedKeys, Comparator.comparingInt(key -> key.hashCode() ^ Integer.MIN_VALUE));
+        int[] hashCodes = new int[sortedKeys.length];
+        for (int i = 0; i < sortedKeys.length; i++) {
+            hashCodes[i] = sortedKeys[i].hashCode();
+        }
+
+        SubMap newRoot = removeKeys(root, 0, sortedKeys, hashCodes, 0, sortedKeys.length);
+        return newRoot == root ? this : withRoot(newRoot, newRoot.size());
+    }
+
+    /**
+     * Returns a map with only the entries whose keys are in the given collection, or this map if all of them are.
+     * The collection should have a fast contains method, such as a Set.
+     */
+    public PersistentMap<K, V> retainAll(Collection<?> keys) {
+        return filter((key, value) -> keys.contains(key));
+    }
+
+    /**
+     * Returns a map without the entries matching the predicate, or this map if none does.
+     */
+    public PersistentMap<K, V> removeIf(BiPredicate<? super K, ? super V> predicate) {
+        return filter((key, value) -> !predicate.test(key, value));
     }
 
-    private V lookup(SubMap root, int level, K key, int hashCode) {
-        int bucket = subhashForLevel(hashCode, level);
+    /**
+     * Removes the keys from from up to to, sorted by unsigned hash code, from the SubMap at the given level. Keys
+     * falling into the same bucket are contiguous and removed from it together.
+     */
+    private SubMap removeKeys(SubMap subMap, int level, Object[] keys, int[] hashCodes, int from, int to) {
+        long mask = subMap.mask();
+        long newMask = mask;
+        Object[] entries = null;
+        int i = from;
+        while (i < to) {
+            int bucket = branching.subhash(hashCodes[i], level);
+            int j = i + 1;
+            while (j < to && branching.subhash(hashCodes[j], level) == bucket) {
+                j++;
+            }
+
+            if (bitSet(mask, bucket)) {
+                int index = populationCountAt(mask, bucket);
+                Object entry = subMap.entryAt(index);
+                Object remaining = removeKeysFromNode(entry, level, keys, hashCodes, i, j);
+                if (remaining != entry) {
+                    if (entries == null) {
+                        entries = new Object[subMap.capacity()];
+                        subMap.copyEntries(0, entries, 0, entries.length);
+                    }
+                    entries[index] = remaining;
+                    if (remaining == null) {
+                        newMask = clearBit(newMask, bucket);
+                    }
+                }
+            }
+            i = j;
+        }
+
+        if (entries == null) {
+            return subMap;
+        }
+        Object[] compacted = new Object[Long.bitCount(newMask)];
+        int count = 0;
+        for (Object entry : entries) {
+            if (entry != null) {
+                compacted[count++] = entry;
+            }
+        }
+        return SubMap.of(newMask, compacted);
+    }
+
+    /**
+     * Returns the node to store in a bucket at bucketLevel, which holds the entry, once the keys are removed from
+     * it: the entry itself if none of the keys was present, or null if nothing is left.
+     */
+    private Object removeKeysFromNode(Object entry, int bucketLevel, Object[] keys, int[] hashCodes, int from,
+                                      int to) {
+        if (isKeyValue(entry)) {
+            KeyEntry<K, V> keyEntry = (KeyEntry<K, V>) entry;
+            int hashCode = keyEntry.key().hashCode();
+            for (int i = from; i < to; i++) {
+                if (hashCodes[i] == hashCode && keyEntry.key().equals(keys[i])) {
+                    return null;
+                }
+            }
+            return entry;
+        } else if (isCollision(entry)) {
+            Object remaining = entry;
+            int hashCode = ((CollisionNode) entry).keyHashCode();
+            for (int i = from; i < to && remaining != null; i++) {
+                if (hashCodes[i] != hashCode) {
+                    continue;
+                }
+                if (isCollision(remaining)) {
+                    remaining = ((CollisionNode<K, V>) remaining).remove((K) keys[i]);
+                } else if (((KeyEntry) remaining).key().equals(keys[i])) {
+                    remaining = null;
+                }
+            }
+            return remaining;
+        } else if (isCompressed(entry)) {
+            CompressedNode compressed = (CompressedNode) entry;
+            // Only the keys sharing the skipped levels can be below the node, and they are contiguous:
+            int first = from;
+            while (first < to && !compressed.matches(branching, bucketLevel, hashCodes[first])) {
+                first++;
+            }
+            int last = first;
+            while (last < to && compressed.matches(branching, bucketLevel, hashCodes[last])) {
+                last++;
+            }
+            if (first == last) {
+                return entry;
+            }
+            SubMap child = removeKeys(compressed.child(), compressed.level(), keys, hashCodes, first, last);
+            if (child == compressed.child()) {
+                return entry;
+            }
+            return child.isEmpty() ? null : canonical(bucketLevel, compressed.level(), compressed.prefix(), child);
+        } else {
+            SubMap subMap = removeKeys((SubMap) entry, bucketLevel + 1, keys, hashCodes, from, to);
+            if (subMap == entry) {
+                return entry;
+            }
+            return subMap.isEmpty() ? null : canonical(bucketLevel, bucketLevel + 1, hashCodes[from], subMap);
+        }
+    }
+
+    private V lookup(SubMap root, int level, K key, int hashCode, Instrumentation.Trace trace) {
+        int bucket = branching.subhash(hashCode, level);
 
         Object entry = root.get(bucket);
+        if (Instrumentation.ENABLED && trace != null) {
+            visit(trace, entry);
+        }
         if (isVacant(entry)) {
             return null;
         } else if (isKeyValue(entry)) {
             KeyEntry<K, V> keyEntry = ((KeyEntry<K, V>) entry);
-            if (level < 6) {
-                return hashCode == keyEntry.key().hashCode() ? keyEntry.value() : null;
-            } else {
-                return valueFromChain(keyEntry, key);
+            return hashCode == keyEntry.key().hashCode() && key.equals(keyEntry.key()) ? keyEntry.value() : null;
+        } else if (isCollision(entry)) {
+            CollisionNode<K, V> collisionNode = (CollisionNode<K, V>) entry;
+            if (hashCode != collisionNode.keyHashCode()) {
+                return null;
+            }
+            if (Instrumentation.ENABLED && trace != null) {
+                trace.collisionHit();
+            }
+            return collisionNode.get(key);
+        } else if (isCompressed(entry)) {
+            CompressedNode compressed = (CompressedNode) entry;
+            if (!compressed.matches(branching, level, hashCode)) {
+                return null;
             }
+            return lookup(compressed.child(), compressed.level(), key, hashCode, trace);
         } else {
             SubMap subMap = (SubMap) entry;
-            return lookup(subMap, level + 1, key, key.hashCode());
+            return lookup(subMap, level + 1, key, hashCode, trace);
         }
     }
 
@@ -171,7 +541,115 @@ public final class PersistentMap<K, V> {
             return null;
         }
 
-        return lookup(root, 0, key, key.hashCode());
+        int hashCode = key.hashCode();
+        Instrumentation.Trace trace = Instrumentation.trace(stats);
+        V value = lookup(root, 0, key, hashCode, trace);
+        if (Instrumentation.ENABLED && trace != null) {
+            Instrumentation.record(stats, Instrumentation.Operation.GET, trace, false);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the values of the keys, in the iteration order of the collection, with null for the absent keys.
+     * See {@link #getAll(Object[], Object[])}.
+     */
+    public List<V> getAll(Collection<? extends K> keys) {
+        K[] keyArray = (K[]) keys.toArray();
+        V[] values = (V[]) new Object[keyArray.length];
+        getAll(keyArray, values);
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Stores the value of keys[i], or null if it is absent, into values[i]. The keys are sorted by hash code, so
+     * that the trie is walked once and the nodes shared by the paths of several keys are visited once, in the
+     * same way as by {@link #removeAll(Collection)}. Apart from the sort order, nothing is allocated per key.
+     */
+    public void getAll(K[] keys, V[] values) {
+        if (values.length < keys.length) {
+            throw new IllegalArgumentException(format("Values array of length %d for %d keys",
+                    values.length, keys.length));
+        }
+        Arrays.fill(values, 0, keys.length, null);
+        if (elements == 0 || keys.length == 0) {
+            return;
+        }
+
+        // The unsigned hash code in the high half and the index of the key in the low half, so that sorting by
+        // signed value sorts by unsigned hash code:
+        long[] order = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = (long) (keys[i].hashCode() ^ Integer.MIN_VALUE) << Integer.SIZE | i;
+        }
+        Arrays.sort(order);
+        lookupKeys(root, 0, keys, order, 0, order.length, values);
+    }
+
+    private static int hashCodeOf(long order) {
+        return (int) (order >>> Integer.SIZE) ^ Integer.MIN_VALUE;
+    }
+
+    private static int indexOf(long order) {
+        return (int) order;
+    }
+
+    /**
+     * Looks up the keys from from up to to in the given order, sorted by unsigned hash code, in the SubMap at
+     * the given level. Keys falling into the same bucket are contiguous and looked up in it together.
+     */
+    private void lookupKeys(SubMap subMap, int level, K[] keys, long[] order, int from, int to, V[] values) {
+        long mask = subMap.mask();
+        int i = from;
+        while (i < to) {
+            int bucket = branching.subhash(hashCodeOf(order[i]), level);
+            int j = i + 1;
+            while (j < to && branching.subhash(hashCodeOf(order[j]), level) == bucket) {
+                j++;
+            }
+            if (bitSet(mask, bucket)) {
+                lookupKeysInNode(subMap.entryAt(populationCountAt(mask, bucket)), level, keys, order, i, j, values);
+            }
+            i = j;
+        }
+    }
+
+    private void lookupKeysInNode(Object entry, int bucketLevel, K[] keys, long[] order, int from, int to,
+                                  V[] values) {
+        if (isKeyValue(entry)) {
+            KeyEntry<K, V> keyEntry = (KeyEntry<K, V>) entry;
+            int hashCode = keyEntry.key().hashCode();
+            for (int i = from; i < to; i++) {
+                int index = indexOf(order[i]);
+                if (hashCodeOf(order[i]) == hashCode && keyEntry.key().equals(keys[index])) {
+                    values[index] = keyEntry.value();
+                }
+            }
+        } else if (isCollision(entry)) {
+            CollisionNode<K, V> collisionNode = (CollisionNode<K, V>) entry;
+            for (int i = from; i < to; i++) {
+                int index = indexOf(order[i]);
+                if (hashCodeOf(order[i]) == collisionNode.keyHashCode()) {
+                    values[index] = collisionNode.get(keys[index]);
+                }
+            }
+        } else if (isCompressed(entry)) {
+            CompressedNode compressed = (CompressedNode) entry;
+            // Only the keys sharing the skipped levels can be below the node, and they are contiguous:
+            int first = from;
+            while (first < to && !compressed.matches(branching, bucketLevel, hashCodeOf(order[first]))) {
+                first++;
+            }
+            int last = first;
+            while (last < to && compressed.matches(branching, bucketLevel, hashCodeOf(order[last]))) {
+                last++;
+            }
+            if (first < last) {
+                lookupKeys(compressed.child(), compressed.level(), keys, order, first, last, values);
+            }
+        } else {
+            lookupKeys((SubMap) entry, bucketLevel + 1, keys, order, from, to, values);
+        }
     }
 
 
@@ -192,18 +670,261 @@ public final class PersistentMap<K, V> {
         return elements;
     }
 
+    public BranchingFactor branchingFactor() {
+        return branching;
+    }
+
+    SubMap root() {
+        return root != null ? root : SubMap.create();
+    }
+
+    /**
+     * Calls the action for every entry, processing the root buckets as parallel ForkJoin tasks on the common pool.
+     */
+    public void parallelForEach(BiConsumer<? super K, ? super V> action) {
+        BulkOperations.forEach(this, action);
+    }
+
+    /**
+     * Transforms every entry and combines the results in parallel. Returns null if the map is empty.
+     */
+    public <U> U reduce(BiFunction<? super K, ? super V, ? extends U> transformer, BinaryOperator<U> reducer) {
+        return BulkOperations.reduce(this, transformer, reducer);
+    }
+
+    /**
+     * Returns a collector which loads the elements into a new map, keeping the last value of duplicate keys in
+     * encounter order. The elements are partitioned by root bucket as they are collected, and the subtrees of the
+     * root buckets are then built as parallel ForkJoin tasks on the common pool.
+     */
+    public static <T, K, V> Collector<T, ?, PersistentMap<K, V>> toPersistentMap(
+            Function<? super T, ? extends K> keyMapper, Function<? super T, ? extends V> valueMapper) {
+        return toPersistentMap(keyMapper, valueMapper, BranchingFactor.WAYS_32);
+    }
+
+    /**
+     * Returns a collector which loads the elements into a new map with the given branching factor, see
+     * {@link #toPersistentMap(Function, Function)}.
+     */
+    public static <T, K, V> Collector<T, ?, PersistentMap<K, V>> toPersistentMap(
+            Function<? super T, ? extends K> keyMapper, Function<? super T, ? extends V> valueMapper,
+            BranchingFactor branching) {
+        return BulkOperations.toPersistentMap(branching, keyMapper, valueMapper);
+    }
+
+    /**
+     * Splits the map into n shards, each holding the keys of a contiguous range of root buckets. The ranges are
+     * balanced by the number of keys, as far as the granularity of the root buckets allows, using the key counts of
+     * the root entries rather than walking the trie. The subtrees below the root are shared with this map by
+     * reference, and {@link #join(List)} reassembles the shards.
+     */
+    public List<PersistentMap<K, V>> split(int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException(format("Invalid number of shards: %d", n));
+        }
+
+        SubMap mapRoot = root();
+        int capacity = mapRoot.capacity();
+        List<PersistentMap<K, V>> shards = new ArrayList<>(n);
+        long remaining = mapRoot.mask();
+        int index = 0;
+        long keysBefore = 0;
+        for (int shard = 0; shard < n; shard++) {
+            int from = index;
+            long shardMask = 0;
+            // Each root entry goes to the shard where the median of its keys falls:
+            while (index < capacity) {
+                int count = entryCount(mapRoot.entryAt(index));
+                if (Math.min(n - 1, (keysBefore + count / 2) * n / elements) != shard) {
+                    break;
+                }
+                shardMask |= Long.lowestOneBit(remaining);
+                remaining &= remaining - 1;
+                keysBefore += count;
+                index++;
+            }
+
+            if (index == from) {
+                shards.add(withRoot(null, 0));
+            } else if (index - from == capacity) {
+                shards.add(this);
+            } else {
+                Object[] entries = new Object[index - from];
+                mapRoot.copyEntries(from, entries, 0, entries.length);
+                SubMap shardRoot = SubMap.of(shardMask, entries);
+                shards.add(withRoot(shardRoot, shardRoot.size()));
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Reassembles shards holding disjoint sets of root buckets, such as those returned by {@link #split(int)},
+     * into a single map. Only the roots are merged, in O(width) time.
+     */
+    public static <K, V> PersistentMap<K, V> join(List<PersistentMap<K, V>> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shards to join");
+        }
+
+        PersistentMap<K, V> first = shards.get(0);
+        long mask = 0;
+        int elements = 0;
+        for (PersistentMap<K, V> shard : shards) {
+            if (shard.branching != first.branching) {
+                throw new IllegalArgumentException(format("Branching factor mismatch: %s and %s",
+                        first.branching, shard.branching));
+            }
+            long shardMask = shard.root().mask();
+            if ((mask & shardMask) != 0) {
+                throw new IllegalArgumentException(format("Shards overlap in root buckets %s",
+                        Long.toBinaryString(mask & shardMask)));
+            }
+            mask |= shardMask;
+            elements += shard.elements;
+        }
+
+        if (elements == 0) {
+            return first.withRoot(null, 0);
+        }
+        Object[] entries = new Object[Long.bitCount(mask)];
+        for (PersistentMap<K, V> shard : shards) {
+            SubMap shardRoot = shard.root();
+            long shardMask = shardRoot.mask();
+            for (int i = 0; i < shardRoot.capacity(); i++, shardMask &= shardMask - 1) {
+                int bucket = Long.numberOfTrailingZeros(shardMask);
+                entries[populationCountAt(mask, bucket)] = shardRoot.entryAt(i);
+            }
+        }
+        return first.withRoot(SubMap.of(mask, entries), elements);
+    }
+
+    /**
+     * Returns the number of keys below the node, in O(1) time.
+     */
+    static int entryCount(Object node) {
+        if (isKeyValue(node)) {
+            return 1;
+        } else if (isCollision(node)) {
+            return ((CollisionNode) node).size();
+        } else if (isCompressed(node)) {
+            return ((CompressedNode) node).child().size();
+        } else if (isSubmap(node)) {
+            return ((SubMap) node).size();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns a map with every value transformed, computed in parallel. The trie shape of the new map is exactly
+     * the same as that of this map, so no keys are rehashed.
+     */
+    public <R> PersistentMap<K, R> mapValues(Function<? super V, ? extends R> mapper) {
+        return BulkOperations.mapValues(this, (key, value) -> mapper.apply(value));
+    }
+
+    /**
+     * Returns a read-only view with every value transformed on access. Each transformed value is computed at
+     * most once, and {@link MappedValuesView#force()} materializes the view into a map with the same trie shape.
+     */
+    public <R> MappedValuesView<K, R> viewMapValues(Function<? super V, ? extends R> mapper) {
+        return MappedValuesView.create(this, mapper);
+    }
+
+    /**
+     * Returns a map with only the entries matching the predicate, computed in parallel. Subtrees where every entry
+     * matches are shared with this map, and this map is returned if nothing is removed.
+     */
+    public PersistentMap<K, V> filter(BiPredicate<? super K, ? super V> predicate) {
+        return BulkOperations.filter(this, predicate);
+    }
+
+    /**
+     * Returns the changes which turn this map into the newer one, in trie order. Subtrees shared between the two
+     * versions are skipped without being visited, so the cost depends on how much they differ rather than on
+     * their sizes. Values are compared with equals(). Both maps must have the same branching factor.
+     */
+    public List<MapChange<K, V>> diff(PersistentMap<K, V> newer) {
+        return StructuralDiff.changes(this, newer);
+    }
+
+    /**
+     * Returns a read-only copy of the map laid out in flat arrays, whose lookups chase fewer pointers. Freezing
+     * takes O(n) time, so it pays off for versions which are read many times. See {@link FrozenMap}.
+     */
+    public FrozenMap<K, V> freeze() {
+        return FrozenMap.freeze(this);
+    }
+
+    /**
+     * Returns the entry at the given position in trie order, in O(depth) time, using the key counts kept in the
+     * nodes. Trie order sorts the entries by the subhashes of their hash codes, level by level; colliding keys are
+     * in the order of their collision node. The positions of the keys change as other keys are added or removed.
+     */
+    public Map.Entry<K, V> entryAt(int index) {
+        if (index < 0 || index >= elements) {
+            throw new IndexOutOfBoundsException(format("Index %d out of %d entries", index, elements));
+        }
+
+        Object node = root;
+        while (true) {
+            if (isSubmap(node)) {
+                SubMap subMap = (SubMap) node;
+                int i = 0;
+                node = subMap.entryAt(0);
+                for (int count = entryCount(node); index >= count; count = entryCount(node)) {
+                    index -= count;
+                    node = subMap.entryAt(++i);
+                }
+            } else if (isCompressed(node)) {
+                node = ((CompressedNode) node).child();
+            } else if (isCollision(node)) {
+                return ((CollisionNode<K, V>) node).entryAt(index);
+            } else {
+                return (KeyEntry<K, V>) node;
+            }
+        }
+    }
+
+    /**
+     * Returns an entry chosen uniformly at random, or null if the map is empty.
+     */
+    public Map.Entry<K, V> randomEntry(Random random) {
+        return elements == 0 ? null : entryAt(random.nextInt(elements));
+    }
+
+    /**
+     * Returns the statistics of an instrumented map, or an empty string.
+     */
     public String metrics() {
-        // No-op
-        return "";
+        return stats != null ? stats.toString() : "";
     }
 
+    /**
+     * Returns the node at the given level along the path of the hash code. A leaf found above the level is
+     * returned as is, and so is a compressed node whose path spans over the level.
+     */
     public Object nodeAt(int level, int hashCode) {
         Object desired = root;
-        for (int i = 0; i < level; i++) {
-            assert (isSubmap(desired));
-            SubMap subMap = (SubMap) desired;
-            int bucket = subhashForLevel(hashCode, i);
-            desired = subMap.get(bucket);
+        int i = 0;
+        while (i < level) {
+            if (isSubmap(desired)) {
+                SubMap subMap = (SubMap) desired;
+                int bucket = branching.subhash(hashCode, i);
+                desired = subMap.get(bucket);
+                i++;
+            } else if (isCompressed(desired)) {
+                CompressedNode compressed = (CompressedNode) desired;
+                if (!compressed.matches(branching, i - 1, hashCode)) {
+                    return null;
+                } else if (compressed.level() > level) {
+                    return compressed;
+                }
+                desired = compressed.child();
+                i = compressed.level();
+            } else {
+                break;
+            }
         }
         return desired;
     }
@@ -273,20 +994,10 @@ public final class PersistentMap<K, V> {
     static class KeyEntry<K, V> implements Map.Entry<K, V> {
         private final K key;
         private final V value;
-        private final KeyEntry<K, V> next;
 
         public KeyEntry(K key, V value) {
-            this(key, value, null);
-        }
-
-        public KeyEntry(K key, V value, KeyEntry<K, V> next) {
             this.key = key;
             this.value = value;
-            this.next = next;
-        }
-
-        KeyEntry<K, V> next() {
-            return next;
         }
 
         K key() {
@@ -299,9 +1010,8 @@ public final class PersistentMap<K, V> {
 
         @Override
         public String toString() {
-            String nextStr = next != null ? " -> " + next.toString() : "";
             int hashCode = key.hashCode();
-            return format("KeyValue(%d [%s], %s)%s", hashCode, hashToDottedString(hashCode), value, nextStr);
+            return format("KeyValue(%d [%s], %s)", hashCode, hashToDottedString(hashCode), value);
         }
 
         @Override
@@ -320,55 +1030,376 @@ public final class PersistentMap<K, V> {
         }
     }
 
+    /**
+     * Holds the entries whose keys have identical hash codes, in compact parallel arrays.
+     *
+     * Once the node grows past SORT_THRESHOLD entries and all keys are Comparable instances of the same class,
+     * the keys are kept sorted and looked up with a binary search. This bounds the cost of lookups against
+     * deliberately colliding keys (e.g. crafted Strings) to O(log n).
+     */
     @VisibleForTesting
-    static class SubMap {
-        public static SubMap EMPTY_SUBMAP = new SubMap();
+    static final class CollisionNode<K, V> {
+        static final int SORT_THRESHOLD = 8;
+
+        private final int hashCode;
+        private final Object[] keys;
+        private final Object[] values;
+        private final boolean sorted;
+
+        private CollisionNode(int hashCode, Object[] keys, Object[] values, boolean sorted) {
+            this.hashCode = hashCode;
+            this.keys = keys;
+            this.values = values;
+            this.sorted = sorted;
+        }
 
-        final private int mask;
-        final private Object[] hashArray;
+        static <K, V> CollisionNode<K, V> create(KeyEntry<K, V> keyEntry, K key, V value) {
+            assert (keyEntry.key().hashCode() == key.hashCode());
+            return new CollisionNode<>(key.hashCode(),
+                    new Object[]{keyEntry.key(), key},
+                    new Object[]{keyEntry.value(), value},
+                    false);
+        }
 
-        public static SubMap create() {
-            return EMPTY_SUBMAP;
+        int size() {
+            return keys.length;
         }
 
-        private SubMap() {
-            // Todo: is it necessary to create an array of zero objects?
-            this.hashArray = new Object[0];
-            this.mask = 0;
+        int keyHashCode() {
+            return hashCode;
         }
 
-        public SubMap(int mask, Object[] hashArray) {
-            this.mask = mask;
-            this.hashArray = hashArray;
+        boolean isSorted() {
+            return sorted;
         }
 
-        public <K, V> SubMap(int bucket, KeyEntry<K, V> keyEntry) {
-            this.hashArray = new Object[1];
-            this.hashArray[0] = keyEntry;
-            this.mask = setBit(0, bucket);
+        K keyAt(int index) {
+            return (K) keys[index];
         }
 
-        public <K, V> SubMap(int bucket1, KeyEntry<K, V> keyEntry1, int bucket2, KeyEntry<K, V> keyEntry2) {
-            this.hashArray = new Object[2];
-            if (bucket1 < bucket2) {
-                int mask = 0;
-                this.hashArray[0] = keyEntry1;
-                mask = setBit(mask, bucket1);
+        V valueAt(int index) {
+            return (V) values[index];
+        }
+
+        KeyEntry<K, V> entryAt(int index) {
+            return new KeyEntry<>(keyAt(index), valueAt(index));
+        }
+
+        V get(K key) {
+            int index = indexOf(key);
+            return index >= 0 ? valueAt(index) : null;
+        }
+
+        CollisionNode<K, V> put(K key, V value) {
+            int index = indexOf(key);
+            if (index >= 0) {
+                Object[] newValues = Arrays.copyOf(values, values.length);
+                newValues[index] = value;
+                return new CollisionNode<>(hashCode, keys, newValues, sorted);
+            }
 
-                this.hashArray[1] = keyEntry2;
-                mask = setBit(mask, bucket2);
+            boolean keepSorted = sorted && comparableWith(key);
+            int position = keepSorted ? -(binarySearch(key) + 1) : keys.length;
+            Object[] newKeys = insertAt(keys, position, key);
+            Object[] newValues = insertAt(values, position, value);
+
+            if (!keepSorted && newKeys.length > SORT_THRESHOLD && allComparable(newKeys)) {
+                sortByKey(newKeys, newValues);
+                keepSorted = true;
+            }
+            return new CollisionNode<>(hashCode, newKeys, newValues, keepSorted);
+        }
+
+        /**
+         * Returns this node if the key is absent, the remaining KeyEntry when only one entry is left, or
+         * otherwise a new collision node without the key.
+         */
+        Object remove(K key) {
+            int index = indexOf(key);
+            if (index < 0) {
+                return this;
+            } else if (keys.length == 2) {
+                int other = 1 - index;
+                return new KeyEntry<>(keyAt(other), valueAt(other));
+            }
+            return new CollisionNode<>(hashCode, removeAt(keys, index), removeAt(values, index), sorted);
+        }
+
+        /**
+         * Returns a node with the same keys and the given values, in the same order.
+         */
+        <R> CollisionNode<K, R> withValues(Object[] newValues) {
+            return new CollisionNode<>(hashCode, keys, newValues, sorted);
+        }
 
-                this.mask = mask;
+        <R> CollisionNode<K, R> mapValues(BiFunction<? super K, ? super V, ? extends R> mapper) {
+            Object[] newValues = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                newValues[i] = mapper.apply(keyAt(i), valueAt(i));
+            }
+            return new CollisionNode<>(hashCode, keys, newValues, sorted);
+        }
+
+        /**
+         * Returns this node if all entries match, null if none do, the remaining KeyEntry when only one entry
+         * matches, or otherwise a new collision node with the matching entries.
+         */
+        Object filter(BiPredicate<? super K, ? super V> predicate) {
+            boolean[] matches = new boolean[keys.length];
+            int matching = 0;
+            for (int i = 0; i < keys.length; i++) {
+                matches[i] = predicate.test(keyAt(i), valueAt(i));
+                matching += matches[i] ? 1 : 0;
+            }
+
+            if (matching == keys.length) {
+                return this;
+            } else if (matching == 0) {
+                return null;
+            }
+
+            Object[] newKeys = new Object[matching];
+            Object[] newValues = new Object[matching];
+            for (int i = 0, j = 0; i < keys.length; i++) {
+                if (matches[i]) {
+                    newKeys[j] = keys[i];
+                    newValues[j++] = values[i];
+                }
+            }
+            return matching == 1 ? new KeyEntry<>(newKeys[0], newValues[0])
+                    : new CollisionNode<>(hashCode, newKeys, newValues, sorted);
+        }
+
+        int indexOf(Object key) {
+            if (sorted && comparableWith(key)) {
+                int index = binarySearch(key);
+                if (index < 0) {
+                    return -1;
+                } else if (keys[index].equals(key)) {
+                    return index;
+                }
+                // compareTo() is inconsistent with equals(): fall back to a linear scan.
+            }
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int binarySearch(Object key) {
+            Comparable<Object> comparable = (Comparable<Object>) key;
+            int low = 0;
+            int high = keys.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = comparable.compareTo(keys[mid]);
+                if (cmp > 0) {
+                    low = mid + 1;
+                } else if (cmp < 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        private boolean comparableWith(Object key) {
+            return key.getClass() == keys[0].getClass();
+        }
+
+        private static boolean allComparable(Object[] keys) {
+            Class<?> keyClass = keys[0].getClass();
+            if (!Comparable.class.isAssignableFrom(keyClass)) {
+                return false;
+            }
+            for (Object key : keys) {
+                if (key.getClass() != keyClass) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static void sortByKey(Object[] keys, Object[] values) {
+            for (int i = 1; i < keys.length; i++) {
+                Object key = keys[i];
+                Object value = values[i];
+                int j = i - 1;
+                while (j >= 0 && ((Comparable<Object>) keys[j]).compareTo(key) > 0) {
+                    keys[j + 1] = keys[j];
+                    values[j + 1] = values[j];
+                    j--;
+                }
+                keys[j + 1] = key;
+                values[j + 1] = value;
+            }
+        }
+
+        private static Object[] insertAt(Object[] array, int index, Object element) {
+            Object[] newArray = new Object[array.length + 1];
+            System.arraycopy(array, 0, newArray, 0, index);
+            newArray[index] = element;
+            System.arraycopy(array, index, newArray, index + 1, array.length - index);
+            return newArray;
+        }
+
+        private static Object[] removeAt(Object[] array, int index) {
+            Object[] newArray = new Object[array.length - 1];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 1, newArray, index, array.length - (index + 1));
+            return newArray;
+        }
+
+        @Override
+        public String toString() {
+            return format("Collision(%d [%s], %d keys%s)", hashCode, hashToDottedString(hashCode), keys.length,
+                    sorted ? ", sorted" : "");
+        }
+    }
+
+    /**
+     * Stands in for a chain of single-child SubMaps. The compressed node is stored in a bucket at some level,
+     * and leads directly to the child SubMap at a deeper level. All keys below share the hash code bits of the
+     * levels in between, which are the corresponding bits of the prefix.
+     */
+    @VisibleForTesting
+    static final class CompressedNode {
+        private final int prefix;
+        private final int level;
+        private final SubMap child;
+
+        CompressedNode(int prefix, int level, SubMap child) {
+            this.prefix = prefix;
+            this.level = level;
+            this.child = child;
+        }
+
+        int prefix() {
+            return prefix;
+        }
+
+        /**
+         * Returns the level of the child SubMap.
+         */
+        int level() {
+            return level;
+        }
+
+        SubMap child() {
+            return child;
+        }
+
+        /**
+         * Tells if the hash code shares the skipped levels with this node, given the level of the bucket the
+         * node is stored in.
+         */
+        boolean matches(BranchingFactor branching, int bucketLevel, int hashCode) {
+            return ((hashCode ^ prefix) & branching.levelMask(bucketLevel + 1, level)) == 0;
+        }
+
+        @Override
+        public String toString() {
+            return format("Compressed(%s, level %d)", hashToDottedString(prefix), level);
+        }
+    }
+
+    /**
+     * A trie node. The bitmap records which buckets are occupied, and the entries of the occupied buckets are
+     * stored in bucket order.
+     *
+     * Nodes with at most SMALL_CAPACITY entries hold them in fields of the fixed-arity SubMap1 .. SubMap4
+     * classes, saving the separate Object[] of the array-backed node. Updates pick the representation that fits
+     * the resulting number of entries, so nodes are upgraded and downgraded transparently.
+     */
+    @VisibleForTesting
+    abstract static class SubMap {
+        static final int SMALL_CAPACITY = 4;
+        public static SubMap EMPTY_SUBMAP = new ArraySubMap(0, 0, new Object[0]);
+
+        final private long mask;
+        /**
+         * Number of keys below the node, so that sizes and ranks are found without walking the subtree.
+         */
+        final private int size;
+
+        public static SubMap create() {
+            return EMPTY_SUBMAP;
+        }
+
+        public static <K, V> SubMap of(int bucket, KeyEntry<K, V> keyEntry) {
+            return new SubMap1(setBit(0L, bucket), 1, keyEntry);
+        }
+
+        public static <K, V> SubMap of(int bucket1, KeyEntry<K, V> keyEntry1, int bucket2, KeyEntry<K, V> keyEntry2) {
+            long mask = setBit(setBit(0L, bucket1), bucket2);
+            if (bucket1 < bucket2) {
+                return new SubMap2(mask, 2, keyEntry1, keyEntry2);
             } else {
-                int mask = 0;
+                return new SubMap2(mask, 2, keyEntry2, keyEntry1);
+            }
+        }
 
-                this.hashArray[0] = keyEntry2;
-                mask = setBit(mask, bucket2);
+        /**
+         * Creates a node from entries already in bucket order.
+         */
+        static SubMap of(long mask, Object[] entries) {
+            int capacity = entries.length;
+            int size = 0;
+            for (Object entry : entries) {
+                size += entryCount(entry);
+            }
+            if (capacity > SMALL_CAPACITY) {
+                return new ArraySubMap(mask, size, entries);
+            }
+            return small(mask, capacity, size,
+                    capacity > 0 ? entries[0] : null,
+                    capacity > 1 ? entries[1] : null,
+                    capacity > 2 ? entries[2] : null,
+                    capacity > 3 ? entries[3] : null);
+        }
+
+        private static SubMap small(long mask, int capacity, int size, Object e0, Object e1, Object e2, Object e3) {
+            switch (capacity) {
+                case 0:
+                    return EMPTY_SUBMAP;
+                case 1:
+                    return new SubMap1(mask, size, e0);
+                case 2:
+                    return new SubMap2(mask, size, e0, e1);
+                case 3:
+                    return new SubMap3(mask, size, e0, e1, e2);
+                default:
+                    return new SubMap4(mask, size, e0, e1, e2, e3);
+            }
+        }
 
-                this.hashArray[1] = keyEntry1;
-                mask = setBit(mask, bucket1);
+        SubMap(long mask, int size) {
+            this.mask = mask;
+            this.size = size;
+        }
 
-                this.mask = mask;
+        /**
+         * Returns the entry at the given position in bucket order.
+         */
+        abstract Object entryAt(int index);
+
+        public abstract int capacity();
+
+        /**
+         * Returns a node with the same buckets occupied by the transformed entries, which must hold the same
+         * number of keys.
+         */
+        abstract SubMap mapEntries(Function<Object, Object> mapper);
+
+        /**
+         * Copies entries in bucket order into the destination array.
+         */
+        void copyEntries(int srcPos, Object[] dest, int destPos, int length) {
+            for (int i = 0; i < length; i++) {
+                dest[destPos + i] = entryAt(srcPos + i);
             }
         }
 
@@ -376,19 +1407,33 @@ public final class PersistentMap<K, V> {
             return capacity() == 0 || mask == 0;
         }
 
+        /**
+         * Returns the number of keys below the node.
+         */
+        int size() {
+            return size;
+        }
+
         public SubMap removeEntry(int bucket) {
             assert (bitSet(mask, bucket));
 
-            if (capacity() > 1) {
-                Object[] newHashArray = Arrays.copyOf(hashArray, capacity() - 1);
-                int newMask = clearBit(mask, bucket);
-                int entryIndex = populationCountAt(newMask, bucket);
-
-                System.arraycopy(hashArray, entryIndex + 1, newHashArray, entryIndex, capacity() - (entryIndex + 1));
-                return new SubMap(newMask, newHashArray);
+            int newCapacity = capacity() - 1;
+            long newMask = clearBit(mask, bucket);
+            int entryIndex = populationCountAt(newMask, bucket);
+            int newSize = size - entryCount(entryAt(entryIndex));
+
+            if (newCapacity <= SMALL_CAPACITY) {
+                return small(newMask, newCapacity, newSize,
+                        removed(0, entryIndex, newCapacity),
+                        removed(1, entryIndex, newCapacity),
+                        removed(2, entryIndex, newCapacity),
+                        removed(3, entryIndex, newCapacity));
             }
 
-            return EMPTY_SUBMAP;
+            Object[] newHashArray = new Object[newCapacity];
+            copyEntries(0, newHashArray, 0, entryIndex);
+            copyEntries(entryIndex + 1, newHashArray, entryIndex, newCapacity - entryIndex);
+            return new ArraySubMap(newMask, newSize, newHashArray);
         }
 
         public Object get(int bucket) {
@@ -396,70 +1441,279 @@ public final class PersistentMap<K, V> {
                 return null;
             } else {
                 int count = populationCountAt(mask, bucket);
-                return hashArray[count];
+                return entryAt(count);
             }
         }
 
-        public int capacity() {
-            return hashArray.length;
-        }
-
         public SubMap set(int bucket, Object entry) {
             assert (bitClear(mask, bucket));
 
-            Object[] newHashArray = Arrays.copyOf(hashArray, capacity() + 1);
-            int newMask = setBit(mask, bucket);
+            int newCapacity = capacity() + 1;
+            long newMask = setBit(mask, bucket);
             int entryIndex = populationCountAt(newMask, bucket);
-            newHashArray[entryIndex] = entry;
-            System.arraycopy(hashArray, entryIndex, newHashArray, entryIndex + 1, capacity() - entryIndex);
+            int newSize = size + entryCount(entry);
+
+            if (newCapacity <= SMALL_CAPACITY) {
+                return small(newMask, newCapacity, newSize,
+                        inserted(0, entryIndex, entry, newCapacity),
+                        inserted(1, entryIndex, entry, newCapacity),
+                        inserted(2, entryIndex, entry, newCapacity),
+                        inserted(3, entryIndex, entry, newCapacity));
+            }
 
-            return new SubMap(newMask, newHashArray);
+            Object[] newHashArray = new Object[newCapacity];
+            copyEntries(0, newHashArray, 0, entryIndex);
+            newHashArray[entryIndex] = entry;
+            copyEntries(entryIndex, newHashArray, entryIndex + 1, newCapacity - (entryIndex + 1));
+            return new ArraySubMap(newMask, newSize, newHashArray);
         }
 
         public SubMap replace(int bucket, Object entry) {
             assert (bitSet(mask, bucket));
 
-            int newMask = setBit(mask, bucket);
-            Object[] newHashArray = Arrays.copyOf(hashArray, capacity());
-
+            int capacity = capacity();
             int entryIndex = populationCountAt(mask, bucket);
+            int newSize = size - entryCount(entryAt(entryIndex)) + entryCount(entry);
+
+            if (capacity <= SMALL_CAPACITY) {
+                return small(mask, capacity, newSize,
+                        replaced(0, entryIndex, entry, capacity),
+                        replaced(1, entryIndex, entry, capacity),
+                        replaced(2, entryIndex, entry, capacity),
+                        replaced(3, entryIndex, entry, capacity));
+            }
+
+            Object[] newHashArray = new Object[capacity];
+            copyEntries(0, newHashArray, 0, capacity);
             newHashArray[entryIndex] = entry;
+            return new ArraySubMap(mask, newSize, newHashArray);
+        }
 
-            return new SubMap(newMask, newHashArray);
+        private Object inserted(int index, int entryIndex, Object entry, int newCapacity) {
+            if (index >= newCapacity) {
+                return null;
+            }
+            return index < entryIndex ? entryAt(index) : index == entryIndex ? entry : entryAt(index - 1);
+        }
+
+        private Object removed(int index, int entryIndex, int newCapacity) {
+            if (index >= newCapacity) {
+                return null;
+            }
+            return index < entryIndex ? entryAt(index) : entryAt(index + 1);
+        }
+
+        private Object replaced(int index, int entryIndex, Object entry, int capacity) {
+            if (index >= capacity) {
+                return null;
+            }
+            return index == entryIndex ? entry : entryAt(index);
         }
 
         public boolean isPresent(int bucket) {
             return bitSet(mask, bucket);
         }
+
+        long mask() {
+            return mask;
+        }
+    }
+
+    @VisibleForTesting
+    static final class ArraySubMap extends SubMap {
+        final private Object[] hashArray;
+
+        ArraySubMap(long mask, int size, Object[] hashArray) {
+            super(mask, size);
+            this.hashArray = hashArray;
+        }
+
+        @Override
+        Object entryAt(int index) {
+            return hashArray[index];
+        }
+
+        @Override
+        public int capacity() {
+            return hashArray.length;
+        }
+
+        @Override
+        void copyEntries(int srcPos, Object[] dest, int destPos, int length) {
+            System.arraycopy(hashArray, srcPos, dest, destPos, length);
+        }
+
+        @Override
+        SubMap mapEntries(Function<Object, Object> mapper) {
+            Object[] newHashArray = new Object[hashArray.length];
+            for (int i = 0; i < hashArray.length; i++) {
+                newHashArray[i] = mapper.apply(hashArray[i]);
+            }
+            return new ArraySubMap(mask(), size(), newHashArray);
+        }
+    }
+
+    @VisibleForTesting
+    static final class SubMap1 extends SubMap {
+        final private Object entry0;
+
+        SubMap1(long mask, int size, Object entry0) {
+            super(mask, size);
+            this.entry0 = entry0;
+        }
+
+        @Override
+        Object entryAt(int index) {
+            assert (index == 0);
+            return entry0;
+        }
+
+        @Override
+        public int capacity() {
+            return 1;
+        }
+
+        @Override
+        SubMap mapEntries(Function<Object, Object> mapper) {
+            return new SubMap1(mask(), size(), mapper.apply(entry0));
+        }
+    }
+
+    @VisibleForTesting
+    static final class SubMap2 extends SubMap {
+        final private Object entry0;
+        final private Object entry1;
+
+        SubMap2(long mask, int size, Object entry0, Object entry1) {
+            super(mask, size);
+            this.entry0 = entry0;
+            this.entry1 = entry1;
+        }
+
+        @Override
+        Object entryAt(int index) {
+            assert (index < 2);
+            return index == 0 ? entry0 : entry1;
+        }
+
+        @Override
+        public int capacity() {
+            return 2;
+        }
+
+        @Override
+        SubMap mapEntries(Function<Object, Object> mapper) {
+            return new SubMap2(mask(), size(), mapper.apply(entry0), mapper.apply(entry1));
+        }
+    }
+
+    @VisibleForTesting
+    static final class SubMap3 extends SubMap {
+        final private Object entry0;
+        final private Object entry1;
+        final private Object entry2;
+
+        SubMap3(long mask, int size, Object entry0, Object entry1, Object entry2) {
+            super(mask, size);
+            this.entry0 = entry0;
+            this.entry1 = entry1;
+            this.entry2 = entry2;
+        }
+
+        @Override
+        Object entryAt(int index) {
+            switch (index) {
+                case 0:
+                    return entry0;
+                case 1:
+                    return entry1;
+                default:
+                    assert (index == 2);
+                    return entry2;
+            }
+        }
+
+        @Override
+        public int capacity() {
+            return 3;
+        }
+
+        @Override
+        SubMap mapEntries(Function<Object, Object> mapper) {
+            return new SubMap3(mask(), size(), mapper.apply(entry0), mapper.apply(entry1), mapper.apply(entry2));
+        }
     }
 
+    @VisibleForTesting
+    static final class SubMap4 extends SubMap {
+        final private Object entry0;
+        final private Object entry1;
+        final private Object entry2;
+        final private Object entry3;
+
+        SubMap4(long mask, int size, Object entry0, Object entry1, Object entry2, Object entry3) {
+            super(mask, size);
+            this.entry0 = entry0;
+            this.entry1 = entry1;
+            this.entry2 = entry2;
+            this.entry3 = entry3;
+        }
+
+        @Override
+        Object entryAt(int index) {
+            switch (index) {
+                case 0:
+                    return entry0;
+                case 1:
+                    return entry1;
+                case 2:
+                    return entry2;
+                default:
+                    assert (index == 3);
+                    return entry3;
+            }
+        }
 
-    private static boolean isSubmap(Object entry) {
+        @Override
+        public int capacity() {
+            return 4;
+        }
+
+        @Override
+        SubMap mapEntries(Function<Object, Object> mapper) {
+            return new SubMap4(mask(), size(), mapper.apply(entry0), mapper.apply(entry1), mapper.apply(entry2),
+                    mapper.apply(entry3));
+        }
+    }
+
+
+    static boolean isSubmap(Object entry) {
         return entry instanceof SubMap;
     }
 
-    private static boolean isVacant(Object entry) {
+    static boolean isVacant(Object entry) {
         return entry == null;
     }
 
-    private static boolean isKeyValue(Object entry) {
+    static boolean isKeyValue(Object entry) {
         return entry instanceof KeyEntry;
     }
 
-    public static int populationCountAt(int mask, int bucket) {
-        int lsb = (1 << bucket) - 1;
-        return Integer.bitCount(mask & lsb);
+    static boolean isCollision(Object entry) {
+        return entry instanceof CollisionNode;
     }
 
-    public static int subhashForLevel(int hash, int level) {
-//        assert (level <= 6);
+    static boolean isCompressed(Object entry) {
+        return entry instanceof CompressedNode;
+    }
 
-        if (level < 6) {
-            int rshift = 32 - (5 + level * 5);
-            return (hash >>> rshift) & SUBHASH_MASK;
-        } else {
-            return (hash & 3);
-        }
+    public static int populationCountAt(long mask, int bucket) {
+        long lsb = (1L << bucket) - 1;
+        return Long.bitCount(mask & lsb);
+    }
+
+    public static int subhashForLevel(int hash, int level) {
+        return BranchingFactor.WAYS_32.subhash(hash, level);
     }
 
     private static String hashToDottedString(int hashCode) {
@@ -499,17 +1753,24 @@ public final class PersistentMap<K, V> {
         }
 
         private C walk(C context, SubMap root, int level) {
-            for (int i = 0; i < 32; i++) {
-                if (!root.isPresent(i)) {
-                    continue;
-                }
+            for (long mask = root.mask(); mask != 0; mask &= mask - 1) {
+                int i = Long.numberOfTrailingZeros(mask);
 
                 Object entry = root.get(i);
                 if (isKeyValue(entry)) {
                     kvAction.walkerEvent(context, level, i, (KeyEntry<K, V>) entry, null);
+                } else if (isCollision(entry)) {
+                    CollisionNode<K, V> collisionNode = (CollisionNode<K, V>) entry;
+                    for (int j = 0; j < collisionNode.size(); j++) {
+                        kvAction.walkerEvent(context, level, i, collisionNode.entryAt(j), null);
+                    }
                 } else if (isSubmap(entry)) {
                     subMapAction.walkerEvent(context, level, i, null, (SubMap) entry);
                     walk(context, (SubMap) entry, level + 1);
+                } else if (isCompressed(entry)) {
+                    CompressedNode compressed = (CompressedNode) entry;
+                    subMapAction.walkerEvent(context, level, i, null, compressed.child());
+                    walk(context, compressed.child(), compressed.level());
                 } else {
                     vacantAction.walkerEvent(context, level, i, null, (SubMap) root);
                 }
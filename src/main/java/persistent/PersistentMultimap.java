@@ -0,0 +1,190 @@
+package persistent;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.lang.String.format;
+
+/**
+ * A persistent multimap associating each key with a set of distinct values.
+ *
+ * Small value sets are stored inline in the leaf entry of the underlying map as a compact array. Once a set grows
+ * past {@link #INLINE_THRESHOLD} values it is promoted to a nested PersistentMap, and demoted back to an array when
+ * it shrinks again. Both the total number of key-value pairs and the per key value counts are available in O(1).
+ */
+public final class PersistentMultimap<K, V> {
+    @VisibleForTesting
+    static final int INLINE_THRESHOLD = 8;
+    private static final PersistentMultimap EMPTY_MULTIMAP = new PersistentMultimap(PersistentMap.create(), 0);
+
+    private final PersistentMap<K, Object> map;
+    private final int elements;
+
+    /**
+     * Creates an empty persistent multimap
+     */
+    public static <K, V> PersistentMultimap<K, V> create() {
+        return (PersistentMultimap<K, V>) EMPTY_MULTIMAP;
+    }
+
+    private PersistentMultimap(PersistentMap<K, Object> map, int elements) {
+        this.map = map;
+        this.elements = elements;
+    }
+
+    /**
+     * Returns a multimap with the value added to the values of the key. Null values are rejected with an
+     * IllegalArgumentException.
+     */
+    public PersistentMultimap<K, V> put(K key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException(format("Null value for key %s", key));
+        }
+        Object values = map.get(key);
+        if (values == null) {
+            return new PersistentMultimap<>(map.put(key, new Object[]{value}), elements + 1);
+        }
+
+        if (isInline(values)) {
+            Object[] inline = (Object[]) values;
+            if (indexOf(inline, value) >= 0) {
+                return this;
+            }
+            if (inline.length < INLINE_THRESHOLD) {
+                Object[] newInline = Arrays.copyOf(inline, inline.length + 1);
+                newInline[inline.length] = value;
+                return new PersistentMultimap<>(map.put(key, newInline), elements + 1);
+            }
+            return new PersistentMultimap<>(map.put(key, promote(inline).put(value, Boolean.TRUE)), elements + 1);
+        }
+
+        PersistentMap<V, Boolean> nested = (PersistentMap<V, Boolean>) values;
+        if (nested.get(value) != null) {
+            return this;
+        }
+        return new PersistentMultimap<>(map.put(key, nested.put(value, Boolean.TRUE)), elements + 1);
+    }
+
+    public PersistentMultimap<K, V> remove(K key, V value) {
+        Object values = map.get(key);
+        if (values == null) {
+            return this;
+        }
+
+        if (isInline(values)) {
+            Object[] inline = (Object[]) values;
+            int index = indexOf(inline, value);
+            if (index < 0) {
+                return this;
+            }
+            if (inline.length == 1) {
+                return new PersistentMultimap<>(map.remove(key), elements - 1);
+            }
+            Object[] newInline = new Object[inline.length - 1];
+            System.arraycopy(inline, 0, newInline, 0, index);
+            System.arraycopy(inline, index + 1, newInline, index, inline.length - (index + 1));
+            return new PersistentMultimap<>(map.put(key, newInline), elements - 1);
+        }
+
+        PersistentMap<V, Boolean> nested = (PersistentMap<V, Boolean>) values;
+        PersistentMap<V, Boolean> newNested = nested.remove(value);
+        if (newNested == nested) {
+            return this;
+        }
+        Object newValues = newNested.size() <= INLINE_THRESHOLD / 2 ? newNested.keySet().toArray() : newNested;
+        return new PersistentMultimap<>(map.put(key, newValues), elements - 1);
+    }
+
+    public PersistentMultimap<K, V> removeAll(K key) {
+        int count = count(key);
+        if (count == 0) {
+            return this;
+        }
+        return new PersistentMultimap<>(map.remove(key), elements - count);
+    }
+
+    public Set<V> get(K key) {
+        Object values = map.get(key);
+        if (values == null) {
+            return Collections.emptySet();
+        } else if (isInline(values)) {
+            return new HashSet<>(Arrays.asList((V[]) values));
+        } else {
+            return ((PersistentMap<V, Boolean>) values).keySet();
+        }
+    }
+
+    public boolean containsEntry(K key, V value) {
+        Object values = map.get(key);
+        if (values == null) {
+            return false;
+        } else if (isInline(values)) {
+            return indexOf((Object[]) values, value) >= 0;
+        } else {
+            return ((PersistentMap<V, Boolean>) values).get(value) != null;
+        }
+    }
+
+    /**
+     * Returns the number of values associated with the key.
+     */
+    public int count(K key) {
+        Object values = map.get(key);
+        if (values == null) {
+            return 0;
+        } else if (isInline(values)) {
+            return ((Object[]) values).length;
+        } else {
+            return ((PersistentMap<V, Boolean>) values).size();
+        }
+    }
+
+    public Set<K> keySet() {
+        return map.keySet();
+    }
+
+    public int keyCount() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return elements == 0;
+    }
+
+    /**
+     * Returns the total number of key-value pairs.
+     */
+    public int size() {
+        return elements;
+    }
+
+    @VisibleForTesting
+    boolean storesInline(K key) {
+        return isInline(map.get(key));
+    }
+
+    private static boolean isInline(Object values) {
+        return values instanceof Object[];
+    }
+
+    private static int indexOf(Object[] values, Object value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static <V> PersistentMap<V, Boolean> promote(Object[] values) {
+        PersistentMap<V, Boolean> nested = PersistentMap.create();
+        for (Object value : values) {
+            nested = nested.put((V) value, Boolean.TRUE);
+        }
+        return nested;
+    }
+}
@@ -0,0 +1,178 @@
+package persistent;
+
+import persistent.PersistentMap.CompressedNode;
+import persistent.PersistentMap.SubMap;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+import static persistent.PersistentMap.isCompressed;
+import static persistent.PersistentMap.isSubmap;
+
+/**
+ * Reports how much heap a set of versions of a PersistentMap retains, and how it is shared between them.
+ *
+ * The node graphs of all versions are walked with identity tracking, recording for every node the versions it is
+ * reachable from. Sizes are the estimates of {@link NodeSizes} for the trie nodes and the map objects; keys and
+ * values are not included. The walk visits each node once per version it is reachable from.
+ */
+public final class RetainedMemory {
+    private final int versions;
+    /**
+     * Total bytes of the nodes reachable from exactly each set of versions.
+     */
+    private final Map<BitSet, Long> bytesByOwners;
+
+    private RetainedMemory(int versions, Map<BitSet, Long> bytesByOwners) {
+        this.versions = versions;
+        this.bytesByOwners = bytesByOwners;
+    }
+
+    public static RetainedMemory analyze(List<? extends PersistentMap<?, ?>> versions) {
+        Map<Object, BitSet> owners = new IdentityHashMap<>();
+        Deque<Object> pending = new ArrayDeque<>();
+        for (int version = 0; version < versions.size(); version++) {
+            PersistentMap<?, ?> map = versions.get(version);
+            addOwner(owners, map, version);
+            if (!map.isEmpty()) {
+                pending.push(map.root());
+            }
+
+            while (!pending.isEmpty()) {
+                Object node = pending.pop();
+                if (!addOwner(owners, node, version)) {
+                    continue;
+                }
+                if (isSubmap(node)) {
+                    SubMap subMap = (SubMap) node;
+                    for (int i = 0; i < subMap.capacity(); i++) {
+                        pending.push(subMap.entryAt(i));
+                    }
+                } else if (isCompressed(node)) {
+                    pending.push(((CompressedNode) node).child());
+                }
+            }
+        }
+
+        Map<BitSet, Long> bytesByOwners = new HashMap<>();
+        for (Map.Entry<Object, BitSet> entry : owners.entrySet()) {
+            Object node = entry.getKey();
+            long bytes = node instanceof PersistentMap ? NodeSizes.MAP : NodeSizes.sizeOf(node);
+            bytesByOwners.merge(entry.getValue(), bytes, Long::sum);
+        }
+        return new RetainedMemory(versions.size(), bytesByOwners);
+    }
+
+    /**
+     * Records the version as an owner of the node, and returns false if it already was.
+     */
+    private static boolean addOwner(Map<Object, BitSet> owners, Object node, int version) {
+        BitSet nodeOwners = owners.computeIfAbsent(node, n -> new BitSet());
+        if (nodeOwners.get(version)) {
+            return false;
+        }
+        nodeOwners.set(version);
+        return true;
+    }
+
+    public int versionCount() {
+        return versions;
+    }
+
+    /**
+     * Returns the bytes retained by all versions together.
+     */
+    public long totalBytes() {
+        return bytesByOwners.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Returns the bytes of the nodes reachable from more than one version.
+     */
+    public long sharedBytes() {
+        long shared = 0;
+        for (Map.Entry<BitSet, Long> entry : bytesByOwners.entrySet()) {
+            if (entry.getKey().cardinality() > 1) {
+                shared += entry.getValue();
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Returns the bytes reachable from the version, which it would retain if it were the only one.
+     */
+    public long retainedBytes(int version) {
+        checkVersion(version);
+        long retained = 0;
+        for (Map.Entry<BitSet, Long> entry : bytesByOwners.entrySet()) {
+            if (entry.getKey().get(version)) {
+                retained += entry.getValue();
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * Returns the bytes of the nodes reachable from the version and from no other one.
+     */
+    public long uniqueBytes(int version) {
+        checkVersion(version);
+        BitSet owner = new BitSet();
+        owner.set(version);
+        return bytesByOwners.getOrDefault(owner, 0L);
+    }
+
+    /**
+     * Returns the bytes freed by dropping the version while retaining all the others, which are the bytes unique
+     * to it.
+     */
+    public long marginalSavings(int version) {
+        return savingsOfDropping(version);
+    }
+
+    /**
+     * Returns the bytes freed by dropping all the given versions together while retaining the others. This is
+     * usually more than the sum of their marginal savings, since it includes the nodes shared only between them.
+     */
+    public long savingsOfDropping(int... droppedVersions) {
+        BitSet dropped = new BitSet();
+        for (int version : droppedVersions) {
+            checkVersion(version);
+            dropped.set(version);
+        }
+
+        long savings = 0;
+        for (Map.Entry<BitSet, Long> entry : bytesByOwners.entrySet()) {
+            BitSet retainedOwners = (BitSet) entry.getKey().clone();
+            retainedOwners.andNot(dropped);
+            if (retainedOwners.isEmpty()) {
+                savings += entry.getValue();
+            }
+        }
+        return savings;
+    }
+
+    private void checkVersion(int version) {
+        if (version < 0 || version >= versions) {
+            throw new IndexOutOfBoundsException(format("Version %d out of %d", version, versions));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(format("Retained: %d bytes, shared: %d bytes%n",
+                totalBytes(), sharedBytes()));
+        for (int version = 0; version < versions; version++) {
+            builder.append(format(" - version %d: retained %d, unique %d bytes%n",
+                    version, retainedBytes(version), uniqueBytes(version)));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,131 @@
+package persistent;
+
+import persistent.PersistentMap.CompressedNode;
+import persistent.PersistentMap.SubMap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static java.lang.String.format;
+import static persistent.Bits.setBit;
+import static persistent.PersistentMap.isCompressed;
+import static persistent.PersistentMap.isSubmap;
+
+/**
+ * Computes the changes between two versions of a map by walking their tries side by side. Subtrees shared by both
+ * versions are skipped by reference, so the work is proportional to the size of the subtrees which differ rather
+ * than to the size of the maps.
+ *
+ * A compressed node is compared against a SubMap, or against a compressed node with a different path, by
+ * expanding it one level at a time, which keeps the subtree below it shared. Leaves are compared by key against
+ * the entries of whatever node replaced them.
+ */
+final class StructuralDiff<K, V> {
+    private final BranchingFactor branching;
+    private final List<MapChange<K, V>> changes = new ArrayList<>();
+
+    private StructuralDiff(BranchingFactor branching) {
+        this.branching = branching;
+    }
+
+    static <K, V> List<MapChange<K, V>> changes(PersistentMap<K, V> older, PersistentMap<K, V> newer) {
+        if (older.branchingFactor() != newer.branchingFactor()) {
+            throw new IllegalArgumentException(format("Branching factor mismatch: %s and %s",
+                    older.branchingFactor(), newer.branchingFactor()));
+        }
+
+        StructuralDiff<K, V> diff = new StructuralDiff<>(older.branchingFactor());
+        // The roots are SubMaps at level 0, as if they were stored in a bucket at level -1:
+        diff.diff(older.isEmpty() ? null : older.root(), newer.isEmpty() ? null : newer.root(), -1);
+        return diff.changes;
+    }
+
+    /**
+     * Records the changes between two nodes stored in the same bucket at bucketLevel.
+     */
+    private void diff(Object older, Object newer, int bucketLevel) {
+        if (older == newer) {
+            return;
+        } else if (older == null) {
+            BulkOperations.<K, V>forEachEntry(newer, (key, value) -> changes.add(MapChange.added(key, value)));
+        } else if (newer == null) {
+            BulkOperations.<K, V>forEachEntry(older, (key, value) -> changes.add(MapChange.removed(key, value)));
+        } else if (isInner(older) && isInner(newer)) {
+            if (isCompressed(older) && isCompressed(newer) && samePath(branching, (CompressedNode) older,
+                    (CompressedNode) newer, bucketLevel)) {
+                CompressedNode compressed = (CompressedNode) older;
+                diff(compressed.child(), ((CompressedNode) newer).child(), compressed.level() - 1);
+                return;
+            }
+
+            int level = bucketLevel + 1;
+            long mask = bucketMask(branching, older, level) | bucketMask(branching, newer, level);
+            for (; mask != 0; mask &= mask - 1) {
+                int bucket = Long.numberOfTrailingZeros(mask);
+                diff(bucketEntry(branching, older, level, bucket), bucketEntry(branching, newer, level, bucket),
+                        level);
+            }
+        } else {
+            diffEntries(older, newer);
+        }
+    }
+
+    /**
+     * Compares the entries of two nodes, at least one of which is a leaf, by key.
+     */
+    private void diffEntries(Object older, Object newer) {
+        Map<K, V> olderEntries = new LinkedHashMap<>();
+        BulkOperations.<K, V>forEachEntry(older, olderEntries::put);
+        BulkOperations.<K, V>forEachEntry(newer, (key, value) -> {
+            if (!olderEntries.containsKey(key)) {
+                changes.add(MapChange.added(key, value));
+            } else {
+                V oldValue = olderEntries.remove(key);
+                if (!Objects.equals(oldValue, value)) {
+                    changes.add(MapChange.updated(key, oldValue, value));
+                }
+            }
+        });
+        for (Map.Entry<K, V> entry : olderEntries.entrySet()) {
+            changes.add(MapChange.removed(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    static boolean isInner(Object node) {
+        return isSubmap(node) || isCompressed(node);
+    }
+
+    static boolean samePath(BranchingFactor branching, CompressedNode older, CompressedNode newer, int bucketLevel) {
+        return older.level() == newer.level()
+                && ((older.prefix() ^ newer.prefix()) & branching.levelMask(bucketLevel + 1, older.level())) == 0;
+    }
+
+    /**
+     * Returns the occupied buckets at the level of an inner node stored in a bucket at the level above. A compressed
+     * node occupies the single bucket along its path.
+     */
+    static long bucketMask(BranchingFactor branching, Object node, int level) {
+        if (isSubmap(node)) {
+            return ((SubMap) node).mask();
+        }
+        return setBit(0L, branching.subhash(((CompressedNode) node).prefix(), level));
+    }
+
+    /**
+     * Returns the node of an inner node in a bucket at the given level. A compressed node spanning past the next
+     * level stays the same, since it skips one level less when stored in the bucket below.
+     */
+    static Object bucketEntry(BranchingFactor branching, Object node, int level, int bucket) {
+        if (isSubmap(node)) {
+            return ((SubMap) node).get(bucket);
+        }
+        CompressedNode compressed = (CompressedNode) node;
+        if (branching.subhash(compressed.prefix(), level) != bucket) {
+            return null;
+        }
+        return compressed.level() == level + 1 ? compressed.child() : compressed;
+    }
+}
@@ -0,0 +1,210 @@
+package persistent;
+
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import persistent.support.AllocationMeter;
+import persistent.support.HashCodes;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.core.Is.is;
+import static persistent.support.HashCodes.collidingStrings;
+
+/**
+ * Keeps the bytes allocated per operation within budget, so that allocations sneaking into the hot paths fail
+ * the build. The budgets of the updates are estimates of the path copy of a map with 10K keys, with some
+ * headroom, see {@link NodeSizes}.
+ */
+public class AllocationTest {
+    private static final int SIZE = 10000;
+    private static final int OPERATIONS = 100000;
+
+    private static final double GET_BUDGET = 0;
+    private static final double PUT_BUDGET = 640;
+    private static final double REMOVE_BUDGET = 640;
+    private static final double COLLIDING_UPDATE_BUDGET = 1024;
+    private static final double ITERATION_BUDGET_PER_ENTRY = 160;
+
+    private AllocationMeter meter;
+    /**
+     * The last result of a measured operation, stored so that the JIT cannot eliminate the allocations of the
+     * operations as dead code or by escape analysis.
+     */
+    private Object sink;
+    /**
+     * The number of measured operations whose result was not the expected one.
+     */
+    private int wrongResults;
+
+    @BeforeMethod
+    public void resetResults() {
+        sink = null;
+        wrongResults = 0;
+    }
+
+    /**
+     * Keeps the result of an operation, and counts it as wrong if it does not match the expectation.
+     */
+    private void consume(Object result, boolean expected) {
+        sink = result;
+        if (!expected) {
+            wrongResults++;
+        }
+    }
+
+    @BeforeClass
+    public void createMeter() {
+        meter = AllocationMeter.create();
+        if (meter == null) {
+            throw new SkipException("The JVM does not count the bytes allocated per thread");
+        }
+    }
+
+    @DataProvider
+    public Object[][] distributions() {
+        return new Object[][]{
+                {"sequential integers", sequentialIntegers(), PUT_BUDGET, REMOVE_BUDGET},
+                {"random strings", randomStrings(), PUT_BUDGET, REMOVE_BUDGET},
+                {"clustered hash codes", clusteredKeys(), PUT_BUDGET, REMOVE_BUDGET},
+                {"colliding test keys", collidingKeys(), COLLIDING_UPDATE_BUDGET, COLLIDING_UPDATE_BUDGET},
+                {"colliding strings", collidingStrings(6).toArray(), COLLIDING_UPDATE_BUDGET, COLLIDING_UPDATE_BUDGET}
+        };
+    }
+
+    private static Object[] sequentialIntegers() {
+        Object[] keys = new Object[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = i;
+        }
+        return keys;
+    }
+
+    private static Object[] randomStrings() {
+        Random random = new Random(42);
+        Object[] keys = new Object[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = Long.toString(random.nextLong(), 36);
+        }
+        return keys;
+    }
+
+    /**
+     * Keys sharing the hash codes of the first two levels, so that the trie is deep and compressed.
+     */
+    private static Object[] clusteredKeys() {
+        HashCodes hashCodes = new HashCodes();
+        List<Object> keys = new ArrayList<>();
+        for (int i = 0; i < SIZE; i++) {
+            keys.add(hashCodes.key(3, 7, i % 32, (i / 32) % 32, i / 1024, 0, 0, "key" + i));
+        }
+        return keys.toArray();
+    }
+
+    /**
+     * Groups of 64 keys with identical hash codes.
+     */
+    private static Object[] collidingKeys() {
+        HashCodes hashCodes = new HashCodes();
+        List<Object> keys = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            keys.add(hashCodes.key(1, (i / 2) % 4, 0, 0, 0, 0, 0, "key" + i));
+        }
+        return keys.toArray();
+    }
+
+    /**
+     * Returns a map with every other key, so that the rest of the keys can be used to measure misses and inserts.
+     */
+    private static PersistentMap<Object, Object> mapOfEvenKeys(Object[] keys) {
+        PersistentMap<Object, Object> map = PersistentMap.create();
+        for (int i = 0; i < keys.length; i += 2) {
+            map = map.put(keys[i], keys[i]);
+        }
+        return map;
+    }
+
+    @Test(dataProvider = "distributions")
+    public void getAllocatesNothing(String distribution, Object[] keys, double putBudget, double removeBudget) {
+        PersistentMap<Object, Object> map = mapOfEvenKeys(keys);
+
+        double hits = meter.bytesPerOperation(OPERATIONS, i -> {
+            Object key = keys[(2 * i) % keys.length];
+            Object value = map.get(key);
+            consume(value, value == key);
+        });
+        double misses = meter.bytesPerOperation(OPERATIONS, i -> {
+            Object value = map.get(keys[(2 * i + 1) % keys.length]);
+            consume(value, value == null);
+        });
+
+        assertThat(wrongResults, is(0));
+        assertThat(distribution + " get", hits, lessThanOrEqualTo(GET_BUDGET));
+        assertThat(distribution + " get of a missing key", misses, lessThanOrEqualTo(GET_BUDGET));
+    }
+
+    @Test(dataProvider = "distributions")
+    public void putCopiesOnlyThePath(String distribution, Object[] keys, double putBudget, double removeBudget) {
+        PersistentMap<Object, Object> map = mapOfEvenKeys(keys);
+
+        double inserts = meter.bytesPerOperation(OPERATIONS, i -> {
+            Object key = keys[(2 * i + 1) % keys.length];
+            PersistentMap<Object, Object> result = map.put(key, key);
+            consume(result, result.size() == map.size() + 1);
+        });
+        double replacements = meter.bytesPerOperation(OPERATIONS, i -> {
+            Object key = keys[(2 * i) % keys.length];
+            PersistentMap<Object, Object> result = map.put(key, key);
+            consume(result, result.size() == map.size());
+        });
+
+        assertThat(wrongResults, is(0));
+        assertThat(distribution + " put of a new key", inserts, lessThanOrEqualTo(putBudget));
+        assertThat(distribution + " put of an existing key", replacements, lessThanOrEqualTo(putBudget));
+    }
+
+    @Test(dataProvider = "distributions")
+    public void removeCopiesOnlyThePath(String distribution, Object[] keys, double putBudget, double removeBudget) {
+        PersistentMap<Object, Object> map = mapOfEvenKeys(keys);
+
+        double removes = meter.bytesPerOperation(OPERATIONS, i -> {
+            PersistentMap<Object, Object> result = map.remove(keys[(2 * i) % keys.length]);
+            consume(result, result.size() == map.size() - 1);
+        });
+        double misses = meter.bytesPerOperation(OPERATIONS, i -> {
+            PersistentMap<Object, Object> result = map.remove(keys[(2 * i + 1) % keys.length]);
+            consume(result, result == map);
+        });
+
+        assertThat(wrongResults, is(0));
+        assertThat(distribution + " remove", removes, lessThanOrEqualTo(removeBudget));
+        assertThat(distribution + " remove of a missing key", misses, lessThanOrEqualTo(GET_BUDGET));
+    }
+
+    @Test(dataProvider = "distributions")
+    public void iterationAllocatesOnlyTheCollection(String distribution, Object[] keys, double putBudget,
+                                                    double removeBudget) {
+        PersistentMap<Object, Object> map = mapOfEvenKeys(keys);
+
+        double keySet = meter.bytesPerOperation(10, i -> {
+            Set<Object> result = map.keySet();
+            consume(result, result.size() == map.size());
+        }) / map.size();
+        double values = meter.bytesPerOperation(10, i -> {
+            Collection<Object> result = map.values();
+            consume(result, result.size() == map.size());
+        }) / map.size();
+
+        assertThat(wrongResults, is(0));
+        assertThat(distribution + " keySet per entry", keySet, lessThanOrEqualTo(ITERATION_BUDGET_PER_ENTRY));
+        assertThat(distribution + " values per entry", values, lessThanOrEqualTo(ITERATION_BUDGET_PER_ENTRY));
+    }
+}
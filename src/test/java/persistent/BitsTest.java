@@ -45,4 +45,15 @@ public class BitsTest {
         assertThat(clearBit(num, 0), is(0xFFFFFFFE));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void longMasksSupportSixtyFourPositions() {
+        long mask = setBit(0L, 63);
+
+        assertThat(mask, is(0x8000000000000000L));
+        assertThat(bitSet(mask, 63), is(true));
+        assertThat(bitSet(mask, 31), is(false));
+        assertThat(setBit(mask, 32), is(0x8000000100000000L));
+        assertThat(clearBit(0xFFFFFFFFFFFFFFFFL, 63), is(0x7FFFFFFFFFFFFFFFL));
+    }
+
+}
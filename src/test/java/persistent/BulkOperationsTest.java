@@ -0,0 +1,165 @@
+package persistent;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import persistent.support.HashCodes;
+import persistent.support.HashCodes.TestKey;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static persistent.support.HashCodes.collidingStrings;
+
+public class BulkOperationsTest {
+
+    @DataProvider
+    public Object[][] mapSizes() {
+        return new Object[][]{{0}, {1}, {100}, {4 * BulkOperations.PARALLELISM_THRESHOLD}};
+    }
+
+    private static PersistentMap<Integer, Integer> mapOf(int size) {
+        PersistentMap<Integer, Integer> map = PersistentMap.create();
+        for (int i = 0; i < size; i++) {
+            map = map.put(i * 31, i);
+        }
+        return map;
+    }
+
+    @Test(dataProvider = "mapSizes")
+    public void parallelForEachVisitsEveryEntry(int size) {
+        Map<Integer, Integer> visited = new ConcurrentHashMap<>();
+        AtomicInteger count = new AtomicInteger();
+
+        mapOf(size).parallelForEach((key, value) -> {
+            visited.put(key, value);
+            count.incrementAndGet();
+        });
+
+        assertThat(count.get(), is(size));
+        for (int i = 0; i < size; i++) {
+            assertThat(visited.get(i * 31), is(i));
+        }
+    }
+
+    @Test(dataProvider = "mapSizes")
+    public void reducesAllEntries(int size) {
+        Long sum = mapOf(size).reduce((key, value) -> (long) value, Long::sum);
+
+        if (size == 0) {
+            assertThat(sum, is(nullValue()));
+        } else {
+            assertThat(sum, is((long) size * (size - 1) / 2));
+        }
+    }
+
+    @Test(dataProvider = "mapSizes")
+    public void mapsValuesPreservingTrieShape(int size) {
+        PersistentMap<Integer, Integer> map = mapOf(size);
+        PersistentMap<Integer, String> mapped = map.mapValues(value -> "v" + value);
+
+        assertThat(mapped.size(), is(size));
+        for (int i = 0; i < size; i++) {
+            assertThat(mapped.get(i * 31), is("v" + i));
+        }
+        assertThat(mapped.dump(), is(map.mapValues(value -> "v" + value).dump()));
+        assertThat(mapped.mapValues(value -> Integer.valueOf(value.substring(1))).dump(), is(map.dump()));
+    }
+
+    @Test(dataProvider = "mapSizes")
+    public void filtersEntries(int size) {
+        PersistentMap<Integer, Integer> map = mapOf(size);
+        PersistentMap<Integer, Integer> even = map.filter((key, value) -> value % 2 == 0);
+
+        assertThat(even.size(), is((size + 1) / 2));
+        for (int i = 0; i < size; i++) {
+            assertThat(even.get(i * 31), is(i % 2 == 0 ? i : null));
+        }
+
+        PersistentMap<Integer, Integer> expected = PersistentMap.create();
+        for (int i = 0; i < size; i += 2) {
+            expected = expected.put(i * 31, i);
+        }
+        assertThat(even.dump(), is(expected.dump()));
+    }
+
+    @Test
+    public void filterReturnsSameMapWhenNothingIsRemoved() {
+        PersistentMap<Integer, Integer> map = mapOf(1000);
+
+        assertThat(map.filter((key, value) -> true), is(sameInstance(map)));
+        assertThat(map.filter((key, value) -> false).isEmpty(), is(true));
+    }
+
+    @Test
+    public void filterSharesUntouchedSubtrees() {
+        HashCodes hashCodes = new HashCodes();
+        TestKey keyA = hashCodes.key(1, 2, 3, 0, 0, 0, 0, "a");
+        TestKey keyB = hashCodes.key(1, 2, 4, 0, 0, 0, 0, "b");
+        TestKey keyC = hashCodes.key(5, 0, 0, 0, 0, 0, 0, "c");
+        TestKey keyD = hashCodes.key(6, 0, 0, 0, 0, 0, 0, "d");
+
+        PersistentMap<TestKey, String> map = PersistentMap.<TestKey, String>create()
+                .put(keyA, "a").put(keyB, "b").put(keyC, "c").put(keyD, "d");
+        PersistentMap<TestKey, String> filtered = map.filter((key, value) -> !value.equals("d"));
+
+        assertThat(filtered.size(), is(3));
+        assertThat(filtered.keySet(), containsInAnyOrder(keyA, keyB, keyC));
+        assertThat(filtered.nodeAt(1, keyA.hashCode()), is(sameInstance(map.nodeAt(1, keyA.hashCode()))));
+    }
+
+    @Test
+    public void filtersCollidingKeys() {
+        PersistentMap<String, Integer> map = PersistentMap.<String, Integer>create()
+                .put("Aa", 1).put("BB", 2).put("AaAa", 3).put("BBBB", 4).put("AaBB", 5);
+        PersistentMap<String, Integer> filtered = map.filter((key, value) -> value != 2 && value != 3);
+
+        assertThat(filtered.size(), is(3));
+        assertThat(filtered.keySet(), containsInAnyOrder("Aa", "BBBB", "AaBB"));
+        assertThat(filtered.get("Aa"), is(1));
+        assertThat(filtered.get("AaBB"), is(5));
+    }
+
+    @Test(dataProvider = "mapSizes")
+    public void collectsStreamsIntoTheSameTrieAsSequentialPuts(int size) {
+        PersistentMap<Integer, Integer> collected = IntStream.range(0, size).boxed().parallel()
+                .collect(PersistentMap.toPersistentMap(i -> i * 31, i -> i));
+
+        assertThat(collected.size(), is(size));
+        assertThat(collected.dump(), is(mapOf(size).dump()));
+    }
+
+    @Test
+    public void keepsTheLastValueOfDuplicateKeys() {
+        int size = 4 * BulkOperations.PARALLELISM_THRESHOLD;
+        PersistentMap<Integer, Integer> collected = IntStream.range(0, 3 * size).boxed().parallel()
+                .collect(PersistentMap.toPersistentMap(i -> i % size, i -> i));
+
+        assertThat(collected.size(), is(size));
+        for (int i = 0; i < size; i++) {
+            assertThat(collected.get(i), is(2 * size + i));
+        }
+    }
+
+    @Test
+    public void collectsCollidingKeysWithTheGivenBranchingFactor() {
+        List<String> keys = collidingStrings(4);
+        PersistentMap<String, Integer> expected = PersistentMap.create(BranchingFactor.WAYS_64);
+        for (int i = 0; i < keys.size(); i++) {
+            expected = expected.put(keys.get(i), i);
+        }
+
+        PersistentMap<String, Integer> collected = keys.stream()
+                .collect(PersistentMap.toPersistentMap(key -> key, keys::indexOf, BranchingFactor.WAYS_64));
+
+        assertThat(collected.branchingFactor(), is(BranchingFactor.WAYS_64));
+        assertThat(collected.dump(), is(expected.dump()));
+    }
+}
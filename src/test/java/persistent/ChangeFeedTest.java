@@ -0,0 +1,138 @@
+package persistent;
+
+import org.testng.annotations.Test;
+import persistent.ChangeFeed.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.core.Is.is;
+
+public class ChangeFeedTest {
+
+    private static final class RecordingSubscriber<K, V> implements ChangeFeed.Subscriber<K, V> {
+        private final List<List<MapChange<K, V>>> batches = new ArrayList<>();
+
+        @Override
+        public synchronized void onChanges(List<MapChange<K, V>> changes) {
+            batches.add(changes);
+        }
+
+        synchronized List<List<MapChange<K, V>>> batches() {
+            return new ArrayList<>(batches);
+        }
+    }
+
+    @Test
+    public void deliversChangesAsRequested() {
+        ChangeFeed<String, Integer> feed = new ChangeFeed<>(PersistentMap.<String, Integer>create().put("a", 1),
+                Runnable::run);
+        RecordingSubscriber<String, Integer> subscriber = new RecordingSubscriber<>();
+        Subscription subscription = feed.subscribe(subscriber);
+
+        feed.update(map -> map.put("b", 2));
+        assertThat(subscriber.batches(), is(empty()));
+
+        subscription.request(1);
+        assertThat(subscriber.batches().size(), is(1));
+        assertThat(subscriber.batches().get(0), containsInAnyOrder(MapChange.added("b", 2)));
+
+        feed.update(map -> map.put("a", 10).remove("b"));
+        subscription.request(5);
+        assertThat(subscriber.batches().size(), is(2));
+        assertThat(subscriber.batches().get(1),
+                containsInAnyOrder(MapChange.updated("a", 1, 10), MapChange.removed("b", 2)));
+    }
+
+    @Test
+    public void coalescesVersionsPublishedWithoutDemand() {
+        ChangeFeed<Integer, Integer> feed = new ChangeFeed<>(PersistentMap.create(), Runnable::run);
+        RecordingSubscriber<Integer, Integer> subscriber = new RecordingSubscriber<>();
+        Subscription subscription = feed.subscribe(subscriber);
+
+        for (int i = 0; i < 100; i++) {
+            int key = i;
+            feed.update(map -> map.put(key % 10, key));
+        }
+        subscription.request(Long.MAX_VALUE);
+
+        assertThat(subscriber.batches().size(), is(1));
+        assertThat(subscriber.batches().get(0).size(), is(10));
+        assertThat(subscriber.batches().get(0).get(0).type(), is(MapChange.Type.ADDED));
+
+        feed.publish(feed.current().put(0, -1));
+        assertThat(subscriber.batches().size(), is(2));
+        assertThat(subscriber.batches().get(1), containsInAnyOrder(MapChange.updated(0, 90, -1)));
+    }
+
+    @Test
+    public void deliversTheCurrentContentsSinceAnEmptyMap() {
+        PersistentMap<String, String> empty = PersistentMap.create();
+        ChangeFeed<String, String> feed = new ChangeFeed<>(empty.put("foo", "bar"), Runnable::run);
+        RecordingSubscriber<String, String> subscriber = new RecordingSubscriber<>();
+
+        feed.subscribe(subscriber, empty).request(1);
+
+        assertThat(subscriber.batches().get(0), containsInAnyOrder(MapChange.added("foo", "bar")));
+    }
+
+    @Test
+    public void stopsDeliveringAfterCancel() {
+        ChangeFeed<String, String> feed = new ChangeFeed<>(PersistentMap.create(), Runnable::run);
+        RecordingSubscriber<String, String> subscriber = new RecordingSubscriber<>();
+        Subscription subscription = feed.subscribe(subscriber);
+        subscription.request(10);
+
+        subscription.cancel();
+        feed.update(map -> map.put("foo", "bar"));
+
+        assertThat(subscriber.batches(), is(empty()));
+    }
+
+    @Test
+    public void slowSubscribersReceiveAllChangesInFewerBatches() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            ChangeFeed<Integer, Integer> feed = new ChangeFeed<>(PersistentMap.create(), executor);
+            List<MapChange<Integer, Integer>> received = new ArrayList<>();
+            int[] batches = new int[1];
+            feed.subscribe(changes -> {
+                synchronized (received) {
+                    received.addAll(changes);
+                    batches[0]++;
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }).request(Long.MAX_VALUE);
+
+            for (int i = 0; i < 1000; i++) {
+                int key = i;
+                feed.update(map -> map.put(key, key));
+            }
+            executor.shutdown();
+            assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+
+            synchronized (received) {
+                assertThat(received.size(), is(1000));
+                assertThat(batches[0] < 1000, is(true));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsNonPositiveRequests() {
+        new ChangeFeed<>(PersistentMap.create(), Runnable::run).subscribe(changes -> {
+        }).request(0);
+    }
+}
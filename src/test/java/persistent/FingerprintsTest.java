@@ -0,0 +1,90 @@
+package persistent;
+
+import org.testng.annotations.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static persistent.support.HashCodes.collidingStrings;
+
+public class FingerprintsTest {
+
+    private static PersistentMap<Integer, String> mapOf(int size) {
+        PersistentMap<Integer, String> map = PersistentMap.create();
+        for (int i = 0; i < size; i++) {
+            map = map.put(i, "value" + i);
+        }
+        return map;
+    }
+
+    @Test
+    public void doesNotDependOnInsertionOrderOrHistory() {
+        Fingerprints<Integer, String> fingerprints = new Fingerprints<>(Codec.integers(), Codec.strings());
+        PersistentMap<Integer, String> forward = mapOf(1000);
+        PersistentMap<Integer, String> backward = PersistentMap.create();
+        for (int i = 1999; i >= 0; i--) {
+            backward = backward.put(i, "value" + i);
+        }
+        for (int i = 1000; i < 2000; i++) {
+            backward = backward.remove(i);
+        }
+
+        assertThat(fingerprints.of(backward), is(fingerprints.of(forward)));
+        assertThat(fingerprints.of(forward.put(1, "changed")), is(not(fingerprints.of(forward))));
+        assertThat(fingerprints.of(PersistentMap.create()), is(0L));
+    }
+
+    @Test
+    public void coversCollidingKeys() {
+        Fingerprints<String, String> fingerprints = new Fingerprints<>(Codec.strings(), Codec.strings());
+        PersistentMap<String, String> map = PersistentMap.create();
+        for (String key : collidingStrings(4)) {
+            map = map.put(key, key);
+        }
+
+        assertThat(fingerprints.of(map.remove("AaAaAaAa")), is(not(fingerprints.of(map))));
+        assertThat(fingerprints.of(map.remove("AaAaAaAa").put("AaAaAaAa", "AaAaAaAa")), is(fingerprints.of(map)));
+    }
+
+    @Test
+    public void coversValuesWithEqualHashCodes() {
+        Fingerprints<Integer, String> fingerprints = new Fingerprints<>(Codec.integers(), Codec.strings());
+        PersistentMap<Integer, String> map = mapOf(100).put(50, "Aa");
+
+        assertThat("Aa".hashCode(), is("BB".hashCode()));
+        assertThat(fingerprints.of(map.put(50, "BB")), is(not(fingerprints.of(map))));
+    }
+
+    @Test
+    public void hashesSharedSubtreesOnce() {
+        AtomicInteger encoded = new AtomicInteger();
+        Codec<Integer> countingCodec = new Codec<Integer>() {
+            @Override
+            public void write(Integer value, DataOutput out) throws IOException {
+                encoded.incrementAndGet();
+                out.writeInt(value);
+            }
+
+            @Override
+            public Integer read(DataInput in) throws IOException {
+                return in.readInt();
+            }
+        };
+        Fingerprints<Integer, String> fingerprints = new Fingerprints<>(countingCodec, Codec.strings());
+        PersistentMap<Integer, String> map = mapOf(10000);
+        fingerprints.of(map);
+        assertThat(encoded.get(), is(10000));
+
+        encoded.set(0);
+        fingerprints.of(map.put(1, "changed"));
+
+        // Only the leaves of the nodes copied by the update are hashed again:
+        assertThat(encoded.get(), lessThan(100));
+    }
+}
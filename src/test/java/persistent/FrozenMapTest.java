@@ -0,0 +1,103 @@
+package persistent;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import persistent.support.HashCodes;
+import persistent.support.HashCodes.TestKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+import static persistent.support.HashCodes.collidingStrings;
+
+public class FrozenMapTest {
+    private final HashCodes hashCodes = new HashCodes();
+
+    @DataProvider
+    public Object[][] branchingFactors() {
+        return new Object[][]{{BranchingFactor.WAYS_16}, {BranchingFactor.WAYS_32}, {BranchingFactor.WAYS_64}};
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void looksUpTheEntriesOfTheOriginalMap(BranchingFactor branching) {
+        Random random = new Random(3);
+        PersistentMap<String, Integer> map = PersistentMap.create(branching);
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            String key = "key" + random.nextInt(10000);
+            map = map.put(key, i);
+            expected.put(key, i);
+        }
+        for (String key : collidingStrings(4)) {
+            map = map.put(key, key.length());
+            expected.put(key, key.length());
+        }
+
+        FrozenMap<String, Integer> frozen = map.freeze();
+
+        assertThat(frozen.size(), is(expected.size()));
+        assertThat(frozen.branchingFactor(), is(branching));
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertThat(frozen.get(entry.getKey()), is(entry.getValue()));
+        }
+        assertThat(frozen.get("absent"), is(nullValue()));
+        assertThat(frozen.get("AaAaAaAaAa"), is(nullValue()));
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void checksTheSkippedLevelsOfCompressedPaths(BranchingFactor branching) {
+        Random random = new Random(5);
+        List<TestKey> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            // Few distinct subhashes, so that keys share compressed paths and collide:
+            keys.add(hashCodes.key(random.nextInt(2), 0, 0, random.nextInt(2), 0, random.nextInt(2), 0, "key" + i));
+        }
+        PersistentMap<TestKey, Integer> map = PersistentMap.create(branching);
+        for (int i = 0; i < keys.size(); i += 2) {
+            map = map.put(keys.get(i), i);
+        }
+
+        FrozenMap<TestKey, Integer> frozen = map.freeze();
+
+        for (int i = 0; i < keys.size(); i++) {
+            assertThat(frozen.get(keys.get(i)), is(map.get(keys.get(i))));
+        }
+        assertThat(frozen.get(hashCodes.key(0, 1, 0, 0, 0, 0, 0, "key0")), is(nullValue()));
+        assertThat(frozen.get(hashCodes.key(1, 0, 3, 1, 0, 1, 0, "key0")), is(nullValue()));
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void thawsIntoTheSameTrie(BranchingFactor branching) {
+        PersistentMap<Object, Integer> map = PersistentMap.create(branching);
+        for (int i = 0; i < 3000; i++) {
+            map = map.put("key" + i, i);
+        }
+        for (String key : collidingStrings(4)) {
+            map = map.put(key, 0);
+        }
+        map = map.put(hashCodes.key(7, 3, 0, 0, 1, 0, 0, "a"), 1)
+                .put(hashCodes.key(7, 3, 0, 0, 2, 0, 0, "b"), 2);
+
+        PersistentMap<Object, Integer> thawed = map.freeze().thaw();
+
+        assertThat(thawed.dump(), is(map.dump()));
+        assertThat(thawed.size(), is(map.size()));
+        assertThat(thawed.put("key1", -1).get("key1"), is(-1));
+        assertThat(thawed.remove("AaAaAaAa").size(), is(map.size() - 1));
+    }
+
+    @Test
+    public void freezesEmptyMaps() {
+        FrozenMap<String, String> frozen = PersistentMap.<String, String>create().freeze();
+
+        assertThat(frozen.isEmpty(), is(true));
+        assertThat(frozen.get("foo"), is(nullValue()));
+        assertThat(frozen.thaw().put("foo", "bar").get("foo"), is("bar"));
+    }
+}
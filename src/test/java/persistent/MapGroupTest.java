@@ -0,0 +1,134 @@
+package persistent;
+
+import org.testng.annotations.Test;
+import persistent.MapGroup.Ref;
+import persistent.MapGroup.Snapshot;
+import persistent.MapGroup.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+
+public class MapGroupTest {
+
+    @Test
+    public void commitsUpdatesOfSeveralMapsTogether() {
+        MapGroup group = new MapGroup();
+        Ref<Integer, String> users = group.add(PersistentMap.create());
+        Ref<String, Integer> byName = group.add(PersistentMap.create());
+        Snapshot before = group.snapshot();
+
+        Transaction transaction = group.begin()
+                .put(users, 1, "alice")
+                .put(byName, "alice", 1);
+        assertThat(transaction.get(users, 1), is("alice"));
+        assertThat(group.snapshot().get(users).isEmpty(), is(true));
+
+        assertThat(transaction.commit(), is(true));
+        Snapshot after = group.snapshot();
+        assertThat(after.get(users).get(1), is("alice"));
+        assertThat(after.get(byName).get("alice"), is(1));
+        assertThat(after.version(), is(before.version() + 1));
+        assertThat(before.get(users).isEmpty(), is(true));
+    }
+
+    @Test
+    public void failsCommitsWhenAMapReadWasChanged() {
+        MapGroup group = new MapGroup();
+        Ref<String, Integer> accounts = group.add(PersistentMap.<String, Integer>create().put("a", 10));
+        Ref<String, String> log = group.add(PersistentMap.create());
+
+        Transaction stale = group.begin();
+        int balance = stale.get(accounts, "a");
+        stale.put(log, "withdrawal", "balance " + balance);
+
+        group.update(transaction -> transaction.put(accounts, "a", 0));
+
+        assertThat(stale.commit(), is(false));
+        assertThat(group.snapshot().get(log).isEmpty(), is(true));
+        assertThat(group.snapshot().get(accounts).get("a"), is(0));
+    }
+
+    @Test
+    public void replaysBlindWritesOnTheLatestVersion() {
+        MapGroup group = new MapGroup();
+        Ref<String, Integer> map = group.add(PersistentMap.create());
+
+        Transaction first = group.begin().put(map, "a", 1).remove(map, "b");
+        group.update(transaction -> transaction.put(map, "b", 2).put(map, "c", 3));
+
+        assertThat(first.commit(), is(true));
+        PersistentMap<String, Integer> latest = group.snapshot().get(map);
+        assertThat(latest.size(), is(2));
+        assertThat(latest.get("a"), is(1));
+        assertThat(latest.get("b"), is(nullValue()));
+    }
+
+    @Test
+    public void readersSeeAllOrNothingOfConcurrentTransactions() throws Exception {
+        MapGroup group = new MapGroup();
+        Ref<Integer, Integer> primary = group.add(PersistentMap.create());
+        Ref<Integer, Integer> index = group.add(PersistentMap.create());
+        Ref<String, Integer> counter = group.add(PersistentMap.<String, Integer>create().put("count", 0));
+        int writers = 4;
+        int updates = 2000;
+
+        AtomicBoolean done = new AtomicBoolean();
+        CompletableFuture<Integer> reader = CompletableFuture.supplyAsync(() -> {
+            int checks = 0;
+            while (!done.get()) {
+                Snapshot snapshot = group.snapshot();
+                int size = snapshot.get(primary).size();
+                assertThat(snapshot.get(index).size(), is(size));
+                assertThat(snapshot.get(counter).get("count"), is(size));
+                checks++;
+            }
+            return checks;
+        });
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < updates; i++) {
+                    int key = writer * updates + i;
+                    group.update(transaction -> transaction
+                            .put(primary, key, -key)
+                            .put(index, -key, key)
+                            .put(counter, "count", transaction.get(counter, "count") + 1));
+                }
+            }));
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.get();
+        }
+        done.set(true);
+        reader.get();
+
+        Snapshot snapshot = group.snapshot();
+        assertThat(snapshot.get(primary).size(), is(writers * updates));
+        assertThat(snapshot.get(index).size(), is(writers * updates));
+        assertThat(snapshot.get(counter).get("count"), is(writers * updates));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsMapsOfAnotherGroup() {
+        Ref<String, String> other = new MapGroup().add(PersistentMap.create());
+
+        new MapGroup().begin().put(other, "foo", "bar");
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void rejectsUpdatesAfterCommit() {
+        MapGroup group = new MapGroup();
+        Ref<String, String> map = group.add(PersistentMap.create());
+        Transaction transaction = group.begin().put(map, "foo", "bar");
+        transaction.commit();
+
+        transaction.put(map, "foo", "baz");
+    }
+}
@@ -0,0 +1,142 @@
+package persistent;
+
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import persistent.support.HashCodes;
+import persistent.support.HashCodes.TestKey;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.core.Is.is;
+
+public class MapStatsTest {
+    private final HashCodes hashCodes = new HashCodes();
+
+    @BeforeClass
+    public void requireInstrumentation() {
+        if (!Instrumentation.ENABLED) {
+            throw new SkipException("Run with -Dpersistent.instrumentation=true");
+        }
+    }
+
+    @Test
+    public void countsTheNodesCopiedByAPut() {
+        MapStats stats = new MapStats("test");
+        PersistentMap<String, String> map = PersistentMap.<String, String>create().instrumented(stats);
+
+        map.put("foo", "bar");
+
+        assertThat(stats.puts(), is(1L));
+        assertThat(stats.depthTraversed(), is(1L));
+        // A SubMap1 root and a KeyEntry, plus the new PersistentMap:
+        assertThat(stats.nodesCopied(), is(2L));
+        assertThat(stats.slotsCopied(), is(1L));
+        assertThat(stats.estimatedBytesAllocated(), is((long) NodeSizes.MAP + NodeSizes.SUBMAP1 + NodeSizes.KEY_ENTRY));
+        assertThat(stats.splits(), is(0L));
+    }
+
+    @Test
+    public void countsSplitsOfLeaves() {
+        TestKey key1 = hashCodes.key(1, 1, 0, 0, 0, 0, 0, "a");
+        TestKey key2 = hashCodes.key(1, 2, 0, 0, 0, 0, 0, "b");
+        MapStats stats = new MapStats("test");
+        PersistentMap<TestKey, String> map = PersistentMap.<TestKey, String>create().instrumented(stats)
+                .put(key1, "a");
+        stats.reset();
+
+        map.put(key2, "b");
+
+        assertThat(stats.splits(), is(1L));
+        assertThat(stats.depthTraversed(), is(2L));
+        // The root, a new SubMap at level 1 and the new KeyEntry:
+        assertThat(stats.nodesCopied(), is(3L));
+        assertThat(stats.slotsCopied(), is(3L));
+    }
+
+    @Test
+    public void countsTheNodesCreatedBySplittingACompressedPath() {
+        TestKey key1 = hashCodes.key(1, 2, 3, 4, 5, 6, 0, "a");
+        TestKey key2 = hashCodes.key(1, 2, 3, 4, 5, 7, 0, "b");
+        MapStats stats = new MapStats("test");
+        PersistentMap<TestKey, String> map = PersistentMap.<TestKey, String>create().instrumented(stats)
+                .put(key1, "a")
+                .put(key2, "b");
+        stats.reset();
+
+        map.put(hashCodes.key(1, 2, 9, 0, 0, 0, 0, "c"), "c");
+
+        assertThat(stats.splits(), is(1L));
+        assertThat(stats.depthTraversed(), is(2L));
+        // The root, a compressed node down to the new SubMap at level 2, the new KeyEntry, and a shorter
+        // compressed node leading to the old SubMap:
+        assertThat(stats.nodesCopied(), is(5L));
+    }
+
+    @Test
+    public void doesNotCountHoistedLeavesAsCopied() {
+        TestKey key1 = hashCodes.key(1, 1, 0, 0, 0, 0, 0, "a");
+        TestKey key2 = hashCodes.key(1, 2, 0, 0, 0, 0, 0, "b");
+        MapStats stats = new MapStats("test");
+        PersistentMap<TestKey, String> map = PersistentMap.<TestKey, String>create().instrumented(stats)
+                .put(key1, "a")
+                .put(key2, "b");
+        stats.reset();
+
+        map.remove(key1);
+
+        assertThat(stats.removes(), is(1L));
+        assertThat(stats.depthTraversed(), is(3L));
+        // Only the root is copied, the remaining leaf is moved up into it:
+        assertThat(stats.nodesCopied(), is(1L));
+        assertThat(stats.estimatedBytesAllocated(), is((long) NodeSizes.MAP + NodeSizes.SUBMAP1));
+    }
+
+    @Test
+    public void readsAndMissesCopyNothing() {
+        MapStats stats = new MapStats("test");
+        PersistentMap<String, String> map = PersistentMap.<String, String>create().instrumented(stats)
+                .put("foo", "bar");
+        stats.reset();
+
+        map.get("foo");
+        map.get("baz");
+        map.remove("baz");
+
+        assertThat(stats.gets(), is(2L));
+        assertThat(stats.removes(), is(1L));
+        assertThat(stats.nodesCopied(), is(0L));
+        assertThat(stats.estimatedBytesAllocated(), is(0L));
+    }
+
+    @Test
+    public void countsCollisionHits() {
+        TestKey key1 = hashCodes.key(1, 1, 0, 0, 0, 0, 0, "a");
+        TestKey key2 = hashCodes.key(1, 1, 0, 0, 0, 0, 0, "b");
+        MapStats stats = new MapStats("test");
+        PersistentMap<TestKey, String> map = PersistentMap.<TestKey, String>create().instrumented(stats)
+                .put(key1, "a")
+                .put(key2, "b");
+        stats.reset();
+
+        map.get(key1);
+        map.get(hashCodes.key(1, 1, 0, 0, 0, 0, 1, "c"));
+
+        assertThat(stats.collisionHits(), is(1L));
+    }
+
+    @Test
+    public void derivedVersionsShareTheStatistics() {
+        MapStats stats = new MapStats("shared");
+        PersistentMap<Integer, Integer> map = PersistentMap.<Integer, Integer>create().instrumented(stats);
+        for (int i = 0; i < 100; i++) {
+            map = map.put(i, i);
+        }
+        map.filter((key, value) -> key % 2 == 0).get(2);
+
+        assertThat(stats.puts(), is(100L));
+        assertThat(stats.gets(), is(1L));
+        assertThat(map.metrics(), containsString("shared: puts=100"));
+        assertThat(PersistentMap.create().metrics(), is(""));
+    }
+}
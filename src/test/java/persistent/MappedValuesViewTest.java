@@ -0,0 +1,172 @@
+package persistent;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static persistent.support.HashCodes.collidingStrings;
+
+public class MappedValuesViewTest {
+
+    private static PersistentMap<Integer, Integer> mapOf(int size) {
+        PersistentMap<Integer, Integer> map = PersistentMap.create();
+        for (int i = 0; i < size; i++) {
+            map = map.put(i, i);
+        }
+        return map;
+    }
+
+    @Test
+    public void transformsOnlyAccessedValues() {
+        AtomicInteger calls = new AtomicInteger();
+        MappedValuesView<Integer, String> view = mapOf(1000).viewMapValues(value -> {
+            calls.incrementAndGet();
+            return "v" + value;
+        });
+
+        assertThat(calls.get(), is(0));
+        assertThat(view.get(7), is("v7"));
+        assertThat(view.get(7), is("v7"));
+        assertThat(view.get(8), is("v8"));
+        assertThat(view.get(1000), is(nullValue()));
+        assertThat(calls.get(), is(2));
+        assertThat(view.size(), is(1000));
+    }
+
+    @Test
+    public void memoizesNullResults() {
+        AtomicInteger calls = new AtomicInteger();
+        MappedValuesView<Integer, String> view = mapOf(10).viewMapValues(value -> {
+            calls.incrementAndGet();
+            return null;
+        });
+
+        assertThat(view.get(3), is(nullValue()));
+        assertThat(view.get(3), is(nullValue()));
+        assertThat(calls.get(), is(1));
+    }
+
+    @Test
+    public void transformsEachValueOnceAcrossThreads() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        MappedValuesView<Integer, String> view = mapOf(100).viewMapValues(value -> {
+            calls.incrementAndGet();
+            return "v" + value;
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < 8; t++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                for (int i = 0; i < 100; i++) {
+                    view.get(i);
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+
+        assertThat(calls.get(), is(100));
+    }
+
+    @Test
+    public void forcesViewIntoMapReusingMemoizedValues() {
+        AtomicInteger calls = new AtomicInteger();
+        PersistentMap<Integer, Integer> map = mapOf(500);
+        MappedValuesView<Integer, String> view = map.viewMapValues(value -> {
+            calls.incrementAndGet();
+            return "v" + value;
+        });
+
+        view.get(1);
+        view.get(2);
+        PersistentMap<Integer, String> forced = view.force();
+
+        assertThat(calls.get(), is(500));
+        assertThat(forced.size(), is(500));
+        assertThat(forced.get(499), is("v499"));
+        assertThat(forced.dump(), is(map.mapValues(value -> "v" + value).dump()));
+        assertThat(view.force(), is(sameInstance(forced)));
+    }
+
+    @Test
+    public void servesReadsFromTheForcedMap() {
+        AtomicInteger calls = new AtomicInteger();
+        MappedValuesView<Integer, String> view = mapOf(100).viewMapValues(value -> {
+            calls.incrementAndGet();
+            return "v" + value;
+        });
+
+        PersistentMap<Integer, String> forced = view.force();
+        for (int i = 0; i < 100; i++) {
+            assertThat(view.get(i), is(sameInstance(forced.get(i))));
+        }
+        assertThat(calls.get(), is(100));
+    }
+
+    @Test
+    public void forcesOnceAcrossThreads() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        MappedValuesView<Integer, String> view = mapOf(1000).viewMapValues(value -> {
+            calls.incrementAndGet();
+            return "v" + value;
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < 8; t++) {
+            int offset = t;
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                view.get(offset * 100);
+                view.force();
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+
+        assertThat(calls.get(), is(1000));
+        assertThat(view.force().size(), is(1000));
+    }
+
+    @Test
+    public void transformsCollidingKeys() {
+        List<String> keys = collidingStrings(3);
+        PersistentMap<String, Integer> map = PersistentMap.create();
+        for (int i = 0; i < keys.size(); i++) {
+            map = map.put(keys.get(i), i);
+        }
+        AtomicInteger calls = new AtomicInteger();
+        MappedValuesView<String, Integer> view = map.viewMapValues(value -> {
+            calls.incrementAndGet();
+            return -value;
+        });
+
+        for (int i = 0; i < keys.size(); i++) {
+            assertThat(view.get(keys.get(i)), is(-i));
+        }
+        assertThat(view.get("AaAa"), is(nullValue()));
+        assertThat(view.force().dump(), is(map.mapValues(value -> -value).dump()));
+        assertThat(calls.get(), is(keys.size()));
+    }
+}
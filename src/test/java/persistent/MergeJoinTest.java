@@ -0,0 +1,135 @@
+package persistent;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import persistent.MergeJoin.Mode;
+import persistent.support.HashCodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.core.Is.is;
+import static persistent.support.HashCodes.collidingStrings;
+
+public class MergeJoinTest {
+    private final HashCodes hashCodes = new HashCodes();
+
+    @DataProvider
+    public Object[][] branchingFactors() {
+        return new Object[][]{{BranchingFactor.WAYS_16}, {BranchingFactor.WAYS_32}, {BranchingFactor.WAYS_64}};
+    }
+
+    private static <K, V> Map<K, List<V>> join(Mode mode, List<PersistentMap<K, V>> maps) {
+        Map<K, List<V>> joined = new LinkedHashMap<>();
+        MergeJoin.<K, V>forEach(mode, maps, (key, values) -> {
+            assertThat(joined.containsKey(key), is(false));
+            joined.put(key, values);
+        });
+        return joined;
+    }
+
+    private static <K, V> Map<K, List<V>> naiveJoin(Mode mode, List<PersistentMap<K, V>> maps) {
+        Set<K> keys = new HashSet<>(maps.get(0).keySet());
+        for (PersistentMap<K, V> map : maps.subList(1, maps.size())) {
+            if (mode == Mode.INNER) {
+                keys.retainAll(map.keySet());
+            } else {
+                keys.addAll(map.keySet());
+            }
+        }
+        Map<K, List<V>> joined = new LinkedHashMap<>();
+        for (K key : keys) {
+            List<V> values = new ArrayList<>();
+            for (PersistentMap<K, V> map : maps) {
+                values.add(map.get(key));
+            }
+            joined.put(key, values);
+        }
+        return joined;
+    }
+
+    private static void assertInTrieOrder(Set<?> keys) {
+        long previous = Long.MIN_VALUE;
+        for (Object key : keys) {
+            long hashCode = key.hashCode() & 0xffffffffL;
+            assertThat(hashCode >= previous, is(true));
+            previous = hashCode;
+        }
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void joinsVersionsSharingSubtrees(BranchingFactor branching) {
+        Random random = new Random(13);
+        PersistentMap<Object, Integer> base = PersistentMap.create(branching);
+        for (int i = 0; i < 5000; i++) {
+            base = base.put("key" + i, i);
+        }
+        for (String key : collidingStrings(4)) {
+            base = base.put(key, key.length());
+        }
+
+        List<PersistentMap<Object, Integer>> maps = new ArrayList<>();
+        for (int version = 0; version < 4; version++) {
+            PersistentMap<Object, Integer> map = base;
+            for (int i = 0; i < 300; i++) {
+                Object key = random.nextBoolean() ? "key" + random.nextInt(6000)
+                        : collidingStrings(4).get(random.nextInt(16));
+                map = random.nextBoolean() ? map.remove(key) : map.put(key, -version);
+            }
+            maps.add(map);
+        }
+
+        for (Mode mode : Mode.values()) {
+            Map<Object, List<Integer>> joined = join(mode, maps);
+            assertThat(joined, is(naiveJoin(mode, maps)));
+            assertInTrieOrder(joined.keySet());
+        }
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void joinsAcrossCompressedPathsAndLeaves(BranchingFactor branching) {
+        Random random = new Random(17);
+        List<PersistentMap<Object, Integer>> maps = new ArrayList<>();
+        for (int version = 0; version < 3; version++) {
+            PersistentMap<Object, Integer> map = PersistentMap.create(branching);
+            for (int i = 0; i < 40; i++) {
+                // Few distinct subhashes, so that the maps have compressed paths and leaves at different levels:
+                map = map.put(hashCodes.key(random.nextInt(2), 0, random.nextInt(2), 0, 0, random.nextInt(2),
+                        random.nextInt(2), "key" + random.nextInt(60)), i);
+            }
+            maps.add(map);
+        }
+
+        for (Mode mode : Mode.values()) {
+            Map<Object, List<Integer>> joined = join(mode, maps);
+            assertThat(joined, is(naiveJoin(mode, maps)));
+            assertInTrieOrder(joined.keySet());
+        }
+    }
+
+    @Test
+    public void joinsEmptyMaps() {
+        PersistentMap<String, Integer> map = PersistentMap.<String, Integer>create().put("a", 1);
+        List<PersistentMap<String, Integer>> maps = Arrays.asList(map, PersistentMap.create());
+
+        assertThat(join(Mode.INNER, maps).keySet(), is(empty()));
+        assertThat(join(Mode.OUTER, maps),
+                is(Collections.singletonMap("a", Arrays.asList(1, (Integer) null))));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsMapsWithDifferentBranchingFactors() {
+        MergeJoin.<String, Integer>forEach(Mode.INNER, Arrays.asList(PersistentMap.<String, Integer>create(),
+                PersistentMap.<String, Integer>create(BranchingFactor.WAYS_16)), (key, values) -> {
+        });
+    }
+}
@@ -0,0 +1,222 @@
+package persistent;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import persistent.support.HashCodes;
+import persistent.support.HashCodes.TestKey;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+
+public class MerkleSyncTest {
+
+    @DataProvider
+    public Object[][] branchingFactors() {
+        return new Object[][]{{BranchingFactor.WAYS_16}, {BranchingFactor.WAYS_32}, {BranchingFactor.WAYS_64}};
+    }
+
+    private static PersistentMap<Integer, String> mapOf(BranchingFactor branching, int size) {
+        PersistentMap<Integer, String> map = PersistentMap.create(branching);
+        for (int i = 0; i < size; i++) {
+            map = map.put(i, "value" + i);
+        }
+        return map;
+    }
+
+    private static <K, V> Map<K, V> contents(PersistentMap<K, V> map) {
+        Map<K, V> contents = new HashMap<>();
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            contents.put(entry.getKey(), entry.getValue());
+        }
+        return contents;
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Runs the source in another thread, connected to the replica by pipes, and returns the synchronized replica.
+     * Counts the bytes sent by the source into sourceBytes[0].
+     */
+    private static <K, V> PersistentMap<K, V> synchronize(PersistentMap<K, V> source, PersistentMap<K, V> replica,
+                                                          Codec<K> keyCodec, Codec<V> valueCodec,
+                                                          long[] sourceBytes) throws Exception {
+        return synchronize(source, replica, keyCodec, valueCodec, sourceBytes, 1 << 16);
+    }
+
+    private static <K, V> PersistentMap<K, V> synchronize(PersistentMap<K, V> source, PersistentMap<K, V> replica,
+                                                          Codec<K> keyCodec, Codec<V> valueCodec,
+                                                          long[] sourceBytes, int pipeSize) throws Exception {
+        PipedInputStream replicaIn = new PipedInputStream(pipeSize);
+        PipedInputStream sourceIn = new PipedInputStream(pipeSize);
+        CountingOutputStream sourceOut = new CountingOutputStream(new PipedOutputStream(replicaIn));
+        PipedOutputStream replicaOut = new PipedOutputStream(sourceIn);
+
+        CompletableFuture<Void> server = CompletableFuture.runAsync(() -> {
+            try {
+                MerkleSync.serve(source, keyCodec, valueCodec, sourceIn, sourceOut);
+                sourceOut.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        try {
+            PersistentMap<K, V> result = MerkleSync.synchronize(replica, keyCodec, valueCodec, replicaIn, replicaOut);
+            server.get();
+            sourceBytes[0] = sourceOut.count;
+            return result;
+        } finally {
+            replicaOut.close();
+        }
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void synchronizesDifferingEntries(BranchingFactor branching) throws Exception {
+        PersistentMap<Integer, String> source = mapOf(branching, 20000);
+        PersistentMap<Integer, String> replica = source
+                .put(17, "stale")
+                .remove(4000)
+                .put(-5, "deleted at the source");
+        source = source.put(20000, "added").put(123, "updated").remove(19999);
+
+        long[] sourceBytes = new long[1];
+        PersistentMap<Integer, String> result = synchronize(source, replica, Codec.integers(), Codec.strings(),
+                sourceBytes);
+
+        assertThat(contents(result), is(contents(source)));
+        Fingerprints<Integer, String> fingerprints = new Fingerprints<>(Codec.integers(), Codec.strings());
+        assertThat(fingerprints.of(result), is(fingerprints.of(source)));
+        // A full dump would take more than 200KB:
+        assertThat(sourceBytes[0], lessThan(16384L));
+    }
+
+    @Test(dataProvider = "branchingFactors", timeOut = 60000)
+    public void synchronizesLargeDivergencesOverSmallPipes(BranchingFactor branching) throws Exception {
+        PersistentMap<Integer, String> source = mapOf(branching, 50000);
+        PersistentMap<Integer, String> replica = source;
+        for (int i = 0; i < 50000; i += 3) {
+            replica = replica.put(i, "stale");
+        }
+
+        // Thousands of regions differ at once, far more than the pipes can hold:
+        PersistentMap<Integer, String> result = synchronize(source, replica, Codec.integers(), Codec.strings(),
+                new long[1], 512);
+
+        assertThat(contents(result), is(contents(source)));
+    }
+
+    @Test
+    public void synchronizesIdenticalMapsWithTheHandshakeOnly() throws Exception {
+        PersistentMap<Integer, String> source = mapOf(BranchingFactor.WAYS_32, 1000);
+
+        long[] sourceBytes = new long[1];
+        PersistentMap<Integer, String> result = synchronize(source, source.put(1, "value1"), Codec.integers(),
+                Codec.strings(), sourceBytes);
+
+        assertThat(result.size(), is(1000));
+        assertThat(sourceBytes[0], is(9L));
+    }
+
+    @Test
+    public void synchronizesAnEmptyReplica() throws Exception {
+        PersistentMap<Integer, String> source = mapOf(BranchingFactor.WAYS_16, 5000);
+
+        PersistentMap<Integer, String> result = synchronize(source, PersistentMap.create(BranchingFactor.WAYS_16),
+                Codec.integers(), Codec.strings(), new long[1]);
+
+        assertThat(contents(result), is(contents(source)));
+    }
+
+    @Test
+    public void synchronizesCollisionsAndCompressedPaths() throws Exception {
+        HashCodes hashCodes = new HashCodes();
+        Codec<TestKey> keyCodec = new Codec<TestKey>() {
+            @Override
+            public void write(TestKey value, DataOutput out) throws IOException {
+                out.writeInt(value.hashCode());
+                out.writeUTF(value.content());
+            }
+
+            @Override
+            public TestKey read(DataInput in) throws IOException {
+                return new TestKey(in.readInt(), in.readUTF());
+            }
+        };
+        PersistentMap<TestKey, Integer> source = PersistentMap.create();
+        PersistentMap<TestKey, Integer> replica = PersistentMap.create();
+        for (int i = 0; i < 20; i++) {
+            TestKey key = hashCodes.key(3, 1, 4, 1, 5, i % 3, 0, "key" + i);
+            source = source.put(key, i);
+            if (i % 4 != 0) {
+                replica = replica.put(key, i);
+            }
+        }
+        replica = replica.put(hashCodes.key(3, 1, 4, 2, 0, 0, 0, "extra"), -1);
+
+        PersistentMap<TestKey, Integer> result = synchronize(source, replica, keyCodec, Codec.integers(), new long[1]);
+
+        assertThat(contents(result), is(contents(source)));
+    }
+
+    @Test
+    public void synchronizesValuesWithEqualHashCodes() throws Exception {
+        PersistentMap<Integer, String> source = mapOf(BranchingFactor.WAYS_32, 1000).put(500, "BB");
+        PersistentMap<Integer, String> replica = source.put(500, "Aa");
+
+        PersistentMap<Integer, String> result = synchronize(source, replica, Codec.integers(), Codec.strings(),
+                new long[1]);
+
+        assertThat(result.get(500), is("BB"));
+        assertThat(contents(result), is(contents(source)));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void rejectsMismatchingBranchingFactors() throws Exception {
+        synchronize(mapOf(BranchingFactor.WAYS_32, 10), mapOf(BranchingFactor.WAYS_64, 10),
+                Codec.integers(), Codec.strings(), new long[1]);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void rejectsUnknownBranchingFactors() throws Exception {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(request);
+        out.writeInt(0x4D534E43);
+        out.writeByte(2);
+        out.writeByte(BranchingFactor.values().length);
+
+        MerkleSync.serve(mapOf(BranchingFactor.WAYS_32, 10), Codec.integers(), Codec.strings(),
+                new ByteArrayInputStream(request.toByteArray()), new ByteArrayOutputStream());
+    }
+}
@@ -0,0 +1,422 @@
+package persistent;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+import static persistent.support.HashCodes.collidingStrings;
+
+public class PageStoreTest {
+    private Path file;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        file = Files.createTempFile("page-store", ".db");
+        Files.delete(file);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private PageStore<String, Integer> open() throws IOException {
+        return PageStore.builder(Codec.strings(), Codec.integers()).pageSize(512).cacheSize(100).open(file);
+    }
+
+    private static void assertContents(PagedMap<String, Integer> map, Map<String, Integer> expected) {
+        assertThat(map.size(), is(expected.size()));
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertThat(map.get(entry.getKey()), is(entry.getValue()));
+        }
+    }
+
+    @Test
+    public void commitsVersionsWhichSurviveReopening() throws IOException {
+        Random random = new Random(1);
+        Map<String, Integer> expected = new HashMap<>();
+        try (PageStore<String, Integer> store = open()) {
+            PagedMap<String, Integer> map = store.current();
+            for (int i = 0; i < 5000; i++) {
+                String key = "key" + random.nextInt(4000);
+                if (random.nextInt(4) == 0) {
+                    map = map.remove(key);
+                    expected.remove(key);
+                } else {
+                    map = map.put(key, i);
+                    expected.put(key, i);
+                }
+                if (i % 1000 == 999) {
+                    map = store.commit(map);
+                    assertThat(map.isCommitted(), is(true));
+                }
+            }
+            for (String key : collidingStrings(5)) {
+                map = map.put(key, key.length());
+                expected.put(key, key.length());
+            }
+            map = map.remove(collidingStrings(5).get(3));
+            expected.remove(collidingStrings(5).get(3));
+            assertContents(map, expected);
+            store.commit(map);
+        }
+
+        try (PageStore<String, Integer> store = open()) {
+            assertContents(store.current(), expected);
+            assertThat(store.current().get("absent"), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void keepsOlderVersionsReadable() throws IOException {
+        try (PageStore<String, Integer> store = open()) {
+            PagedMap<String, Integer> first = store.commit(store.current().put("a", 1).put("b", 2));
+            PagedMap<String, Integer> second = store.commit(first.put("a", 10).remove("b").put("c", 3));
+
+            assertThat(first.get("a"), is(1));
+            assertThat(first.get("b"), is(2));
+            assertThat(first.get("c"), is(nullValue()));
+            assertThat(second.get("a"), is(10));
+            assertThat(second.get("b"), is(nullValue()));
+            assertThat(store.current().size(), is(2));
+        }
+    }
+
+    @Test
+    public void recoversThePreviousVersionFromATornCommit() throws IOException {
+        try (PageStore<String, Integer> store = open()) {
+            store.commit(store.current().put("a", 1));
+            store.commit(store.current().put("a", 2));
+        }
+        // The second commit went to the first meta slot; corrupt it as if its write was interrupted:
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(20);
+            raw.writeInt(0xDEADBEEF);
+        }
+
+        try (PageStore<String, Integer> store = open()) {
+            assertThat(store.current().get("a"), is(1));
+            store.commit(store.current().put("b", 3));
+        }
+        try (PageStore<String, Integer> store = open()) {
+            assertThat(store.current().get("a"), is(1));
+            assertThat(store.current().get("b"), is(3));
+        }
+    }
+
+    @Test
+    public void readsAtMostOnePagePerColdLookup() throws IOException {
+        try (PageStore<String, Integer> store = open()) {
+            PagedMap<String, Integer> map = store.current();
+            for (int i = 0; i < 20000; i++) {
+                map = map.put("key" + i, i);
+            }
+            store.commit(map);
+        }
+
+        try (PageStore<String, Integer> store = PageStore.builder(Codec.strings(), Codec.integers()).pageSize(512)
+                .cacheSize(0).open(file)) {
+            for (int i = 0; i < 1000; i++) {
+                long reads = store.pageReads();
+                assertThat(store.current().get("key" + i * 20), is(i * 20));
+                assertThat(store.pageReads() - reads, lessThanOrEqualTo(1L));
+
+                reads = store.pageReads();
+                assertThat(store.current().get("absent" + i), is(nullValue()));
+                assertThat(store.pageReads() - reads, lessThanOrEqualTo(1L));
+            }
+        }
+    }
+
+    @Test
+    public void readsEachMissingNodeOnce() throws IOException {
+        try (PageStore<String, Integer> store = open()) {
+            PagedMap<String, Integer> map = store.current();
+            for (int i = 0; i < 20000; i++) {
+                map = map.put("key" + i, i);
+            }
+            store.commit(map);
+        }
+
+        try (PageStore<String, Integer> store = open()) {
+            long pinnedReads = store.pageReads();
+            assertThat(store.current().get("key123"), is(123));
+            long coldReads = store.pageReads() - pinnedReads;
+            assertThat(coldReads, lessThanOrEqualTo(1L));
+
+            assertThat(store.current().get("key123"), is(123));
+            assertThat(store.pageReads() - pinnedReads, is(coldReads));
+        }
+    }
+
+    @Test
+    public void pinsTheNodesWrittenByEachCommit() throws IOException {
+        int pinnedNodes;
+        try (PageStore<String, Integer> store = PageStore.builder(Codec.strings(), Codec.integers()).pageSize(512)
+                .cacheSize(0).open(file)) {
+            PagedMap<String, Integer> map = store.current();
+            for (int i = 0; i < 20000; i++) {
+                map = map.put("key" + i, i);
+            }
+            store.commit(map);
+
+            for (int i = 0; i < 50; i++) {
+                store.commit(store.current().put("new" + i, i).remove("key" + i * 7).put("key" + (i + 1000), -i));
+                for (int j = 0; j < 20; j++) {
+                    long reads = store.pageReads();
+                    assertThat(store.current().get("key" + (j * 997 + 500)), is(j * 997 + 500));
+                    assertThat(store.pageReads() - reads, lessThanOrEqualTo(1L));
+                }
+                long reads = store.pageReads();
+                assertThat(store.current().get("new" + i), is(i));
+                assertThat(store.pageReads() - reads, lessThanOrEqualTo(1L));
+            }
+            pinnedNodes = store.pinnedNodes();
+        }
+
+        try (PageStore<String, Integer> store = open()) {
+            // The pages replaced by the commits were unpinned:
+            assertThat(store.pinnedNodes(), is(pinnedNodes));
+        }
+    }
+
+    @Test
+    public void packsSmallNodesIntoSharedPages() throws IOException {
+        try (PageStore<String, Integer> store = PageStore.builder(Codec.strings(), Codec.integers()).open(file)) {
+            PagedMap<String, Integer> map = store.current();
+            for (int i = 0; i < 20000; i++) {
+                map = map.put("key" + i, i);
+            }
+            store.commit(map);
+
+            // Each inner node alone would take a 4KB page:
+            assertThat(store.fileSize(), lessThan(store.pinnedNodes() * 4096L / 4));
+        }
+    }
+
+    @Test
+    public void reusesTheSpaceOfReleasedVersions() throws IOException {
+        try (PageStore<String, Integer> store = open()) {
+            PagedMap<String, Integer> map = store.current();
+            for (int i = 0; i < 20000; i++) {
+                map = map.put("key" + i, i);
+            }
+            store.release(store.current());
+            store.commit(map);
+            long fileSize = store.fileSize();
+
+            for (int i = 0; i < 500; i++) {
+                PagedMap<String, Integer> previous = store.current();
+                store.commit(previous.put("key" + i % 10, -i));
+                store.release(previous);
+            }
+
+            // Without reuse, each commit would take a few pages:
+            assertThat(store.fileSize() - fileSize, lessThan(64 * 512L));
+            for (int i = 0; i < 20000; i++) {
+                assertThat(store.current().get("key" + i), is(i < 10 ? -(490 + i) : i));
+            }
+        }
+    }
+
+    @Test
+    public void keepsTheNodesOfRetainedVersions() throws IOException {
+        Map<String, Integer> expected = new HashMap<>();
+        try (PageStore<String, Integer> store = open()) {
+            PagedMap<String, Integer> map = store.current();
+            for (int i = 0; i < 2000; i++) {
+                map = map.put("key" + i, i);
+                expected.put("key" + i, i);
+            }
+            PagedMap<String, Integer> retained = store.commit(map);
+
+            for (int i = 0; i < 200; i++) {
+                PagedMap<String, Integer> previous = store.current();
+                store.commit(previous.put("key" + i * 7, -i).remove("key" + (i * 7 + 1)));
+                if (previous != retained) {
+                    store.release(previous);
+                }
+            }
+
+            assertContents(retained, expected);
+        }
+    }
+
+    @Test
+    public void reusesTheSpaceOfOlderVersionsAfterReopening() throws IOException {
+        long growth;
+        long fileSize;
+        try (PageStore<String, Integer> store = open()) {
+            PagedMap<String, Integer> map = store.current();
+            for (int i = 0; i < 20000; i++) {
+                map = map.put("key" + i, i);
+            }
+            store.commit(map);
+            fileSize = store.fileSize();
+            for (int i = 0; i < 200; i++) {
+                store.commit(store.current().put("key" + i % 10, -i));
+            }
+            growth = store.fileSize() - fileSize;
+            fileSize = store.fileSize();
+        }
+
+        try (PageStore<String, Integer> store = open()) {
+            for (int i = 0; i < 200; i++) {
+                store.commit(store.current().put("key" + i % 10, i));
+            }
+
+            // The versions committed before reopening are not retained, so the commits reuse their space:
+            assertThat(store.fileSize() - fileSize, lessThan(growth / 4));
+            for (int i = 0; i < 20000; i++) {
+                assertThat(store.current().get("key" + i), is(i < 10 ? 190 + i : i));
+            }
+        }
+    }
+
+    @Test
+    public void recoversThePreviousVersionFromATornCommitWhichReusedSpace() throws IOException {
+        Map<String, Integer> expected = new HashMap<>();
+        try (PageStore<String, Integer> store = open()) {
+            PagedMap<String, Integer> map = store.current();
+            for (int i = 0; i < 2000; i++) {
+                map = map.put("key" + i, i);
+                expected.put("key" + i, i);
+            }
+            PagedMap<String, Integer> first = store.commit(map);
+            PagedMap<String, Integer> second = store.commit(first.put("key1", -1));
+            expected.put("key1", -1);
+            store.release(first);
+            // Overwrites the nodes of the first version, which the second one replaced:
+            store.commit(second.put("key2", -2).put("key3", -3));
+        }
+        // The third commit went to the second meta slot:
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(512 + 20);
+            raw.writeInt(0xDEADBEEF);
+        }
+
+        try (PageStore<String, Integer> store = open()) {
+            assertContents(store.current(), expected);
+            for (int i = 0; i < 100; i++) {
+                store.commit(store.current().put("key" + i * 13, -i));
+                expected.put("key" + i * 13, -i);
+            }
+        }
+        try (PageStore<String, Integer> store = open()) {
+            assertContents(store.current(), expected);
+        }
+    }
+
+    @Test
+    public void keepsEveryRetainedVersionIntact() throws IOException {
+        Random random = new Random(7);
+        Map<PagedMap<String, Integer>, Map<String, Integer>> versions = new HashMap<>();
+        Map<String, Integer> expected = new HashMap<>();
+        PageStore<String, Integer> store = open();
+        try {
+            for (int round = 0; round < 60; round++) {
+                PagedMap<String, Integer> map = store.current();
+                for (int i = 0; i < 100; i++) {
+                    String key = "key" + random.nextInt(3000);
+                    if (random.nextInt(3) == 0) {
+                        map = map.remove(key);
+                        expected.remove(key);
+                    } else {
+                        map = map.put(key, random.nextInt());
+                        expected.put(key, map.get(key));
+                    }
+                }
+                versions.put(store.commit(map), new HashMap<>(expected));
+
+                for (PagedMap<String, Integer> version : new ArrayList<>(versions.keySet())) {
+                    if (version != store.current() && random.nextInt(3) == 0) {
+                        store.release(version);
+                        versions.remove(version);
+                    }
+                }
+                for (Map.Entry<PagedMap<String, Integer>, Map<String, Integer>> version : versions.entrySet()) {
+                    assertContents(version.getKey(), version.getValue());
+                }
+
+                if (round % 20 == 19) {
+                    store.close();
+                    store = open();
+                    versions.clear();
+                    versions.put(store.current(), new HashMap<>(expected));
+                }
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void keepsTheVersionWhenPuttingTheSameValue() throws IOException {
+        try (PageStore<String, Integer> store = open()) {
+            PagedMap<String, Integer> map = store.commit(store.current().put("a", 1000).put("b", 2));
+
+            assertThat(map.put("a", map.get("a")) == map, is(true));
+            assertThat(map.put("a", 1).size(), is(2));
+            assertThat(map.put("c", 3).size(), is(3));
+            assertThat(map.put("c", 3).isCommitted(), is(false));
+        }
+    }
+
+    @Test
+    public void commitsVersionsDerivedFromTheCurrentOne() throws IOException {
+        try (PageStore<String, Integer> store = open()) {
+            store.commit(store.current().put("a", 1));
+            store.commit(store.current().put("b", 2));
+            store.commit(store.empty().put("c", 3));
+
+            assertThat(store.current().size(), is(1));
+            assertThat(store.current().get("c"), is(3));
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void rejectsVersionsDerivedFromAnOlderCommit() throws IOException {
+        try (PageStore<String, Integer> store = open()) {
+            PagedMap<String, Integer> base = store.commit(store.current().put("a", 1));
+            store.commit(base.put("b", 2));
+
+            // Committing would lose the update of b:
+            store.commit(base.put("c", 3));
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void rejectsMismatchingBranchingFactors() throws IOException {
+        open().close();
+
+        PageStore.builder(Codec.strings(), Codec.integers()).pageSize(512)
+                .branchingFactor(BranchingFactor.WAYS_64).open(file);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsMapsOfAnotherStore() throws IOException {
+        Path other = Files.createTempFile("page-store", ".db");
+        Files.delete(other);
+        try (PageStore<String, Integer> store = open();
+             PageStore<String, Integer> otherStore = PageStore.builder(Codec.strings(), Codec.integers())
+                     .open(other)) {
+            store.commit(otherStore.current().put("a", 1));
+        } finally {
+            Files.deleteIfExists(other);
+        }
+    }
+}
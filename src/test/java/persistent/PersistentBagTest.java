@@ -0,0 +1,59 @@
+package persistent;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+
+public class PersistentBagTest {
+
+    @Test
+    public void countsOccurrences() {
+        PersistentBag<String> v1 = PersistentBag.create();
+        PersistentBag<String> v2 = v1.add("foo").add("foo").add("bar", 3);
+
+        assertThat(v2.count("foo"), is(2));
+        assertThat(v2.count("bar"), is(3));
+        assertThat(v2.count("baz"), is(0));
+        assertThat(v2.size(), is(5));
+        assertThat(v2.distinctCount(), is(2));
+        assertThat(v2.elementSet(), containsInAnyOrder("foo", "bar"));
+
+        assertThat(v1.isEmpty(), is(true));
+        assertThat(v1.count("foo"), is(0));
+    }
+
+    @Test
+    public void removesOccurrences() {
+        PersistentBag<String> v1 = PersistentBag.<String>create().add("foo", 3).add("bar");
+
+        PersistentBag<String> v2 = v1.remove("foo");
+        assertThat(v2.count("foo"), is(2));
+        assertThat(v2.size(), is(3));
+
+        PersistentBag<String> v3 = v2.remove("foo", 5);
+        assertThat(v3.count("foo"), is(0));
+        assertThat(v3.size(), is(1));
+        assertThat(v3.elementSet(), containsInAnyOrder("bar"));
+
+        assertThat(v3.remove("foo"), is(sameInstance(v3)));
+        assertThat(v1.count("foo"), is(3));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsNegativeOccurrences() {
+        PersistentBag.<String>create().add("foo", -1);
+    }
+
+    @Test(expectedExceptions = ArithmeticException.class)
+    public void rejectsOverflowingCounts() {
+        PersistentBag.<String>create().add("foo", Integer.MAX_VALUE).add("foo");
+    }
+
+    @Test(expectedExceptions = ArithmeticException.class)
+    public void rejectsOverflowingSizes() {
+        PersistentBag.<String>create().add("foo", Integer.MAX_VALUE).add("bar");
+    }
+}
@@ -0,0 +1,119 @@
+package persistent;
+
+import com.google.common.hash.Hashing;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import persistent.PersistentBytesMap.Leaf;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+
+public class PersistentBytesMapTest {
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @DataProvider
+    public Object[][] branchingFactors() {
+        return new Object[][]{{BranchingFactor.WAYS_16}, {BranchingFactor.WAYS_32}, {BranchingFactor.WAYS_64}};
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void stressTestAgainstHashMap(BranchingFactor branching) {
+        Random random = new Random(9);
+        PersistentBytesMap<Integer> map = PersistentBytesMap.create(branching);
+        Map<ByteBuffer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            byte[] key = new byte[random.nextInt(3)];
+            random.nextBytes(key);
+            if (random.nextInt(3) == 0) {
+                map = map.remove(key);
+                expected.remove(ByteBuffer.wrap(key));
+            } else {
+                map = map.put(key, i);
+                expected.put(ByteBuffer.wrap(key), i);
+            }
+            assertThat(map.size(), is(expected.size()));
+        }
+
+        for (Map.Entry<ByteBuffer, Integer> entry : expected.entrySet()) {
+            assertThat(map.get(entry.getKey().array()), is(entry.getValue()));
+        }
+        Map<ByteBuffer, Integer> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertThat(visited, is(expected));
+    }
+
+    @Test
+    public void comparesKeysByContent() {
+        byte[] key = bytes("foo");
+        PersistentBytesMap<String> map = PersistentBytesMap.<String>create().put(key, "bar");
+        key[0] = 'g';
+
+        assertThat(map.get(bytes("foo")), is("bar"));
+        assertThat(map.get(key), is(nullValue()));
+        assertThat(map.containsKey(bytes("foo")), is(true));
+        assertThat(map.put(bytes("foo"), "baz").size(), is(1));
+        assertThat(map.put(bytes("foo"), "bar") == map, is(true));
+        assertThat(map.remove(bytes("fo")) == map, is(true));
+        assertThat(map.remove(bytes("foo")).isEmpty(), is(true));
+    }
+
+    @Test
+    public void readsTheRemainingBytesOfBuffers() {
+        PersistentBytesMap<String> map = PersistentBytesMap.<String>create().put(bytes("foo"), "bar");
+
+        ByteBuffer heap = ByteBuffer.wrap(bytes("xfoox"), 1, 3);
+        ByteBuffer slice = ByteBuffer.wrap(bytes("xxfoo"), 2, 3).slice();
+        ByteBuffer direct = ByteBuffer.allocateDirect(4);
+        direct.put(bytes("foo")).flip();
+
+        assertThat(map.get(heap), is("bar"));
+        assertThat(heap.position(), is(1));
+        assertThat(map.get(slice), is("bar"));
+        assertThat(map.get(direct), is("bar"));
+        assertThat(map.get(heap.asReadOnlyBuffer()), is("bar"));
+        assertThat(map.containsKey(direct), is(true));
+        assertThat(map.remove(slice).isEmpty(), is(true));
+        assertThat(map.put(direct, "baz").get(bytes("foo")), is("baz"));
+    }
+
+    @Test
+    public void keepsCollidingKeysInOneLeaf() {
+        Leaf<String> leaf = new Leaf<>(7, bytes("a"), new int[]{1}, new Object[]{"1"});
+        leaf = leaf.merge(new Leaf<>(7, bytes("bcd"), new int[]{3}, new Object[]{"2"}));
+        leaf = leaf.merge(new Leaf<>(7, bytes(""), new int[]{0}, new Object[]{"3"}));
+        leaf = leaf.merge(new Leaf<>(7, bytes("ef"), new int[]{2}, new Object[]{"4"}));
+        leaf = leaf.merge(new Leaf<>(7, bytes("bcd"), new int[]{3}, new Object[]{"5"}));
+
+        assertThat(new String(leaf.keys, StandardCharsets.UTF_8), is("abcdef"));
+        assertThat(leaf.indexOf(bytes("ef"), 0, 2), is(3));
+        assertThat(leaf.values[1], is("5"));
+
+        Leaf<String> removed = leaf.remove(bytes("xbcd"), 1, 3);
+        assertThat(new String(removed.keys, StandardCharsets.UTF_8), is("aef"));
+        assertThat(removed.indexOf(bytes(""), 0, 0), is(1));
+        assertThat(removed.indexOf(bytes("ef"), 0, 2), is(2));
+        assertThat(removed.keyAt(2), is(ByteBuffer.wrap(bytes("ef"))));
+        assertThat(removed.remove(bytes("bcd"), 0, 3) == removed, is(true));
+    }
+
+    @Test
+    public void hashesWithMurmur3() {
+        Random random = new Random(2);
+        for (int length = 0; length < 40; length++) {
+            byte[] bytes = new byte[length + 3];
+            random.nextBytes(bytes);
+            assertThat(PersistentBytesMap.hash(bytes, 3, length),
+                    is(Hashing.murmur3_32().hashBytes(bytes, 3, length).asInt()));
+        }
+    }
+}
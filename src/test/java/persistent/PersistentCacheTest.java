@@ -0,0 +1,172 @@
+package persistent;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheStats;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+
+public class PersistentCacheTest {
+
+    private static final class ManualTicker extends Ticker {
+        private long nanos;
+
+        void advance(long duration, TimeUnit unit) {
+            nanos += unit.toNanos(duration);
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+
+    @Test
+    public void returnsCachedValues() {
+        PersistentCache<String, String> cache = PersistentCache.<String, String>builder().build();
+
+        cache.put("foo", "bar");
+
+        assertThat(cache.get("foo"), is("bar"));
+        assertThat(cache.get("baz"), is(nullValue()));
+        CacheStats stats = cache.stats();
+        assertThat(stats.hitCount(), is(1L));
+        assertThat(stats.missCount(), is(1L));
+    }
+
+    @Test
+    public void staysWithinMaximumSize() {
+        int maximumSize = 1000;
+        PersistentCache<Integer, Integer> cache = PersistentCache.<Integer, Integer>builder()
+                .maximumSize(maximumSize)
+                .build();
+
+        for (int i = 0; i < 10 * maximumSize; i++) {
+            cache.put(i, i);
+            assertThat(cache.size(), lessThanOrEqualTo(maximumSize));
+        }
+        int lowWaterMark = maximumSize - maximumSize / PersistentCache.EVICTION_BATCH_DIVISOR;
+        assertThat(cache.size(), greaterThanOrEqualTo(lowWaterMark));
+        assertThat(cache.stats().evictionCount(), is((long) 10 * maximumSize - cache.size()));
+    }
+
+    @Test
+    public void evictsInBatches() {
+        PersistentCache<Integer, Integer> cache = PersistentCache.<Integer, Integer>builder()
+                .maximumSize(160)
+                .build();
+        for (int i = 0; i < 160; i++) {
+            cache.put(i, i);
+        }
+
+        cache.put(160, 160);
+
+        assertThat(cache.size(), is(150));
+        assertThat(cache.stats().evictionCount(), is(11L));
+    }
+
+    @Test
+    public void prefersLeastRecentlyUsedEntries() {
+        ManualTicker ticker = new ManualTicker();
+        PersistentCache<Integer, Integer> cache = PersistentCache.<Integer, Integer>builder()
+                .maximumSize(1000)
+                .ticker(ticker)
+                .build();
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+        }
+        ticker.advance(1, TimeUnit.SECONDS);
+        for (int i = 0; i < 500; i++) {
+            cache.get(i);
+        }
+
+        for (int i = 1000; i < 1100; i++) {
+            cache.put(i, i);
+        }
+
+        int recentlyUsed = 0;
+        for (int i = 0; i < 500; i++) {
+            if (cache.snapshot().get(i) != null) {
+                recentlyUsed++;
+            }
+        }
+        // Sampled LRU is approximate, but the recently read half must be evicted much less:
+        assertThat(recentlyUsed, greaterThanOrEqualTo(450));
+    }
+
+    @Test
+    public void neverEvictsTheEntryBeingPut() {
+        ManualTicker ticker = new ManualTicker();
+        for (int i = 0; i < 100; i++) {
+            PersistentCache<String, String> cache = PersistentCache.<String, String>builder()
+                    .maximumSize(1)
+                    .ticker(ticker)
+                    .build();
+            cache.put("foo", "bar");
+            cache.get("foo");
+            // As recent as the entry already cached, so either could be sampled as the victim:
+            cache.put("baz", "qux");
+
+            assertThat(cache.get("baz"), is("qux"));
+            assertThat(cache.get("foo"), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void neverEvictsTheExpiredEntryBeingPut() {
+        PersistentCache<String, String> cache = PersistentCache.<String, String>builder()
+                .maximumSize(20)
+                .expireAfterWrite(0, TimeUnit.SECONDS)
+                .build();
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "value");
+
+            assertThat(cache.snapshot().get("key" + i), is("value"));
+        }
+    }
+
+    @Test
+    public void expiresEntriesAfterWrite() {
+        ManualTicker ticker = new ManualTicker();
+        PersistentCache<String, String> cache = PersistentCache.<String, String>builder()
+                .expireAfterWrite(10, TimeUnit.SECONDS)
+                .ticker(ticker)
+                .build();
+        cache.put("foo", "bar");
+        ticker.advance(5, TimeUnit.SECONDS);
+        cache.put("baz", "qux");
+
+        assertThat(cache.get("foo"), is("bar"));
+        ticker.advance(5, TimeUnit.SECONDS);
+        assertThat(cache.get("foo"), is(nullValue()));
+        assertThat(cache.get("baz"), is("qux"));
+
+        cache.cleanUp();
+        assertThat(cache.size(), is(1));
+        assertThat(cache.stats().evictionCount(), is(1L));
+    }
+
+    @Test
+    public void snapshotsAreNotAffectedByLaterWrites() {
+        PersistentCache<String, String> cache = PersistentCache.<String, String>builder().build();
+        cache.put("foo", "bar");
+
+        MappedValuesView<String, String> snapshot = cache.snapshot();
+        cache.put("foo", "baz");
+        cache.invalidate("foo");
+
+        assertThat(snapshot.get("foo"), is("bar"));
+        assertThat(cache.get("foo"), is(nullValue()));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsNegativeMaximumSize() {
+        PersistentCache.builder().maximumSize(-1);
+    }
+}
@@ -1,24 +1,36 @@
 package persistent;
 
 import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
+import persistent.PersistentMap.CollisionNode;
+import persistent.PersistentMap.CompressedNode;
 import persistent.PersistentMap.KeyEntry;
 import persistent.PersistentMap.SubMap;
 import persistent.support.HashCodes;
 import persistent.support.HashCodes.TestKey;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.both;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
 import static persistent.PersistentMap.insertCollidingKeys;
+import static persistent.support.HashCodes.collidingStrings;
 import static persistent.support.HashCodes.makeHash;
 
 public class PersistentMapTest {
@@ -72,9 +84,42 @@ public class PersistentMapTest {
         TestKey keyB = hashCodes.key(0, 1, 2, 3, 4, 5, 3, "b");
 
         PersistentMap<TestKey, String> v2 = v1.put(keyB, "B");
-        PersistentMap<TestKey, String> v3 = v1.put(keyB, "B2");
+        PersistentMap<TestKey, String> v3 = v2.put(keyB, "B2");
 
-        // Todo: replace the existing value?
+        assertThat(v3.get(keyB), is("B2"));
+        assertThat(v3.size(), is(1));
+        assertThat(v2.get(keyB), is("B"));
+    }
+
+    @Test
+    public void replacesExistingKeyInCollisionChain() {
+        PersistentMap<TestKey, String> v1 = PersistentMap.create();
+
+        TestKey keyA = hashCodes.key(0, 1, 2, 3, 4, 5, 3, "a");
+        TestKey keyB = hashCodes.key(0, 1, 2, 3, 4, 5, 3, "b");
+
+        PersistentMap<TestKey, String> v2 = v1.put(keyA, "a").put(keyB, "b");
+        PersistentMap<TestKey, String> v3 = v2.put(keyA, "a2");
+
+        assertThat(v3.size(), is(2));
+        assertThat(v3.get(keyA), is("a2"));
+        assertThat(v3.get(keyB), is("b"));
+        assertThat(v2.get(keyA), is("a"));
+    }
+
+    @Test
+    public void removingAbsentKeyReturnsSameMap() {
+        TestKey keyA = hashCodes.key(1, 2, 4, 0, 0, 0, 0, "a");
+        TestKey keyB = hashCodes.key(1, 2, 5, 0, 0, 0, 0, "b");
+        TestKey keyC = hashCodes.key(1, 2, 5, 0, 0, 0, 0, "c");
+        TestKey keyD = hashCodes.key(1, 2, 6, 0, 0, 0, 0, "d");
+
+        PersistentMap<TestKey, String> v1 = PersistentMap.<TestKey, String>create().put(keyA, "a").put(keyB, "b");
+
+        assertThat(v1.remove(keyC) == v1, is(true));
+        assertThat(v1.remove(keyD) == v1, is(true));
+        assertThat(v1.get(keyC), is(nullValue()));
+        assertThat(v1.size(), is(2));
     }
 
     @Test
@@ -183,6 +228,48 @@ public class PersistentMapTest {
         assertThat(v4.get(keyC), is("c"));
     }
 
+    @Test
+    public void removingLastCollidingKeyLeavesSingleKeyEntry() {
+        TestKey keyA = hashCodes.key(0, 1, 2, 3, 4, 5, 3, "a");
+        TestKey keyB = hashCodes.key(0, 1, 2, 3, 4, 5, 3, "b");
+
+        PersistentMap<TestKey, String> v1 = PersistentMap.<TestKey, String>create().put(keyA, "a").put(keyB, "b");
+        PersistentMap<TestKey, String> v2 = v1.remove(keyA);
+
+        assertThat(v2.size(), is(1));
+        assertThat(v2.get(keyB), is("b"));
+        assertThat(v2.nodeAt(7, keyB.hashCode()) instanceof KeyEntry, is(true));
+        assertThat(v2.remove(keyA) == v2, is(true));
+    }
+
+    @Test
+    public void sortsLargeCollisionNodesWithComparableKeys() {
+        // "Aa" and "BB" have the same hash code, and so do all strings concatenated from them.
+        List<String> keys = collidingStrings(5);
+        PersistentMap<String, Integer> map = PersistentMap.create();
+        for (int i = 0; i < keys.size(); i++) {
+            map = map.put(keys.get(i), i);
+        }
+
+        CollisionNode<String, Integer> collisionNode =
+                (CollisionNode<String, Integer>) map.nodeAt(7, keys.get(0).hashCode());
+        assertThat(collisionNode.size(), is(keys.size()));
+        assertThat(collisionNode.isSorted(), is(true));
+
+        for (int i = 0; i < keys.size(); i++) {
+            assertThat(map.get(keys.get(i)), is(i));
+        }
+        assertThat(map.get("AaAaAaAaAb"), is(nullValue()));
+        assertThat(map.size(), is(keys.size()));
+
+        for (int i = 0; i < keys.size(); i += 2) {
+            map = map.remove(keys.get(i));
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            assertThat(map.get(keys.get(i)), is(i % 2 == 0 ? null : i));
+        }
+    }
+
     @Test
     public void removesKeyValueFromRoot() {
         PersistentMap<TestKey, String> v1 = PersistentMap.create();
@@ -248,7 +335,7 @@ public class PersistentMapTest {
     }
 
     @Test
-    public void insertCollidingKeys_createsSubmapChainWhenKeysCollide() {
+    public void insertCollidingKeys_createsCollisionNodeWhenKeysCollide() {
         /*
          *  level:  0  1  2  3  4  5  6
          *  keyA:   7  6  5  4  3  2  1
@@ -267,53 +354,76 @@ public class PersistentMapTest {
 
         root = root.set(7, insertCollidingKeys(0, oldKv, keyB, "b"));
 
-        SubMap subMap1 = (SubMap) root.get(7);
-        SubMap subMap2 = (SubMap) subMap1.get(6);
-        SubMap subMap3 = (SubMap) subMap2.get(5);
-        SubMap subMap4 = (SubMap) subMap3.get(4);
-        SubMap subMap5 = (SubMap) subMap4.get(3);
-        SubMap subMap6 = (SubMap) subMap5.get(2);
-        KeyEntry<TestKey, String> kvNew = (KeyEntry<TestKey, String>) subMap6.get(1);
+        CollisionNode<TestKey, String> collisionNode = (CollisionNode<TestKey, String>) root.get(7);
 
-        assertThat(kvNew.key(), is(keyB));
-        assertThat(kvNew.value(), is("b"));
-        //        assertThat(kvNew.storedHashCode(), is());
-        //        assertThat(kvNew.next(), is(oldKv));
+        assertThat(collisionNode.size(), is(2));
+        assertThat(collisionNode.get(keyA), is("a"));
+        assertThat(collisionNode.get(keyB), is("b"));
     }
 
     @Test
-    public void insertCollidingKeys_createsSubmapChainWhenKeysCollide_starting_from_level1() {
-
+    public void insertCollidingKeys_compressesSubmapChainUpToDivergingLevel() {
         /*
          *  level:  0  1  2  3  4  5  6
          *  keyA:   7  6  5  4  3  2  1
-         *  keyB:   7  6  5  4  3  2  1
+         *  keyB:   7  6  5  4  3  9  1
          *          ^  ^              ^
          *          |  |              |
-         *       root  |            key
-         *             |      collision
+         *       root  |           keys
+         *             |         differ
          *         start
          */
 
         TestKey keyA = hashCodes.key(7, 6, 5, 4, 3, 2, 1, "a");
-        TestKey keyB = hashCodes.key(7, 6, 5, 4, 3, 2, 1, "b");
+        TestKey keyB = hashCodes.key(7, 6, 5, 4, 3, 9, 1, "b");
         KeyEntry<TestKey, String> oldKv = new KeyEntry<>(keyA, "a");
 
         SubMap root = SubMap.create();
 
         root = root.set(6, insertCollidingKeys(1, oldKv, keyB, "b"));
 
-        SubMap subMap2 = (SubMap) root.get(6);
-        SubMap subMap3 = (SubMap) subMap2.get(5);
-        SubMap subMap4 = (SubMap) subMap3.get(4);
-        SubMap subMap5 = (SubMap) subMap4.get(3);
-        SubMap subMap6 = (SubMap) subMap5.get(2);
-        KeyEntry<TestKey, String> kvNew = (KeyEntry<TestKey, String>) subMap6.get(1);
-
-        assertThat(kvNew.key(), is(keyB));
-        assertThat(kvNew.value(), is("b"));
-        //        assertThat(kvNew.storedHashCode(), is());
-        //        assertThat(kvNew.next(), is(oldKv));
+        CompressedNode compressed = (CompressedNode) root.get(6);
+        assertThat(compressed.level(), is(5));
+
+        SubMap subMap5 = compressed.child();
+        KeyEntry<TestKey, String> kv2 = (KeyEntry<TestKey, String>) subMap5.get(2);
+        KeyEntry<TestKey, String> kv9 = (KeyEntry<TestKey, String>) subMap5.get(9);
+
+        assertThat(kv2.key(), is(keyA));
+        assertThat(kv9.key(), is(keyB));
+    }
+
+    @Test
+    public void splitsCompressedPathWhenNewKeyDiverges() {
+        TestKey keyA = hashCodes.key(7, 6, 5, 4, 3, 2, 1, "a");
+        TestKey keyB = hashCodes.key(7, 6, 5, 4, 3, 9, 1, "b");
+        TestKey keyC = hashCodes.key(7, 6, 8, 0, 0, 0, 0, "c");
+        TestKey keyD = hashCodes.key(7, 6, 5, 4, 9, 0, 0, "d");
+
+        PersistentMap<TestKey, String> v1 = PersistentMap.<TestKey, String>create().put(keyA, "a").put(keyB, "b");
+        assertThat(v1.nodeAt(1, keyA.hashCode()), instanceOf(CompressedNode.class));
+        assertThat(v1.nodeAt(5, keyA.hashCode()), instanceOf(SubMap.class));
+        assertThat(v1.get(keyC), is(nullValue()));
+
+        PersistentMap<TestKey, String> v2 = v1.put(keyC, "c");
+        assertThat(v2.nodeAt(2, keyA.hashCode()), instanceOf(SubMap.class));
+        assertThat(v2.nodeAt(3, keyA.hashCode()), instanceOf(CompressedNode.class));
+
+        PersistentMap<TestKey, String> v3 = v2.put(keyD, "d");
+        System.out.println(v3.dump());
+
+        assertThat(v3.size(), is(4));
+        assertThat(v3.get(keyA), is("a"));
+        assertThat(v3.get(keyB), is("b"));
+        assertThat(v3.get(keyC), is("c"));
+        assertThat(v3.get(keyD), is("d"));
+        assertThat(v1.get(keyC), is(nullValue()));
+
+        PersistentMap<TestKey, String> v4 = v3.remove(keyA).remove(keyB);
+        assertThat(v4.size(), is(2));
+        assertThat(v4.get(keyC), is("c"));
+        assertThat(v4.get(keyD), is("d"));
+        assertThat(v4.remove(keyA) == v4, is(true));
     }
 
     @Test
@@ -435,6 +545,452 @@ public class PersistentMapTest {
         System.out.println(hamt.metrics());
     }
 
+    @DataProvider
+    public Object[][] branchingFactors() {
+        return new Object[][]{{BranchingFactor.WAYS_16}, {BranchingFactor.WAYS_32}, {BranchingFactor.WAYS_64}};
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void stressTestMapWithBranchingFactor(BranchingFactor branching) {
+        PersistentMap<String, String> hamt = PersistentMap.create(branching);
+
+        Map<String, String> refMap = new HashMap<>();
+        for (int i = 0; i < 12000; i++) {
+            String key = randomString();
+            String value = randomString();
+            refMap.put(key, value);
+            hamt = hamt.put(key, value);
+        }
+        for (String key : collidingStrings(4)) {
+            refMap.put(key, key);
+            hamt = hamt.put(key, key);
+        }
+
+        assertThat(hamt.branchingFactor(), is(branching));
+        assertThat(hamt.size(), is(refMap.size()));
+        for (Map.Entry<String, String> entry : refMap.entrySet()) {
+            assertThat(hamt.get(entry.getKey()), is(entry.getValue()));
+        }
+        assertThat(hamt.keySet(), is(refMap.keySet()));
+
+        for (String key : refMap.keySet()) {
+            hamt = hamt.remove(key);
+        }
+        assertThat(hamt.isEmpty(), is(true));
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void storesClusteredHashCodes(BranchingFactor branching) {
+        // Integer hash codes of sequential IDs share all of their high order bits.
+        PersistentMap<Integer, Integer> map = PersistentMap.create(branching);
+        for (int i = 0; i < 5000; i++) {
+            map = map.put(i * 7, i);
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            map = map.remove(i * 7);
+        }
+
+        assertThat(map.size(), is(2500));
+        for (int i = 0; i < 5000; i++) {
+            assertThat(map.get(i * 7), is(i % 2 == 0 ? null : i));
+            assertThat(map.get(i * 7 + 1), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void collapsesSingleEntrySubtreesOnRemove() {
+        TestKey keyA = hashCodes.key(7, 6, 5, 4, 3, 2, 1, "a");
+        TestKey keyB = hashCodes.key(7, 6, 5, 4, 3, 9, 1, "b");
+        TestKey keyC = hashCodes.key(7, 6, 8, 0, 0, 0, 0, "c");
+
+        PersistentMap<TestKey, String> v1 = PersistentMap.<TestKey, String>create()
+                .put(keyA, "a")
+                .put(keyB, "b")
+                .put(keyC, "c");
+
+        PersistentMap<TestKey, String> v2 = v1.remove(keyC);
+        assertThat(v2.nodeAt(1, keyA.hashCode()), instanceOf(CompressedNode.class));
+        assertThat(v2.dump(), is(PersistentMap.<TestKey, String>create().put(keyA, "a").put(keyB, "b").dump()));
+
+        PersistentMap<TestKey, String> v3 = v2.remove(keyA);
+        assertThat(v3.nodeAt(1, keyB.hashCode()), instanceOf(KeyEntry.class));
+        assertThat(v3.get(keyB), is("b"));
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void keepsTrieInCanonicalFormAfterChurn(BranchingFactor branching) {
+        PersistentMap<Integer, Integer> expected = PersistentMap.create(branching);
+        PersistentMap<Integer, Integer> churned = PersistentMap.create(branching);
+        for (int i = 0; i < 3000; i++) {
+            int key = r.nextInt();
+            churned = churned.put(key, key);
+            if (i % 10 == 0) {
+                expected = expected.put(key, key);
+            }
+        }
+        for (Integer key : churned.keySet()) {
+            if (expected.get(key) == null) {
+                churned = churned.remove(key);
+            }
+        }
+
+        assertThat(churned.size(), is(expected.size()));
+        assertThat(churned.dump(), is(expected.dump()));
+    }
+
+    @Test
+    public void splitsHashCodeIntoLevelsOfBranchingFactorWidth() {
+        int hashCode = 0xFEDCBA98;
+
+        assertThat(BranchingFactor.WAYS_16.subhash(hashCode, 0), is(0xF));
+        assertThat(BranchingFactor.WAYS_16.subhash(hashCode, 7), is(0x8));
+        assertThat(BranchingFactor.WAYS_16.lastLevel(), is(7));
+
+        assertThat(BranchingFactor.WAYS_32.subhash(hashCode, 0), is(31));
+        assertThat(BranchingFactor.WAYS_32.subhash(hashCode, 6), is(0));
+        assertThat(BranchingFactor.WAYS_32.lastLevel(), is(6));
+
+        assertThat(BranchingFactor.WAYS_64.subhash(hashCode, 0), is(63));
+        assertThat(BranchingFactor.WAYS_64.subhash(hashCode, 4), is(0x26));
+        assertThat(BranchingFactor.WAYS_64.subhash(hashCode, 5), is(0));
+        assertThat(BranchingFactor.WAYS_64.lastLevel(), is(5));
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void splitsIntoDisjointShardsAndJoinsThemBack(BranchingFactor branching) {
+        PersistentMap<String, Integer> map = PersistentMap.create(branching);
+        for (int i = 0; i < 5000; i++) {
+            map = map.put(randomString(), i);
+        }
+
+        for (int n : new int[]{1, 3, 8, 100}) {
+            List<PersistentMap<String, Integer>> shards = map.split(n);
+
+            assertThat(shards.size(), is(n));
+            int size = 0;
+            Set<String> keys = new HashSet<>();
+            for (PersistentMap<String, Integer> shard : shards) {
+                size += shard.size();
+                assertThat(shard.keySet().size(), is(shard.size()));
+                keys.addAll(shard.keySet());
+            }
+            assertThat(size, is(map.size()));
+            assertThat(keys, is(map.keySet()));
+
+            PersistentMap<String, Integer> joined = PersistentMap.join(shards);
+            assertThat(joined.size(), is(map.size()));
+            assertThat(joined.dump(), is(map.dump()));
+        }
+    }
+
+    @Test
+    public void shardsShareSubtreesWithTheMap() {
+        PersistentMap<Integer, Integer> map = PersistentMap.create();
+        for (int i = 0; i < 10000; i++) {
+            map = map.put(i * 0x9E3779B9, i);
+        }
+
+        List<PersistentMap<Integer, Integer>> shards = map.split(2);
+
+        SubMap root = map.root();
+        SubMap firstRoot = shards.get(0).root();
+        SubMap secondRoot = shards.get(1).root();
+        assertThat(firstRoot.capacity() + secondRoot.capacity(), is(root.capacity()));
+        assertThat(firstRoot.entryAt(0) == root.entryAt(0), is(true));
+        assertThat(secondRoot.entryAt(0) == root.entryAt(firstRoot.capacity()), is(true));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsJoiningOverlappingShards() {
+        PersistentMap<String, String> map = PersistentMap.<String, String>create().put("foo", "bar");
+
+        PersistentMap.join(Arrays.asList(map, map.put("foo", "baz")));
+    }
+
+    @Test
+    public void splitsAnEmptyMap() {
+        List<PersistentMap<String, String>> shards = PersistentMap.<String, String>create().split(4);
+
+        assertThat(shards.size(), is(4));
+        assertThat(PersistentMap.join(shards).isEmpty(), is(true));
+        assertThat(PersistentMap.join(shards).dump(), is(PersistentMap.create().dump()));
+    }
+
+    @Test
+    public void balancesShardsByNumberOfKeys() {
+        PersistentMap<Integer, Integer> map = PersistentMap.create();
+        for (int i = 0; i < 10000; i++) {
+            // All keys fall into the first 4 of 32 root buckets:
+            map = map.put((i % 4) << 27 | i, i);
+        }
+
+        List<PersistentMap<Integer, Integer>> shards = map.split(4);
+
+        for (PersistentMap<Integer, Integer> shard : shards) {
+            assertThat(shard.size(), is(2500));
+            assertThat(shard.root().size(), is(2500));
+        }
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void keepsKeyCountsInNodes(BranchingFactor branching) {
+        PersistentMap<String, Integer> map = PersistentMap.create(branching);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String key = randomString();
+            keys.add(key);
+            map = map.put(key, i).put(key, -i);
+            assertThat(map.root().size(), is(map.size()));
+        }
+        for (String key : collidingStrings(4)) {
+            map = map.put(key, 0);
+        }
+        assertThat(map.root().size(), is(map.size()));
+
+        for (String key : keys) {
+            map = map.remove(key);
+            assertThat(map.root().size(), is(map.size()));
+        }
+        assertThat(map.size(), is(collidingStrings(4).size()));
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void accessesEntriesByIndex(BranchingFactor branching) {
+        PersistentMap<String, Integer> map = PersistentMap.create(branching);
+        for (int i = 0; i < 3000; i++) {
+            map = map.put(randomString(), i);
+        }
+        for (String key : collidingStrings(4)) {
+            map = map.put(key, -1);
+        }
+
+        Set<String> keys = new HashSet<>();
+        int previousBucket = -1;
+        for (int i = 0; i < map.size(); i++) {
+            Map.Entry<String, Integer> entry = map.entryAt(i);
+            assertThat(map.get(entry.getKey()), is(entry.getValue()));
+            keys.add(entry.getKey());
+
+            int bucket = branching.subhash(entry.getKey().hashCode(), 0);
+            assertThat(bucket >= previousBucket, is(true));
+            previousBucket = bucket;
+        }
+        assertThat(keys, is(map.keySet()));
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void rejectsIndexesPastTheLastEntry() {
+        PersistentMap.<String, String>create().put("foo", "bar").entryAt(1);
+    }
+
+    @Test
+    public void samplesEntriesUniformly() {
+        PersistentMap<TestKey, Integer> map = PersistentMap.create();
+        // One key alone in a root bucket, and the others in a dense subtree of another bucket:
+        map = map.put(hashCodes.key(1, 0, 0, 0, 0, 0, 0, "sparse"), 0);
+        for (int i = 1; i < 64; i++) {
+            map = map.put(hashCodes.key(2, i % 32, i / 32, 0, 0, 0, 0, "dense" + i), i);
+        }
+
+        Random random = new Random(42);
+        int sparse = 0;
+        for (int i = 0; i < 64000; i++) {
+            if (map.randomEntry(random).getValue() == 0) {
+                sparse++;
+            }
+        }
+
+        assertThat(sparse, is(both(greaterThan(800)).and(lessThan(1200))));
+        assertThat(PersistentMap.create().randomEntry(random), is(nullValue()));
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void removesAllKeysInOnePass(BranchingFactor branching) {
+        PersistentMap<String, Integer> map = PersistentMap.create(branching);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String key = randomString();
+            keys.add(key);
+            map = map.put(key, i);
+        }
+        for (String key : collidingStrings(4)) {
+            keys.add(key);
+            map = map.put(key, -1);
+        }
+
+        List<String> removedKeys = new ArrayList<>();
+        PersistentMap<String, Integer> expected = map;
+        for (int i = 0; i < keys.size(); i += 3) {
+            removedKeys.add(keys.get(i));
+            expected = expected.remove(keys.get(i));
+        }
+        removedKeys.add("absent");
+        removedKeys.add(keys.get(0));
+
+        PersistentMap<String, Integer> removed = map.removeAll(removedKeys);
+
+        assertThat(removed.size(), is(expected.size()));
+        assertThat(removed.dump(), is(expected.dump()));
+        assertThat(map.removeAll(keys).isEmpty(), is(true));
+        assertThat(map.removeAll(keys).dump(), is(map.removeAll(keys).removeAll(keys).dump()));
+    }
+
+    @Test
+    public void removesAllKeysBelowCompressedPaths() {
+        TestKey key1 = hashCodes.key(1, 2, 3, 4, 5, 6, 0, "a");
+        TestKey key2 = hashCodes.key(1, 2, 3, 4, 5, 7, 0, "b");
+        TestKey key3 = hashCodes.key(1, 2, 3, 9, 0, 0, 0, "c");
+        TestKey key4 = hashCodes.key(1, 2, 3, 4, 5, 7, 0, "d");
+        PersistentMap<TestKey, String> map = PersistentMap.<TestKey, String>create()
+                .put(key1, "a").put(key2, "b").put(key3, "c").put(key4, "d");
+
+        PersistentMap<TestKey, String> removed = map.removeAll(Arrays.asList(key2, key3, key4,
+                hashCodes.key(1, 2, 8, 0, 0, 0, 0, "absent")));
+
+        assertThat(removed.size(), is(1));
+        assertThat(removed.get(key1), is("a"));
+        assertThat(removed.dump(), is(PersistentMap.<TestKey, String>create().put(key1, "a").dump()));
+    }
+
+    @Test
+    public void bulkRemovalsReturnTheSameMapWhenNothingChanges() {
+        PersistentMap<Integer, Integer> map = PersistentMap.create();
+        for (int i = 0; i < 1000; i++) {
+            map = map.put(i, i);
+        }
+
+        assertThat(map.removeAll(Arrays.asList(-1, 1000, 5000)) == map, is(true));
+        assertThat(map.removeAll(Collections.<Integer>emptyList()) == map, is(true));
+        assertThat(map.removeIf((key, value) -> key < 0) == map, is(true));
+        assertThat(map.retainAll(map.keySet()) == map, is(true));
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void looksUpBatchesOfKeys(BranchingFactor branching) {
+        Random random = new Random(11);
+        PersistentMap<Object, Integer> map = PersistentMap.create(branching);
+        List<Object> keys = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            map = map.put("key" + i, i);
+            keys.add("key" + random.nextInt(6000));
+        }
+        for (String key : collidingStrings(4)) {
+            map = map.put(key, key.length());
+            keys.add(key);
+        }
+        TestKey compressed1 = hashCodes.key(1, 2, 3, 4, 5, 6, 0, "a");
+        TestKey compressed2 = hashCodes.key(1, 2, 3, 4, 5, 7, 0, "b");
+        map = map.put(compressed1, -1).put(compressed2, -2);
+        keys.addAll(Arrays.asList(compressed1, compressed2, hashCodes.key(1, 2, 9, 4, 5, 7, 0, "b"),
+                "AaAaAaAaAa", "key1", "key1"));
+        Collections.shuffle(keys, random);
+
+        List<Integer> values = map.getAll(keys);
+
+        assertThat(values.size(), is(keys.size()));
+        for (int i = 0; i < keys.size(); i++) {
+            assertThat(values.get(i), is(map.get(keys.get(i))));
+        }
+    }
+
+    @Test
+    public void clearsTheValuesOfAbsentKeys() {
+        PersistentMap<String, String> map = PersistentMap.<String, String>create().put("a", "1");
+        String[] values = {"x", "y", "z"};
+
+        map.getAll(new String[]{"b", "a"}, values);
+
+        assertThat(Arrays.asList(values), is(Arrays.asList(null, "1", "z")));
+        assertThat(PersistentMap.<String, String>create().getAll(Arrays.asList("a")),
+                is(Collections.<String>singletonList(null)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsTooShortValueArrays() {
+        PersistentMap.<String, String>create().getAll(new String[]{"a", "b"}, new String[1]);
+    }
+
+    @Test
+    public void retainsAndRemovesMatchingEntries() {
+        PersistentMap<Integer, Integer> map = PersistentMap.create();
+        Set<Integer> even = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            map = map.put(i, i);
+            if (i % 2 == 0) {
+                even.add(i);
+            }
+        }
+
+        assertThat(map.retainAll(even).keySet(), is(even));
+        assertThat(map.removeIf((key, value) -> value % 2 != 0).keySet(), is(even));
+    }
+
+    private static <K, V> Set<MapChange<K, V>> naiveDiff(PersistentMap<K, V> older, PersistentMap<K, V> newer) {
+        Map<K, V> olderEntries = new HashMap<>();
+        for (Map.Entry<K, V> entry : older.entrySet()) {
+            olderEntries.put(entry.getKey(), entry.getValue());
+        }
+        Set<MapChange<K, V>> changes = new HashSet<>();
+        for (Map.Entry<K, V> entry : newer.entrySet()) {
+            V oldValue = olderEntries.remove(entry.getKey());
+            if (oldValue == null) {
+                changes.add(MapChange.added(entry.getKey(), entry.getValue()));
+            } else if (!oldValue.equals(entry.getValue())) {
+                changes.add(MapChange.updated(entry.getKey(), oldValue, entry.getValue()));
+            }
+        }
+        for (Map.Entry<K, V> entry : olderEntries.entrySet()) {
+            changes.add(MapChange.removed(entry.getKey(), entry.getValue()));
+        }
+        return changes;
+    }
+
+    @Test(dataProvider = "branchingFactors")
+    public void diffsVersionsAcrossCompressedPathsAndCollisions(BranchingFactor branching) {
+        Random random = new Random(7);
+        List<TestKey> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            // Few distinct subhashes, so that keys share compressed paths and collide:
+            keys.add(hashCodes.key(random.nextInt(2), random.nextInt(2), 0, random.nextInt(2), 0, 0,
+                    random.nextInt(2), "key" + i));
+        }
+
+        PersistentMap<TestKey, Integer> map = PersistentMap.create(branching);
+        List<PersistentMap<TestKey, Integer>> versions = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            TestKey key = keys.get(random.nextInt(keys.size()));
+            map = random.nextInt(3) == 0 ? map.remove(key) : map.put(key, random.nextInt(4));
+            versions.add(map);
+        }
+
+        for (int i = 0; i < 200; i++) {
+            PersistentMap<TestKey, Integer> older = versions.get(random.nextInt(versions.size()));
+            PersistentMap<TestKey, Integer> newer = versions.get(random.nextInt(versions.size()));
+            List<MapChange<TestKey, Integer>> changes = older.diff(newer);
+
+            assertThat(new HashSet<>(changes), is(naiveDiff(older, newer)));
+            assertThat(new HashSet<>(changes).size(), is(changes.size()));
+        }
+    }
+
+    @Test
+    public void diffsLargeMaps() {
+        PersistentMap<String, Integer> map = PersistentMap.create();
+        for (int i = 0; i < 10000; i++) {
+            map = map.put(randomString(), i);
+        }
+        String added = randomString();
+        String removed = map.entryAt(17).getKey();
+        String updated = map.entryAt(4242).getKey();
+        PersistentMap<String, Integer> newer = map.put(added, -1).remove(removed).put(updated, -2);
+
+        assertThat(new HashSet<>(map.diff(newer)), is(naiveDiff(map, newer)));
+        assertThat(map.diff(newer).size(), is(3));
+        assertThat(map.diff(map).isEmpty(), is(true));
+        assertThat(PersistentMap.<String, Integer>create().diff(map).size(), is(map.size()));
+        assertThat(map.diff(PersistentMap.create()).size(), is(map.size()));
+    }
+
     Random r = new Random();
 
     private String randomString() {
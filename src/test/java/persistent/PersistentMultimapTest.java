@@ -0,0 +1,100 @@
+package persistent;
+
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+
+public class PersistentMultimapTest {
+
+    @Test
+    public void associatesManyValuesWithKey() {
+        PersistentMultimap<String, String> v1 = PersistentMultimap.create();
+        PersistentMultimap<String, String> v2 = v1.put("foo", "a").put("foo", "b").put("bar", "c");
+
+        assertThat(v2.get("foo"), containsInAnyOrder("a", "b"));
+        assertThat(v2.get("bar"), containsInAnyOrder("c"));
+        assertThat(v2.get("baz"), is(empty()));
+        assertThat(v2.size(), is(3));
+        assertThat(v2.keyCount(), is(2));
+        assertThat(v2.count("foo"), is(2));
+
+        assertThat(v1.isEmpty(), is(true));
+        assertThat(v1.get("foo"), is(empty()));
+    }
+
+    @Test
+    public void ignoresDuplicateValues() {
+        PersistentMultimap<String, String> v1 = PersistentMultimap.<String, String>create().put("foo", "a");
+        PersistentMultimap<String, String> v2 = v1.put("foo", "a");
+
+        assertThat(v2, is(sameInstance(v1)));
+        assertThat(v2.size(), is(1));
+    }
+
+    @Test
+    public void promotesLargeValueSetsToNestedMap() {
+        PersistentMultimap<String, Integer> map = PersistentMultimap.create();
+        for (int i = 0; i < PersistentMultimap.INLINE_THRESHOLD; i++) {
+            map = map.put("foo", i);
+        }
+        assertThat(map.storesInline("foo"), is(true));
+
+        map = map.put("foo", PersistentMultimap.INLINE_THRESHOLD);
+        assertThat(map.storesInline("foo"), is(false));
+        assertThat(map.count("foo"), is(PersistentMultimap.INLINE_THRESHOLD + 1));
+        assertThat(map.containsEntry("foo", 3), is(true));
+        assertThat(map.containsEntry("foo", PersistentMultimap.INLINE_THRESHOLD), is(true));
+        assertThat(map.put("foo", 3), is(sameInstance(map)));
+    }
+
+    @Test
+    public void demotesShrinkingValueSetsToInlineArray() {
+        PersistentMultimap<String, Integer> map = PersistentMultimap.create();
+        for (int i = 0; i < 2 * PersistentMultimap.INLINE_THRESHOLD; i++) {
+            map = map.put("foo", i);
+        }
+
+        for (int i = 0; i < 2 * PersistentMultimap.INLINE_THRESHOLD - 1; i++) {
+            map = map.remove("foo", i);
+            assertThat(map.count("foo"), is(2 * PersistentMultimap.INLINE_THRESHOLD - 1 - i));
+            assertThat(map.containsEntry("foo", i), is(false));
+        }
+
+        assertThat(map.storesInline("foo"), is(true));
+        assertThat(map.get("foo"), containsInAnyOrder(2 * PersistentMultimap.INLINE_THRESHOLD - 1));
+        assertThat(map.size(), is(1));
+    }
+
+    @Test
+    public void removesKeyWithLastValue() {
+        PersistentMultimap<String, String> v1 = PersistentMultimap.<String, String>create().put("foo", "a");
+        PersistentMultimap<String, String> v2 = v1.remove("foo", "a");
+
+        assertThat(v2.isEmpty(), is(true));
+        assertThat(v2.keyCount(), is(0));
+        assertThat(v2.remove("foo", "a"), is(sameInstance(v2)));
+        assertThat(v1.containsEntry("foo", "a"), is(true));
+    }
+
+    @Test
+    public void removesAllValuesOfKey() {
+        PersistentMultimap<String, String> map = PersistentMultimap.<String, String>create()
+                .put("foo", "a")
+                .put("foo", "b")
+                .put("bar", "c")
+                .removeAll("foo");
+
+        assertThat(map.get("foo"), is(empty()));
+        assertThat(map.keySet(), containsInAnyOrder("bar"));
+        assertThat(map.size(), is(1));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void rejectsNullValues() {
+        PersistentMultimap.<String, String>create().put("foo", "a").put("foo", null);
+    }
+}
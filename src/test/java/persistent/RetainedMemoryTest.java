@@ -0,0 +1,85 @@
+package persistent;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+
+public class RetainedMemoryTest {
+
+    @Test
+    public void reportsASingleVersionAsUnique() {
+        PersistentMap<String, String> map = PersistentMap.<String, String>create().put("foo", "bar");
+
+        RetainedMemory report = RetainedMemory.analyze(Arrays.asList(map));
+
+        long expected = NodeSizes.MAP + NodeSizes.SUBMAP1 + NodeSizes.KEY_ENTRY;
+        assertThat(report.totalBytes(), is(expected));
+        assertThat(report.uniqueBytes(0), is(expected));
+        assertThat(report.sharedBytes(), is(0L));
+        assertThat(report.marginalSavings(0), is(expected));
+    }
+
+    @Test
+    public void separatesSharedAndUniqueBytes() {
+        PersistentMap<Integer, Integer> base = PersistentMap.create();
+        for (int i = 0; i < 10000; i++) {
+            base = base.put(i, i);
+        }
+        PersistentMap<Integer, Integer> updated = base.put(20000, 0);
+
+        RetainedMemory report = RetainedMemory.analyze(Arrays.asList(base, updated));
+
+        // The updated version copies only the path to the new key:
+        assertThat(report.uniqueBytes(1), lessThan(1024L));
+        assertThat(report.uniqueBytes(0), lessThan(1024L));
+        assertThat(report.sharedBytes(), greaterThan(report.totalBytes() - 2048));
+        assertThat(report.totalBytes(), is(report.sharedBytes() + report.uniqueBytes(0) + report.uniqueBytes(1)));
+        assertThat(report.retainedBytes(0), is(report.sharedBytes() + report.uniqueBytes(0)));
+    }
+
+    @Test
+    public void droppingSeveralVersionsFreesTheNodesSharedOnlyBetweenThem() {
+        PersistentMap<Integer, Integer> map = PersistentMap.create();
+        List<PersistentMap<Integer, Integer>> versions = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 1000; j++) {
+                map = map.put(j, i);
+            }
+            versions.add(map);
+        }
+        // Every version rewrites all values, so that versions 0, 1 and 2 share no nodes:
+        PersistentMap<Integer, Integer> copyOfFirst = versions.get(0).put(-1, -1);
+        versions.add(copyOfFirst);
+
+        RetainedMemory report = RetainedMemory.analyze(versions);
+
+        assertThat(report.marginalSavings(0), lessThan(1024L));
+        assertThat(report.marginalSavings(3), lessThan(1024L));
+        assertThat(report.savingsOfDropping(0, 3),
+                is(report.totalBytes() - report.retainedBytes(1) - report.retainedBytes(2)));
+        assertThat(report.savingsOfDropping(0, 3), greaterThan(report.marginalSavings(0) + report.marginalSavings(3)));
+        assertThat(report.savingsOfDropping(0, 1, 2, 3), is(report.totalBytes()));
+    }
+
+    @Test
+    public void countsTheSameMapOnce() {
+        PersistentMap<String, String> map = PersistentMap.<String, String>create().put("foo", "bar");
+
+        RetainedMemory report = RetainedMemory.analyze(Arrays.asList(map, map));
+
+        assertThat(report.totalBytes(), is(report.sharedBytes()));
+        assertThat(report.marginalSavings(0), is(0L));
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void rejectsUnknownVersions() {
+        RetainedMemory.analyze(Arrays.asList(PersistentMap.create())).uniqueBytes(1);
+    }
+}
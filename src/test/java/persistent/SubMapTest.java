@@ -1,10 +1,16 @@
 package persistent;
 
 import org.testng.annotations.Test;
+import persistent.PersistentMap.ArraySubMap;
 import persistent.PersistentMap.KeyEntry;
 import persistent.PersistentMap.SubMap;
+import persistent.PersistentMap.SubMap1;
+import persistent.PersistentMap.SubMap2;
+import persistent.PersistentMap.SubMap3;
+import persistent.PersistentMap.SubMap4;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.Is.is;
 
@@ -54,6 +60,19 @@ public class SubMapTest {
         assertThat(v2.get(31), is("foo31"));
     }
 
+    @Test
+    public void canStoreIntoBucketsOfSixtyFourWayNode() {
+        SubMap v1 = SubMap.create();
+
+        SubMap v2 = v1.set(63, "foo63").set(31, "foo31").set(32, "foo32");
+
+        assertThat(v2.get(63), is("foo63"));
+        assertThat(v2.get(32), is("foo32"));
+        assertThat(v2.get(31), is("foo31"));
+        assertThat(v2.isPresent(0), is(false));
+        assertThat(v2.removeEntry(32).get(63), is("foo63"));
+    }
+
     @Test
     public void settingEntryUpdatesBitPopulationCount() {
         SubMap v1 = SubMap.create();
@@ -148,7 +167,7 @@ public class SubMapTest {
 
     @Test
     public void remove_returnsEmptySubmapWhenLastEntryIsRemoved() {
-        SubMap v1 = new SubMap(1, new KeyEntry<>("Foo", "bar"));
+        SubMap v1 = SubMap.of(1, new KeyEntry<>("Foo", "bar"));
         SubMap v2 = v1.removeEntry(1);
         assertThat(v2.isEmpty(), is(true));
         assertThat(v2.capacity(), is(0));
@@ -159,7 +178,7 @@ public class SubMapTest {
         KeyEntry<String, String> kv1 = new KeyEntry<>("Foo", "this");
         KeyEntry<String, String> kv2 = new KeyEntry<>("Bar", "that");
 
-        SubMap v1 = new SubMap(1, kv1, 2, kv2);
+        SubMap v1 = SubMap.of(1, kv1, 2, kv2);
         SubMap v2 = v1.removeEntry(1);
         assertThat(v2.get(2), is(kv2));
         assertThat(v2.get(1), is(nullValue()));
@@ -171,7 +190,7 @@ public class SubMapTest {
         KeyEntry<String, String> kv1 = new KeyEntry<>("Foo", "this");
         KeyEntry<String, String> kv2 = new KeyEntry<>("Bar", "that");
 
-        SubMap v1 = new SubMap(1, kv1, 2, kv2);
+        SubMap v1 = SubMap.of(1, kv1, 2, kv2);
         SubMap v2 = v1.removeEntry(2);
         assertThat(v2.get(1), is(kv1));
         assertThat(v2.get(2), is(nullValue()));
@@ -184,7 +203,7 @@ public class SubMapTest {
         KeyEntry<String, String> kv2 = new KeyEntry<>("Bar", "that");
         KeyEntry<String, String> kv3 = new KeyEntry<>("Baz", "this and that");
 
-        SubMap v1 = new SubMap(1, kv1, 2, kv2);
+        SubMap v1 = SubMap.of(1, kv1, 2, kv2);
         SubMap v2 = v1.set(3, kv3);
 
         SubMap v3 = v2.removeEntry(2);
@@ -195,6 +214,51 @@ public class SubMapTest {
         assertThat(v3.capacity(), is(2));
     }
 
+    @Test
+    public void usesFixedArityNodesUpToSmallCapacity() {
+        SubMap v1 = SubMap.create().set(7, "foo-7");
+        SubMap v2 = v1.set(3, "foo-3");
+        SubMap v3 = v2.set(31, "foo-31");
+        SubMap v4 = v3.set(5, "foo-5");
+
+        assertThat(v1, instanceOf(SubMap1.class));
+        assertThat(v2, instanceOf(SubMap2.class));
+        assertThat(v3, instanceOf(SubMap3.class));
+        assertThat(v4, instanceOf(SubMap4.class));
+
+        assertThat(v4.get(3), is("foo-3"));
+        assertThat(v4.get(5), is("foo-5"));
+        assertThat(v4.get(7), is("foo-7"));
+        assertThat(v4.get(31), is("foo-31"));
+        assertThat(v4.replace(5, "bar-5").get(5), is("bar-5"));
+        assertThat(v4.replace(5, "bar-5"), instanceOf(SubMap4.class));
+    }
+
+    @Test
+    public void upgradesToArrayNodeAndDowngradesBack() {
+        SubMap v1 = SubMap.create();
+        for (int i = 0; i < 8; i++) {
+            v1 = v1.set(i * 4, "foo-" + i);
+        }
+        assertThat(v1, instanceOf(ArraySubMap.class));
+        assertThat(v1.capacity(), is(8));
+
+        SubMap v2 = v1;
+        for (int i = 0; i < 4; i++) {
+            v2 = v2.removeEntry(i * 4 + 4);
+        }
+        assertThat(v2, instanceOf(SubMap4.class));
+        assertThat(v2.get(0), is("foo-0"));
+        assertThat(v2.get(20), is("foo-5"));
+        assertThat(v2.get(24), is("foo-6"));
+        assertThat(v2.get(28), is("foo-7"));
+        assertThat(v2.get(4), is(nullValue()));
+
+        assertThat(v2.set(2, "bar").get(2), is("bar"));
+        assertThat(v2.set(2, "bar").get(28), is("foo-7"));
+        assertThat(v2.set(2, "bar"), instanceOf(ArraySubMap.class));
+    }
+
     @Test
     public void testPopulationCount() {
         assertThat(PersistentMap.populationCountAt(0xF0000001, 31), is(4));
@@ -0,0 +1,71 @@
+package persistent.support;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.IntConsumer;
+
+/**
+ * Measures the bytes allocated by the current thread, using the allocation counters of the HotSpot ThreadMXBean.
+ *
+ * The counters are updated when a thread local allocation buffer is retired, and reading them allocates a few
+ * objects itself, so every measurement runs the operation many times and subtracts the cost of an empty
+ * measurement.
+ */
+public final class AllocationMeter {
+    private static final int WARMUP_ROUNDS = 3;
+
+    private final com.sun.management.ThreadMXBean threads;
+    private final long overhead;
+
+    private AllocationMeter(com.sun.management.ThreadMXBean threads) {
+        this.threads = threads;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        this.overhead = calibrate();
+    }
+
+    /**
+     * Returns a meter, or null if the JVM does not count the bytes allocated per thread.
+     */
+    public static AllocationMeter create() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean hotSpotThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!hotSpotThreads.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        return new AllocationMeter(hotSpotThreads);
+    }
+
+    /**
+     * Runs the operation with the arguments 0 to operations - 1, and returns the average number of bytes it
+     * allocated per call. The operation is run a few times beforehand, so that lazily initialized state and
+     * class loading are not counted.
+     */
+    public double bytesPerOperation(int operations, IntConsumer operation) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            measure(operations, operation);
+        }
+        long bytes = Math.max(0, measure(operations, operation) - overhead);
+        return (double) bytes / operations;
+    }
+
+    private long measure(int operations, IntConsumer operation) {
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < operations; i++) {
+            operation.accept(i);
+        }
+        return threads.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    private long calibrate() {
+        IntConsumer nothing = i -> {
+        };
+        long overhead = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            overhead = Math.min(overhead, measure(1, nothing));
+        }
+        return overhead;
+    }
+}
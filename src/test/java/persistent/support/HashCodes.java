@@ -1,6 +1,8 @@
 package persistent.support;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static java.lang.Integer.toHexString;
@@ -50,6 +52,23 @@ public class HashCodes {
                 level7;
     }
 
+    /**
+     * Returns 2^length distinct Strings with identical hash codes, built out of the colliding pairs "Aa" and "BB".
+     */
+    public static List<String> collidingStrings(int length) {
+        List<String> strings = new ArrayList<>();
+        strings.add("");
+        for (int i = 0; i < length; i++) {
+            List<String> longer = new ArrayList<>();
+            for (String string : strings) {
+                longer.add(string + "Aa");
+                longer.add(string + "BB");
+            }
+            strings = longer;
+        }
+        return strings;
+    }
+
     private static void ensureValid(int code, int max) {
         assert(code >= 0 && code < max);
     }
@@ -73,6 +92,10 @@ public class HashCodes {
             this.content = content;
         }
 
+        public String content() {
+            return content;
+        }
+
         @Override
         public String toString() {
             return String.format("TestKey{%s, %s}", toHexString(hashCode), content);